@@ -17,6 +17,7 @@
 package com.vb.alphapackbot;
 
 
+import com.google.common.primitives.Longs;
 import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
 import io.quarkus.grpc.GrpcService;
@@ -26,6 +27,11 @@ import io.vertx.mutiny.core.eventbus.EventBus;
 import io.vertx.mutiny.core.eventbus.Message;
 import jakarta.enterprise.event.Event;
 import jakarta.inject.Inject;
+import java.io.IOException;
+import java.nio.file.Path;
+import javax.annotation.Nullable;
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.sharding.ShardManager;
 
 @GrpcService
 public class AdminService extends AdminGrpc.AdminImplBase {
@@ -34,40 +40,111 @@ public class AdminService extends AdminGrpc.AdminImplBase {
   final Event<ShutdownEvent> event;
   final Cache cache;
   final EventBus bus;
+  final CommandScheduler commandScheduler;
+  final AdmissionControl admissionControl;
+  final CommandJobs commandJobs;
+  final @Nullable ShardManager shardManager;
+  final ShardExecutors shardExecutors;
 
   @Inject
   AdminService(final Properties properties,
                final Telemetry telemetry,
                final Event<ShutdownEvent> event,
                final Cache cache,
-               final EventBus bus) {
+               final EventBus bus,
+               final CommandScheduler commandScheduler,
+               final AdmissionControl admissionControl,
+               final CommandJobs commandJobs,
+               final @Nullable ShardManager shardManager,
+               final ShardExecutors shardExecutors) {
     this.properties = properties;
     this.telemetry = telemetry;
     this.event = event;
     this.cache = cache;
     this.bus = bus;
+    this.commandScheduler = commandScheduler;
+    this.admissionControl = admissionControl;
+    this.commandJobs = commandJobs;
+    this.shardManager = shardManager;
+    this.shardExecutors = shardExecutors;
   }
 
   @Override
   public void getStatus(final StatusRequest request,
                         final StreamObserver<StatusReply> responseObserver) {
-    responseObserver.onNext(StatusReply
-        .newBuilder()
+    StatusReply.Builder reply = StatusReply.newBuilder();
+    cache.getNodeStats().forEach((address, stats) -> {
+      CacheNodeStatus.Builder node = CacheNodeStatus.newBuilder()
+          .setAddress(address)
+          .setRequests(stats.getCommands().getRequests())
+          .setErrors(stats.getCommands().getErrors())
+          .setAverageLatencyMicros(stats.getCommands().getAverageMicros())
+          .setMaxLatencyMicros(stats.getCommands().getMaxMicros())
+          .setActiveConnections(stats.getActive())
+          .setIdleConnections(stats.getIdle())
+          .setWaiters(stats.getWaiters())
+          .setMaxConnections(stats.getMaxTotal())
+          .setBorrowLatency(toLatencyStatus(stats.getBorrow()));
+      stats.getOperations().forEach((operation, latency) ->
+          node.putOperationLatency(operation, toLatencyStatus(latency)));
+      reply.addCacheNodes(node);
+    });
+    if (shardManager != null) {
+      for (JDA shard : shardManager.getShards()) {
+        int shardId = shard.getShardInfo().getShardId();
+        reply.addShards(ShardStatus.newBuilder()
+            .setShardId(shardId)
+            .setShardTotal(shard.getShardInfo().getShardTotal())
+            .setStatus(shard.getStatus().name())
+            .setGatewayPingMillis(shard.getGatewayPing())
+            .setGuilds(shard.getGuildCache().size())
+            .setHandledEvents(shardExecutors.getHandledEvents(shardId))
+            .setQueuedEvents(shardExecutors.getQueuedEvents(shardId))
+            .setQueuedRequests(shardExecutors.getQueuedRequests(shardId)));
+      }
+    }
+    responseObserver.onNext(reply
         .setUptime(telemetry.formatUptime())
         .setCommandsReceived(telemetry.getCommandsReceived().longValue())
         .setIsBotEnabled(properties.isBotEnabled())
         .setProcessingCounter(properties.getProcessingCounter().intValue())
         .setIsCacheAvailable(cache.isAvailable())
         .setIsCacheEnabled(properties.isCacheEnabled())
-        .setIsPrintingEnabled(properties.isPrintingEnabled()).build());
+        .setIsPrintingEnabled(properties.isPrintingEnabled())
+        .setNearCacheHits(cache.getNearCacheStats().hitCount())
+        .setNearCacheMisses(cache.getNearCacheStats().missCount())
+        .setNearCacheSize(cache.getNearCacheSize())
+        .setFilterExpectedFpp(cache.getFilterExpectedFpp())
+        .setFilterEntries(cache.getFilterEntries())
+        .setFilterSizeBytes(cache.getFilterSizeBytes())
+        .setRunningCommands(commandScheduler.getRunning())
+        .setQueuedCommands(commandScheduler.getQueued())
+        .setReservedAttachments(admissionControl.getReservedAttachments()).build());
     responseObserver.onCompleted();
   }
 
+  private static LatencyStatus toLatencyStatus(LatencyStats stats) {
+    return LatencyStatus.newBuilder()
+        .setRequests(stats.getRequests())
+        .setErrors(stats.getErrors())
+        .setAverageMicros(stats.getAverageMicros())
+        .setMaxMicros(stats.getMaxMicros())
+        .setP50Micros(stats.getPercentileMicros(0.5))
+        .setP99Micros(stats.getPercentileMicros(0.99))
+        .addAllHistogram(Longs.asList(stats.getHistogram()))
+        .build();
+  }
+
   @Override
   public void toggleProperty(final ToggleRequest request,
                              final StreamObserver<ToggleResponse> responseObserver) {
     switch (request.getToggle()) {
-      case BOT -> properties.setBotEnabled(request.getNewValue());
+      case BOT -> {
+        properties.setBotEnabled(request.getNewValue());
+        if (!request.getNewValue()) {
+          commandJobs.cancelAll("bot disabled");
+        }
+      }
       case PRINTING -> properties.setPrintingEnabled(request.getNewValue());
       case CACHE -> properties.setCacheEnabled(request.getNewValue());
       default -> {}
@@ -101,4 +178,46 @@ public class AdminService extends AdminGrpc.AdminImplBase {
     event.fire(new ShutdownEvent());
     Quarkus.asyncExit();
   }
+
+  @Override
+  public void migrateCache(final MigrateCacheRequest request,
+                           final StreamObserver<MigrateCacheReply> responseObserver) {
+    Thread.ofVirtual().name("cache-migration").start(() -> {
+      responseObserver.onNext(MigrateCacheReply
+          .newBuilder()
+          .setMigrated(cache.migrateLegacyKeys())
+          .build());
+      responseObserver.onCompleted();
+    });
+  }
+
+  @Override
+  public void exportCache(final CacheSnapshotRequest request,
+                          final StreamObserver<CacheSnapshotReply> responseObserver) {
+    Thread.ofVirtual().name("cache-export").start(() -> {
+      try {
+        long entries = cache.exportSnapshot(Path.of(request.getPath()));
+        responseObserver.onNext(CacheSnapshotReply.newBuilder().setEntries(entries).build());
+        responseObserver.onCompleted();
+      } catch (IOException e) {
+        responseObserver.onError(
+            Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+      }
+    });
+  }
+
+  @Override
+  public void importCache(final CacheSnapshotRequest request,
+                          final StreamObserver<CacheSnapshotReply> responseObserver) {
+    Thread.ofVirtual().name("cache-import").start(() -> {
+      try {
+        long entries = cache.importSnapshot(Path.of(request.getPath()));
+        responseObserver.onNext(CacheSnapshotReply.newBuilder().setEntries(entries).build());
+        responseObserver.onCompleted();
+      } catch (IOException e) {
+        responseObserver.onError(
+            Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+      }
+    });
+  }
 }
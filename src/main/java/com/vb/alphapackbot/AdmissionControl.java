@@ -0,0 +1,128 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.vb.alphapackbot;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import jakarta.inject.Singleton;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>Decides whether a command may run at all, so that a few users can not overload the bot
+ * for everyone.</p>
+ * <p>Commands are rate limited per user to 'command-rate-per-user' (0.2 per second by default)
+ * and per guild to 'command-rate-per-guild' (2 per second), both allowing bursts of one second
+ * worth of commands (at least one). A rejected command takes no permit from either limit.</p>
+ * <p>Admitted commands reserve the attachments they have to download; at most
+ * 'command-attachment-budget' (50000) attachments are reserved at once. A command larger than
+ * the whole budget runs only when nothing else is reserved.</p>
+ */
+@Singleton
+public class AdmissionControl {
+  private final Lock lock = new ReentrantLock();
+  private final LoadingCache<Long, TokenBucket> userLimiters;
+  private final LoadingCache<Long, TokenBucket> guildLimiters;
+  private final long attachmentBudget;
+  private final AtomicLong reserved = new AtomicLong();
+
+  public AdmissionControl() {
+    this(Double.parseDouble(System.getProperty("command-rate-per-user", "0.2")),
+        Double.parseDouble(System.getProperty("command-rate-per-guild", "2")),
+        Long.getLong("command-attachment-budget", 50_000));
+  }
+
+  AdmissionControl(double userRate, double guildRate, long attachmentBudget) {
+    this.userLimiters = limiters(userRate);
+    this.guildLimiters = limiters(guildRate);
+    this.attachmentBudget = attachmentBudget;
+  }
+
+  private static LoadingCache<Long, TokenBucket> limiters(double rate) {
+    return CacheBuilder.newBuilder()
+        .expireAfterAccess(10, TimeUnit.MINUTES)
+        .build(CacheLoader.from(() -> new TokenBucket(
+            Math.max(1, rate), TimeUnit.SECONDS.toNanos(1) / rate, System.nanoTime())));
+  }
+
+  /**
+   * Takes a permit from the rate limits of the user and the guild, from neither if one of them
+   * is exceeded.
+   *
+   * @return false if either limit is exceeded
+   */
+  public boolean tryAcquire(long guildId, long userId) {
+    TokenBucket user = userLimiters.getUnchecked(userId);
+    TokenBucket guild = guildLimiters.getUnchecked(guildId);
+    lock.lock();
+    try {
+      long now = System.nanoTime();
+      if (user.waitNanos(0, now) > 0 || guild.waitNanos(0, now) > 0) {
+        return false;
+      }
+      user.take();
+      guild.take();
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Reserves work of a command, the reservation must be closed once the command finishes.
+   *
+   * @param attachments number of attachments the command may classify
+   * @return the reservation, or empty if the budget is exhausted
+   */
+  public Optional<Reservation> reserve(long attachments) {
+    long current;
+    do {
+      current = reserved.get();
+      if (current > 0 && current + attachments > attachmentBudget) {
+        return Optional.empty();
+      }
+    } while (!reserved.compareAndSet(current, current + attachments));
+    return Optional.of(new Reservation(attachments));
+  }
+
+  public long getReservedAttachments() {
+    return reserved.get();
+  }
+
+  /** Attachments reserved by one command. */
+  public final class Reservation implements AutoCloseable {
+    private final long attachments;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private Reservation(long attachments) {
+      this.attachments = attachments;
+    }
+
+    @Override
+    public void close() {
+      if (closed.compareAndSet(false, true)) {
+        reserved.addAndGet(-attachments);
+      }
+    }
+  }
+}
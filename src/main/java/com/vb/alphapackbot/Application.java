@@ -25,16 +25,16 @@ import io.quarkus.vertx.ConsumeEvent;
 import io.smallrye.mutiny.Uni;
 import jakarta.enterprise.event.Observes;
 import jakarta.inject.Inject;
-import net.dv8tion.jda.api.JDA;
 import net.dv8tion.jda.api.entities.Activity;
+import net.dv8tion.jda.api.sharding.ShardManager;
 
 public class Application implements QuarkusApplication {
 
-  @Inject JDA jda;
+  @Inject ShardManager shardManager;
 
   @Override
   public int run(String... args) throws Exception {
-    if (jda == null) {
+    if (shardManager == null) {
       System.exit(1);
     }
     Quarkus.waitForExit();
@@ -43,8 +43,8 @@ public class Application implements QuarkusApplication {
 
   void onStop(@Observes ShutdownEvent ev) {
     Log.info("Shutdown");
-    if (jda != null) {
-      jda.shutdownNow();
+    if (shardManager != null) {
+      shardManager.shutdown();
     }
   }
 
@@ -57,11 +57,11 @@ public class Application implements QuarkusApplication {
   @ConsumeEvent(value = "set-activity")
   public Uni<Status> setActivity(BotStatusRequest request) {
     switch (request.getType()) {
-      case PLAYING -> jda.getPresence().setActivity(Activity.playing(request.getName()));
-      case COMPETING -> jda.getPresence().setActivity(Activity.competing(request.getName()));
-      case LISTENING -> jda.getPresence().setActivity(Activity.listening(request.getName()));
-      case WATCHING -> jda.getPresence().setActivity(Activity.watching(request.getName()));
-      case CLEAR -> jda.getPresence().setActivity(null);
+      case PLAYING -> shardManager.setActivity(Activity.playing(request.getName()));
+      case COMPETING -> shardManager.setActivity(Activity.competing(request.getName()));
+      case LISTENING -> shardManager.setActivity(Activity.listening(request.getName()));
+      case WATCHING -> shardManager.setActivity(Activity.watching(request.getName()));
+      case CLEAR -> shardManager.setActivity(null);
       default -> {
         return Uni.createFrom().item(() -> Status.INVALID_ARGUMENT);
       }
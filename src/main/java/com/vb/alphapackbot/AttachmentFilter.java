@@ -0,0 +1,166 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.function.LongConsumer;
+import org.jboss.logging.Logger;
+
+/**
+ * <p>Bloom filter over the IDs of all cached attachments, letting {@link Cache} skip redis for
+ * attachments that were never cached.</p>
+ * <p>Sized by the 'cache-filter-size' (10 000 000 by default) and 'cache-filter-fpp' (0.01 by
+ * default) system properties. The filter only answers "absent" once it was filled, either from
+ * a snapshot ('cache-filter-file') or by a {@link #rebuild(Rebuild)} from redis. Additions made
+ * during a rebuild go to both the current and the rebuilt filter.</p>
+ */
+final class AttachmentFilter {
+  private static final Logger log = Logger.getLogger(AttachmentFilter.class);
+  private final long expectedInsertions;
+  private final double fpp;
+  private volatile BloomFilter<Long> filter;
+  private volatile BloomFilter<Long> rebuilding;
+  private volatile boolean ready;
+  private volatile boolean modified;
+
+  AttachmentFilter() {
+    this(Long.getLong("cache-filter-size", 10_000_000),
+        Double.parseDouble(System.getProperty("cache-filter-fpp", "0.01")));
+  }
+
+  AttachmentFilter(long expectedInsertions, double fpp) {
+    this.expectedInsertions = expectedInsertions;
+    this.fpp = fpp;
+    this.filter = create();
+  }
+
+  private BloomFilter<Long> create() {
+    return BloomFilter.create(Funnels.longFunnel(), expectedInsertions, fpp);
+  }
+
+  /**
+   * Checks whether an attachment may be cached. Always true until the filter was filled.
+   */
+  boolean mightContain(long attachmentId) {
+    return !ready || filter.mightContain(attachmentId);
+  }
+
+  void put(long attachmentId) {
+    BloomFilter<Long> next = rebuilding;
+    filter.put(attachmentId);
+    if (next != null) {
+      next.put(attachmentId);
+    }
+    modified = true;
+  }
+
+  boolean isReady() {
+    return ready;
+  }
+
+  /** Source of all cached attachment IDs. */
+  @FunctionalInterface
+  interface Rebuild {
+    void forEachAttachment(LongConsumer consumer) throws Exception;
+  }
+
+  /**
+   * Replaces the filter by one built from all IDs provided by the source. The current filter
+   * stays in use until the rebuild succeeds, concurrent rebuilds run one after another.
+   *
+   * @return false if the source failed
+   */
+  synchronized boolean rebuild(Rebuild source) {
+    BloomFilter<Long> next = create();
+    rebuilding = next;
+    try {
+      source.forEachAttachment(next::put);
+    } catch (Exception e) {
+      rebuilding = null;
+      log.warn("Failed to rebuild attachment filter!", e);
+      return false;
+    }
+    filter = next;
+    rebuilding = null;
+    ready = true;
+    modified = true;
+    log.infof("Attachment filter rebuilt with approximately %d entries.",
+        next.approximateElementCount());
+    return true;
+  }
+
+  /**
+   * Loads a snapshot written by {@link #snapshot(Path)}.
+   */
+  void load(Path file) {
+    if (!Files.exists(file)) {
+      return;
+    }
+    try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+      filter = BloomFilter.readFrom(in, Funnels.longFunnel());
+      ready = true;
+      log.infof("Loaded attachment filter snapshot %s.", file);
+    } catch (IOException | RuntimeException e) {
+      log.warnf(e, "Failed to load attachment filter snapshot %s!", file);
+    }
+  }
+
+  /**
+   * Writes the filter to disk if it changed since the last snapshot.
+   */
+  void snapshot(Path file) {
+    if (!ready || !modified) {
+      return;
+    }
+    modified = false;
+    try {
+      Path directory = file.toAbsolutePath().getParent();
+      Path temp = Files.createTempFile(directory, "filter", ".tmp");
+      try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp))) {
+        filter.writeTo(out);
+      }
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      modified = true;
+      log.warnf(e, "Failed to write attachment filter snapshot %s!", file);
+    }
+  }
+
+  /** Probability of a false positive given the current number of entries. */
+  double expectedFpp() {
+    return filter.expectedFpp();
+  }
+
+  long approximateElementCount() {
+    return filter.approximateElementCount();
+  }
+
+  /** Size of the bit array in bytes. */
+  long sizeInBytes() {
+    double bits = -expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2));
+    return (long) Math.ceil(bits / Long.SIZE) * Long.BYTES;
+  }
+}
@@ -16,81 +16,650 @@
 
 package com.vb.alphapackbot;
 
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongFunction;
 import jakarta.inject.Inject;
 import jakarta.inject.Singleton;
 import org.jboss.logging.Logger;
-import redis.clients.jedis.Jedis;
-import redis.clients.jedis.JedisPool;
-import redis.clients.jedis.JedisPoolConfig;
 import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisException;
 
+/**
+ * <p>Multi tier cache of computed rarities.</p>
+ * <p>Rarity of an attachment never changes once computed, so a bounded in-process near cache
+ * keyed by attachment ID ('near-cache-size' system property, 500 000 entries by default) sits in
+ * front of redis. Reads go through to redis on a near miss, writes go to both. Redis is accessed
+ * through a {@link CacheBackend} (standalone, cluster or sharded) in batches: lookups and
+ * buffered writes are pipelined. See {@link CacheSchema} for the layout of the values.</p>
+ * <p>Every write is also recorded in a memory-mapped {@link LocalRarityStore} ('local-store-file'
+ * system property, disabled if not set) and flagged as pending until redis confirms it. Redis is
+ * guarded by a {@link CircuitBreaker}: while the circuit is open, values are served from and
+ * recorded to the local store only. A background task probes redis and, once it's back, writes
+ * all pending values to it.</p>
+ * <p>A {@link CacheSnapshot} set by the 'cache-snapshot-file' system property is memory-mapped as
+ * an additional read-only tier behind the local store. Snapshots are written by
+ * {@link #exportSnapshot(Path)} and loaded into redis by {@link #importSnapshot(Path)}.</p>
+ * <p>An {@link AttachmentFilter} over all cached attachment IDs lets lookups of attachments that
+ * were never cached skip redis and the local store. It's loaded from its snapshot
+ * ('cache-filter-file', not written if not set) and rebuilt from a SCAN of redis at startup, and
+ * written back every 'cache-filter-snapshot-interval' seconds (300 by default). The filter only
+ * learns writes of this process, so it's rebuilt every 'cache-filter-rebuild-interval' seconds
+ * (one hour by default) to pick up those of others. It's turned off by the 'cache-filter'
+ * system property, by default when this process runs a slice of the shards.</p>
+ * <p>{@link RarityTypes#UNKNOWN} results are cached in redis only, where they expire after
+ * 'cache-unknown-ttl' seconds (7 days by default). Values computed by an older classifier
+ * version are still returned, and their attachments are queued for re-classification, see
+ * {@link #takeStale()}.</p>
+ */
 @Singleton
 public class Cache {
   private static final Logger log = Logger.getLogger(Cache.class);
-  private final JedisPool jedisPool;
-  private boolean available;
+  private static final int WRITE_BATCH_SIZE = Integer.getInteger("cache-write-batch", 100);
+  private static final boolean LEGACY_LOOKUP =
+      Boolean.parseBoolean(System.getProperty("cache-legacy-lookup", "false"));
+  private final CacheBackend backend;
+  private final CircuitBreaker breaker = new CircuitBreaker();
+  private final LocalRarityStore localStore;
+  private final CacheSnapshot snapshotTier;
+  private final AttachmentFilter filter = new AttachmentFilter();
+  private final boolean filterEnabled;
+  private final Path filterFile;
+  private final com.google.common.cache.Cache<Long, Byte> nearCache;
+  private final ConcurrentHashMap<Long, Byte> pendingWrites = new ConcurrentHashMap<>();
+  private final ConcurrentLinkedQueue<String> legacyDeletes = new ConcurrentLinkedQueue<>();
+  private final BlockingQueue<AttachmentKey> staleEntries =
+      new LinkedBlockingQueue<>(Integer.getInteger("reclassify-queue-size", 10_000));
+  private final Set<Long> queuedStale = ConcurrentHashMap.newKeySet();
+  private final ScheduledExecutorService writeFlusher =
+      Executors.newSingleThreadScheduledExecutor();
+  private final ExecutorService filterRebuilder = Executors.newSingleThreadExecutor();
+  private final AtomicBoolean filterRebuildQueued = new AtomicBoolean();
+  private volatile boolean localStoreFull;
   final Properties properties;
 
   /**
-   * Attempts to create a Redis cache connection. Sets corresponding flags according to result.
+   * Attempts to create a Redis cache connection and opens the local store. If redis is not
+   * reachable, the circuit starts open and the connection is retried in the background.
    */
   @Inject
   public Cache(Properties properties) {
     this.properties = properties;
-    JedisPoolConfig config = new JedisPoolConfig();
-    config.setBlockWhenExhausted(true);
-    config.setMinIdle(1);
-    config.setMaxIdle(5);
-    config.setMaxTotal(5);
-    JedisPool jedisPool = null;
-    Jedis jedis = null;
+    this.nearCache = CacheBuilder.newBuilder()
+        .maximumSize(Long.getLong("near-cache-size", 500_000))
+        .recordStats()
+        .build();
+    this.localStore = openLocalStore();
+    this.snapshotTier = openSnapshotTier();
+    // shards run in separate processes sharing redis, a filter would miss their writes
+    this.filterEnabled = Boolean.parseBoolean(System.getProperty("cache-filter",
+        Boolean.toString(System.getProperty("shard-min") == null
+            && System.getProperty("shard-max") == null)));
+    String filterPath = System.getProperty("cache-filter-file", "");
+    this.filterFile = !filterEnabled || filterPath.isEmpty() ? null : Path.of(filterPath);
+    if (filterFile != null) {
+      filter.load(filterFile);
+    }
+    this.backend = CacheBackend.fromProperties();
     try {
-      String redisHost = System.getProperty("redis-host", "redis");
-      String redisPort = System.getProperty("redis-port", "6379");
-      jedisPool = new JedisPool(config, redisHost, Integer.parseInt(redisPort));
-      jedis = jedisPool.getResource();
+      backend.ping();
       log.info("Redis connection established.");
-      this.available = true;
     } catch (JedisConnectionException jce) {
-      log.warn("Unable to connect to redis, disabling cache!");
-      properties.setCacheEnabled(false);
-      this.available = false;
-    } finally {
-      if (jedis != null) {
-        jedis.close();
+      log.warn("Unable to connect to redis, using the local store until it's reachable!");
+      breaker.trip();
+    }
+    long writeInterval = Long.getLong("cache-write-interval", 1000);
+    writeFlusher.scheduleWithFixedDelay(this::flush, writeInterval, writeInterval,
+        TimeUnit.MILLISECONDS);
+    writeFlusher.scheduleWithFixedDelay(this::reconnectIfDue, writeInterval, writeInterval,
+        TimeUnit.MILLISECONDS);
+    if (PoolSizer.AUTO_SIZE) {
+      writeFlusher.scheduleWithFixedDelay(backend::adjustPools, PoolSizer.ADJUST_INTERVAL,
+          PoolSizer.ADJUST_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+    if (filterFile != null) {
+      long snapshotInterval = Long.getLong("cache-filter-snapshot-interval", 300);
+      writeFlusher.scheduleWithFixedDelay(() -> filter.snapshot(filterFile), snapshotInterval,
+          snapshotInterval, TimeUnit.SECONDS);
+    }
+    if (filterEnabled) {
+      long rebuildInterval = Long.getLong("cache-filter-rebuild-interval", 60 * 60);
+      writeFlusher.scheduleWithFixedDelay(this::queueFilterRebuild, rebuildInterval,
+          rebuildInterval, TimeUnit.SECONDS);
+    }
+    if (isAvailable()) {
+      writeFlusher.execute(this::reconcile);
+      queueFilterRebuild();
+      if (Boolean.getBoolean("cache-migrate")) {
+        Thread.ofVirtual().name("cache-migration").start(this::migrateLegacyKeys);
       }
-      this.jedisPool = jedisPool;
+    }
+  }
+
+  private static LocalRarityStore openLocalStore() {
+    String file = System.getProperty("local-store-file", "");
+    if (file.isEmpty()) {
+      return null;
+    }
+    try {
+      return LocalRarityStore.open(Path.of(file), Integer.getInteger("local-store-slots", 1 << 20));
+    } catch (IOException e) {
+      log.warnf(e, "Unable to open local store %s!", file);
+      return null;
+    }
+  }
+
+  private static CacheSnapshot openSnapshotTier() {
+    String file = System.getProperty("cache-snapshot-file");
+    if (file == null || !Files.exists(Path.of(file))) {
+      return null;
+    }
+    try {
+      CacheSnapshot snapshot = CacheSnapshot.open(Path.of(file));
+      log.infof("Using snapshot %s with %d entries as read-only tier.", file, snapshot.size());
+      return snapshot;
+    } catch (IOException e) {
+      log.warnf(e, "Unable to open snapshot %s!", file);
+      return null;
     }
   }
 
   /**
-   * Attempts to get value specified by key and parses the rarity from it.
+   * Attempts to get the rarity of an attachment, first from the near cache, then from redis.
+   * Values found in redis are added to the near cache.
    *
-   * @param key key of value to get from redis
+   * @param attachmentId ID of the attachment
+   * @param url          URL of the attachment, key in the legacy layout
    * @return {@link Optional} containing {@link RarityTypes} or empty.
    */
-  public Optional<RarityTypes> getAndParse(final String key) {
-    if (available && properties.isCacheEnabled()) {
-      try (Jedis jedis = jedisPool.getResource()) {
-        final String value = jedis.get(key);
-        return RarityTypes.parse(value);
+  public Optional<RarityTypes> getAndParse(final long attachmentId, final String url) {
+    return Optional.ofNullable(getAll(List.of(new AttachmentKey(attachmentId, url)))
+        .get(attachmentId));
+  }
+
+  /**
+   * Looks up rarities of multiple attachments at once. Near cache misses are fetched from the
+   * {@link CacheBackend} in a single pipeline, then from the local store and the snapshot.
+   * Attachments still missing are looked up by URL in the legacy layout if
+   * 'cache-legacy-lookup' is true, and migrated when found. Otherwise legacy entries are only
+   * reachable once moved by {@link #migrateLegacyKeys()} (the MigrateCache admin call or the
+   * 'cache-migrate' system property).
+   *
+   * @param keys attachments to look up
+   * @return map of attachment ID to rarity, containing only attachments found in the cache
+   */
+  public Map<Long, RarityTypes> getAll(final List<AttachmentKey> keys) {
+    Map<Long, RarityTypes> found = new HashMap<>();
+    if (!properties.isCacheEnabled() || keys.isEmpty()) {
+      return found;
+    }
+    List<AttachmentKey> misses = new ArrayList<>();
+    for (AttachmentKey key : keys) {
+      Byte nearValue = nearCache.getIfPresent(key.attachmentId());
+      if (nearValue != null) {
+        found.put(key.attachmentId(), decode(key, nearValue));
+      } else if (filter.mightContain(key.attachmentId())) {
+        misses.add(key);
+      }
+    }
+    if (isAvailable() && !misses.isEmpty()) {
+      misses = getAllFromRedis(misses, found);
+    }
+    if (localStore != null && !misses.isEmpty()) {
+      misses = getAllFromTier(misses, found, localStore::get);
+    }
+    if (snapshotTier != null && !misses.isEmpty()) {
+      misses = getAllFromTier(misses, found, snapshotTier::get);
+    }
+    if (LEGACY_LOOKUP && isAvailable() && !misses.isEmpty()) {
+      getAllFromLegacyKeys(misses, found);
+    }
+    return found;
+  }
+
+  private List<AttachmentKey> getAllFromRedis(List<AttachmentKey> keys,
+                                              Map<Long, RarityTypes> found) {
+    Map<Long, Byte> values;
+    try {
+      values = backend.get(keys.stream().map(AttachmentKey::attachmentId).toList());
+      breaker.recordSuccess();
+    } catch (JedisConnectionException e) {
+      onConnectionFailure(e);
+      return keys;
+    }
+    List<AttachmentKey> misses = new ArrayList<>();
+    for (AttachmentKey key : keys) {
+      Byte value = values.get(key.attachmentId());
+      if (value != null) {
+        putNear(key.attachmentId(), value);
+        found.put(key.attachmentId(), decode(key, value));
+      } else {
+        misses.add(key);
+      }
+    }
+    return misses;
+  }
+
+  private List<AttachmentKey> getAllFromTier(List<AttachmentKey> keys,
+                                             Map<Long, RarityTypes> found,
+                                             LongFunction<OptionalInt> tier) {
+    List<AttachmentKey> misses = new ArrayList<>();
+    for (AttachmentKey key : keys) {
+      OptionalInt value = tier.apply(key.attachmentId());
+      // UNKNOWN only expires in redis, local stores written before it was skipped may hold it
+      if (value.isPresent() && !CacheSchema.isUnknown((byte) value.getAsInt())) {
+        putNear(key.attachmentId(), (byte) value.getAsInt());
+        found.put(key.attachmentId(), decode(key, (byte) value.getAsInt()));
+      } else {
+        misses.add(key);
+      }
+    }
+    return misses;
+  }
+
+  private void getAllFromLegacyKeys(List<AttachmentKey> keys, Map<Long, RarityTypes> found) {
+    List<String> values;
+    try {
+      values = backend.getLegacy(keys.stream().map(AttachmentKey::url).toList());
+    } catch (JedisConnectionException e) {
+      onConnectionFailure(e);
+      return;
+    }
+    for (int i = 0; i < keys.size(); i++) {
+      Optional<RarityTypes> value = RarityTypes.parse(values.get(i));
+      if (value.isPresent()) {
+        AttachmentKey key = keys.get(i);
+        byte encoded = CacheSchema.encode(value.get(), CacheSchema.LEGACY_VERSION);
+        found.put(key.attachmentId(), decode(key, encoded));
+        queueWrite(key.attachmentId(), encoded);
+        legacyDeletes.add(key.url());
+      }
+    }
+  }
+
+  /**
+   * Adds a value to the near cache. {@link RarityTypes#UNKNOWN} has to expire, so it replaces any
+   * known value by an absent one and is read from redis again.
+   */
+  private void putNear(long attachmentId, byte value) {
+    if (CacheSchema.isUnknown(value)) {
+      nearCache.invalidate(attachmentId);
+    } else {
+      nearCache.put(attachmentId, value);
+    }
+  }
+
+  private RarityTypes decode(AttachmentKey key, byte value) {
+    if (CacheSchema.isStale(value) && queuedStale.add(key.attachmentId())
+        && !staleEntries.offer(key)) {
+      queuedStale.remove(key.attachmentId());
+    }
+    return CacheSchema.decodeRarity(value);
+  }
+
+  /**
+   * Waits for the next attachment whose cached rarity was computed by an older classifier.
+   *
+   * @return attachment to re-classify
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public AttachmentKey takeStale() throws InterruptedException {
+    AttachmentKey key = staleEntries.take();
+    queuedStale.remove(key.attachmentId());
+    return key;
+  }
+
+  /**
+   * Saves the rarity to the near cache and the local store and queues it for writing to redis if
+   * caching is enabled. {@link RarityTypes#UNKNOWN} replaces any known value in redis and
+   * expires there, it's not recorded in the local store.
+   * Queued writes are flushed in one pipeline once 'cache-write-batch' (100 by default) writes
+   * are pending or every 'cache-write-interval' milliseconds (1000 by default).
+   */
+  public void save(final long attachmentId, final RarityTypes rarity) {
+    if (!properties.isCacheEnabled()) {
+      return;
+    }
+    queueWrite(attachmentId, CacheSchema.encode(rarity));
+  }
+
+  private void queueWrite(final long attachmentId, final byte value) {
+    putNear(attachmentId, value);
+    filter.put(attachmentId);
+    if (localStore != null && !CacheSchema.isUnknown(value)
+        && !localStore.put(attachmentId, value, true) && !localStoreFull) {
+      localStoreFull = true;
+      log.warn("Local store is full, new values are kept in memory only!");
+    }
+    if (isAvailable()) {
+      pendingWrites.put(attachmentId, value);
+      if (pendingWrites.size() >= WRITE_BATCH_SIZE) {
+        writeFlusher.execute(this::flush);
+      }
+    }
+  }
+
+  /**
+   * Writes all pending values to redis and removes migrated legacy keys using a pipeline.
+   * Values that could not be written stay pending until the next flush after redis is back.
+   */
+  public synchronized void flush() {
+    if (localStore != null) {
+      localStore.force();
+    }
+    if ((pendingWrites.isEmpty() && legacyDeletes.isEmpty()) || !isAvailable()) {
+      return;
+    }
+    Map<Long, Byte> batch = new HashMap<>();
+    for (Long attachmentId : pendingWrites.keySet()) {
+      Byte value = pendingWrites.remove(attachmentId);
+      if (value != null) {
+        batch.put(attachmentId, value);
+      }
+    }
+    List<String> deletes = new ArrayList<>();
+    for (String key = legacyDeletes.poll(); key != null; key = legacyDeletes.poll()) {
+      deletes.add(key);
+    }
+    try {
+      backend.put(batch);
+      if (!deletes.isEmpty()) {
+        backend.deleteLegacy(deletes);
+      }
+      breaker.recordSuccess();
+      if (localStore != null) {
+        localStore.markSynced(batch);
+      }
+    } catch (JedisConnectionException e) {
+      onConnectionFailure(e);
+      legacyDeletes.addAll(deletes);
+      // the local store doesn't hold UNKNOWN values or values that didn't fit, keep them all
+      batch.forEach(pendingWrites::putIfAbsent);
+    } catch (JedisException e) {
+      log.warnf(e, "Failed to write %d cached values to redis!", batch.size());
+    }
+  }
+
+  private void onConnectionFailure(JedisConnectionException e) {
+    if (Thread.currentThread().isInterrupted()) {
+      // Interrupting a cancelled command closes its connection, redis itself is fine
+      throw new CancellationException("Cache lookup cancelled");
+    }
+    if (breaker.recordFailure()) {
+      log.warnf(e, "Lost connection to redis, using the local store until it's reachable!");
+    }
+  }
+
+  private void reconnectIfDue() {
+    if (!breaker.isProbeDue()) {
+      return;
+    }
+    try {
+      backend.ping();
+    } catch (JedisConnectionException e) {
+      breaker.recordFailure();
+      return;
+    }
+    breaker.recordSuccess();
+    log.info("Redis connection re-established.");
+    reconcile();
+    if (!filter.isReady()) {
+      queueFilterRebuild();
+    }
+  }
+
+  /**
+   * Rebuilds the filter in the background, so the SCAN doesn't hold up flushing writes. The
+   * filter in use is swapped for the rebuilt one once it's done.
+   */
+  private void queueFilterRebuild() {
+    if (filterEnabled && filterRebuildQueued.compareAndSet(false, true)) {
+      filterRebuilder.execute(() -> {
+        filterRebuildQueued.set(false);
+        rebuildFilter();
+      });
+    }
+  }
+
+  /**
+   * Rebuilds the {@link AttachmentFilter} from the local tiers and SCANs over all rarity keys
+   * in redis, including the legacy ones.
+   *
+   * @return true if the filter was rebuilt, false if it's disabled or redis is unavailable
+   */
+  public boolean rebuildFilter() {
+    if (!filterEnabled || !isAvailable()) {
+      return false;
+    }
+    return filter.rebuild(consumer -> {
+      if (localStore != null) {
+        localStore.forEachKey(consumer);
+      }
+      if (snapshotTier != null) {
+        snapshotTier.forEach((attachmentId, value) -> consumer.accept(attachmentId));
+      }
+      backend.scan(CacheSchema.BUCKET_PREFIX + "*", keys -> backend.getBuckets(keys.stream()
+              .map(key -> Long.parseLong(key.substring(CacheSchema.BUCKET_PREFIX.length())))
+              .toList())
+          .forEach(bucket -> bucket.keySet().forEach(consumer::accept)));
+      backend.scan(CacheSchema.UNKNOWN_PREFIX + "*", keys -> keys.forEach(key -> consumer.accept(
+          Long.parseLong(key.substring(CacheSchema.UNKNOWN_PREFIX.length())))));
+      backend.scan("http*", keys -> keys.forEach(
+          key -> CacheSchema.attachmentIdFromUrl(key).ifPresent(consumer)));
+    });
+  }
+
+  /**
+   * Writes values recorded in the local store while redis was unreachable to redis.
+   */
+  private void reconcile() {
+    if (localStore == null) {
+      return;
+    }
+    long written = 0;
+    int cursor = 0;
+    do {
+      Map<Long, Byte> batch = new HashMap<>();
+      cursor = localStore.pendingEntries(cursor, WRITE_BATCH_SIZE, batch);
+      if (batch.isEmpty()) {
+        continue;
       }
+      try {
+        backend.put(batch);
+      } catch (JedisConnectionException e) {
+        onConnectionFailure(e);
+        return;
+      }
+      localStore.markSynced(batch);
+      written += batch.size();
+    } while (cursor != 0);
+    if (written > 0) {
+      log.infof("Reconciled %d values from the local store into redis.", written);
     }
-    return Optional.empty();
   }
 
   /**
-   * Saves the key/value pair to database if it's available and caching is enabled.
+   * Moves all entries of the legacy layout (URL keys with rarity names) to the compact layout.
+   * Migrated entries are marked with {@link CacheSchema#LEGACY_VERSION} and never replace values
+   * already present in the compact layout.
+   *
+   * @return number of migrated entries
    */
-  public void save(final String key, final String value) {
-    if (available && properties.isCacheEnabled()) {
-      try (Jedis jedis = jedisPool.getResource()) {
-        jedis.set(key, value);
+  public long migrateLegacyKeys() {
+    if (!isAvailable()) {
+      return 0;
+    }
+    long[] migrated = new long[1];
+    try {
+      backend.scan("http*", legacyKeys -> {
+        List<String> values = backend.getLegacy(legacyKeys);
+        Map<Long, Byte> batch = new HashMap<>();
+        List<String> migratedKeys = new ArrayList<>();
+        for (int i = 0; i < legacyKeys.size(); i++) {
+          OptionalLong attachmentId = CacheSchema.attachmentIdFromUrl(legacyKeys.get(i));
+          Optional<RarityTypes> rarity = RarityTypes.parse(values.get(i));
+          if (attachmentId.isPresent() && rarity.isPresent()) {
+            filter.put(attachmentId.getAsLong());
+            batch.put(attachmentId.getAsLong(),
+                CacheSchema.encode(rarity.get(), CacheSchema.LEGACY_VERSION));
+            migratedKeys.add(legacyKeys.get(i));
+          }
+        }
+        if (!batch.isEmpty()) {
+          backend.putIfAbsent(batch);
+          backend.deleteLegacy(migratedKeys);
+          migrated[0] += batch.size();
+        }
+      });
+    } catch (JedisConnectionException e) {
+      onConnectionFailure(e);
+      log.warnf("Cache migration interrupted after %d entries!", migrated[0]);
+      return migrated[0];
+    }
+    log.infof("Migrated %d cache entries to the compact layout.", migrated[0]);
+    return migrated[0];
+  }
+
+  /**
+   * Writes all known rarities in redis to a snapshot. Buckets are visited in ascending order, so
+   * only the list of bucket keys is held in memory. {@link RarityTypes#UNKNOWN} results and
+   * legacy keys are not exported.
+   *
+   * @param file snapshot file to write
+   * @return number of exported entries
+   * @throws IOException if the snapshot can not be written or redis is not available
+   */
+  public long exportSnapshot(Path file) throws IOException {
+    if (!isAvailable()) {
+      throw new IOException("Redis is not available");
+    }
+    TreeSet<Long> buckets = new TreeSet<>();
+    try (CacheSnapshot.Writer writer = new CacheSnapshot.Writer(file)) {
+      backend.scan(CacheSchema.BUCKET_PREFIX + "*", keys -> keys.forEach(key -> buckets.add(
+          Long.parseLong(key.substring(CacheSchema.BUCKET_PREFIX.length())))));
+      List<Long> sorted = new ArrayList<>(buckets);
+      for (int from = 0; from < sorted.size(); from += WRITE_BATCH_SIZE) {
+        int to = Math.min(sorted.size(), from + WRITE_BATCH_SIZE);
+        List<Map<Long, Byte>> values = backend.getBuckets(sorted.subList(from, to));
+        for (Map<Long, Byte> bucket : values) {
+          for (Map.Entry<Long, Byte> entry : new TreeMap<>(bucket).entrySet()) {
+            writer.add(entry.getKey(), entry.getValue());
+          }
+        }
+      }
+      log.infof("Exported %d cache entries to %s.", writer.size(), file);
+      return writer.size();
+    } catch (JedisConnectionException e) {
+      onConnectionFailure(e);
+      throw new IOException("Lost connection to redis during export", e);
+    }
+  }
+
+  /**
+   * Loads a snapshot into redis in pipelined batches. Values already present in redis are kept.
+   *
+   * @param file snapshot file to load
+   * @return number of imported entries
+   * @throws IOException if the snapshot can not be read or redis is not available
+   */
+  public long importSnapshot(Path file) throws IOException {
+    if (!isAvailable()) {
+      throw new IOException("Redis is not available");
+    }
+    int batchSize = Integer.getInteger("cache-import-batch", 10_000);
+    try (CacheSnapshot snapshot = CacheSnapshot.open(file)) {
+      Map<Long, Byte> batch = new HashMap<>();
+      long[] imported = new long[1];
+      snapshot.forEach((attachmentId, value) -> {
+        filter.put(attachmentId);
+        batch.put(attachmentId, value);
+        if (batch.size() == batchSize) {
+          backend.putIfAbsent(batch);
+          imported[0] += batch.size();
+          batch.clear();
+        }
+      });
+      backend.putIfAbsent(batch);
+      imported[0] += batch.size();
+      log.infof("Imported %d cache entries from %s.", imported[0], file);
+      return imported[0];
+    } catch (JedisConnectionException e) {
+      onConnectionFailure(e);
+      throw new IOException("Lost connection to redis during import", e);
+    }
+  }
+
+  @PreDestroy
+  void shutdown() {
+    writeFlusher.shutdown();
+    filterRebuilder.shutdownNow();
+    flush();
+    if (filterFile != null) {
+      filter.snapshot(filterFile);
+    }
+    try {
+      backend.close();
+      if (localStore != null) {
+        localStore.close();
+      }
+      if (snapshotTier != null) {
+        snapshotTier.close();
       }
+    } catch (IOException e) {
+      log.warn("Failed to close local cache files!", e);
     }
   }
+
+  /** Whether redis is reachable, i.e. the circuit is closed. */
   public boolean isAvailable() {
-    return this.available;
+    return breaker.isClosed();
+  }
+
+  public CacheStats getNearCacheStats() {
+    return nearCache.stats();
+  }
+
+  public long getNearCacheSize() {
+    return nearCache.size();
+  }
+
+  public double getFilterExpectedFpp() {
+    return filter.expectedFpp();
+  }
+
+  public long getFilterEntries() {
+    return filter.approximateElementCount();
+  }
+
+  public long getFilterSizeBytes() {
+    return filter.sizeInBytes();
+  }
+
+  public Map<String, NodeStats> getNodeStats() {
+    return backend.getNodeStats();
   }
 }
@@ -0,0 +1,120 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import redis.clients.jedis.HostAndPort;
+
+/**
+ * <p>Storage behind {@link Cache}, see {@link CacheSchema} for the layout of the values.</p>
+ * <p>Selected by the 'cache-backend' system property:</p>
+ * <ul>
+ *   <li>'standalone' (default): a single redis at 'redis-host' / 'redis-port',
+ *   {@link RedisNode}</li>
+ *   <li>'cluster': Redis Cluster seeded by 'redis-nodes', {@link ClusterBackend}</li>
+ *   <li>'sharded': client-side consistent hashing over the standalone redis instances listed in
+ *   'redis-nodes', {@link ShardedBackend}</li>
+ * </ul>
+ * <p>'redis-nodes' is a comma separated list of host:port pairs. Connection failures surface as
+ * {@link redis.clients.jedis.exceptions.JedisConnectionException}.</p>
+ */
+public interface CacheBackend extends Closeable {
+
+  /** Checks that all nodes are reachable. */
+  void ping();
+
+  /**
+   * Looks up encoded values of attachments, known rarities first, then
+   * {@link RarityTypes#UNKNOWN} results.
+   *
+   * @param attachmentIds IDs of the attachments
+   * @return map of attachment ID to encoded value, containing only found attachments
+   */
+  Map<Long, Byte> get(List<Long> attachmentIds);
+
+  /**
+   * Stores encoded values. {@link RarityTypes#UNKNOWN} values replace known ones and expire.
+   */
+  void put(Map<Long, Byte> values);
+
+  /**
+   * Stores encoded known rarities, keeping values already present.
+   */
+  void putIfAbsent(Map<Long, Byte> values);
+
+  /**
+   * Reads all values of rarity buckets.
+   *
+   * @param buckets bucket numbers, see {@link CacheSchema#bucketKey(long)}
+   * @return for each bucket, map of attachment ID to encoded value
+   */
+  List<Map<Long, Byte>> getBuckets(List<Long> buckets);
+
+  /**
+   * Reads values of keys in the legacy layout.
+   *
+   * @param keys attachment URLs
+   * @return values in the order of the keys, null for missing keys
+   */
+  List<String> getLegacy(List<String> keys);
+
+  void deleteLegacy(List<String> keys);
+
+  /**
+   * Iterates over all keys matching a pattern, in batches. Keys may be passed more than once.
+   */
+  void scan(String pattern, Consumer<List<String>> consumer);
+
+  /** Latency and connection pool statistics per node address. */
+  Map<String, NodeStats> getNodeStats();
+
+  /**
+   * Resizes connection pools based on recent borrow wait times, see {@link PoolSizer}.
+   */
+  default void adjustPools() {
+  }
+
+  /**
+   * Creates the backend selected by system properties.
+   */
+  static CacheBackend fromProperties() {
+    long unknownTtl = Long.getLong("cache-unknown-ttl", 7L * 24 * 60 * 60);
+    String type = System.getProperty("cache-backend", "standalone");
+    return switch (type) {
+      case "standalone" -> new RedisNode(new HostAndPort(
+          System.getProperty("redis-host", "redis"),
+          Integer.parseInt(System.getProperty("redis-port", "6379"))), unknownTtl);
+      case "cluster" -> new ClusterBackend(nodesFromProperties(), unknownTtl);
+      case "sharded" -> new ShardedBackend(nodesFromProperties().stream()
+          .<CacheBackend>map(node -> new RedisNode(node, unknownTtl))
+          .toList());
+      default -> throw new IllegalArgumentException("Unknown cache backend: " + type);
+    };
+  }
+
+  private static List<HostAndPort> nodesFromProperties() {
+    return Arrays.stream(System.getProperty("redis-nodes", "redis:6379").split(","))
+        .map(String::trim)
+        .filter(node -> !node.isEmpty())
+        .map(HostAndPort::from)
+        .toList();
+  }
+}
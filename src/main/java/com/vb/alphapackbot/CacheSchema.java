@@ -0,0 +1,132 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import java.nio.charset.StandardCharsets;
+import java.util.OptionalLong;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * <p>Redis layout of cached rarities.</p>
+ * <p>Rarities are stored in hashes bucketed by the top bits of the attachment snowflake
+ * (roughly 70 minutes of Discord time per bucket), so buckets stay small enough for redis'
+ * compact hash encoding. The field is the remaining 44 bits of the snowflake as 6 bytes, the
+ * value a single byte holding the classifier version and the rarity.</p>
+ * <p>{@link RarityTypes#UNKNOWN} results are not stored in the buckets but under separate keys
+ * with a TTL, so images the classifier can not handle are retried eventually.</p>
+ * <p>The previous layout used the attachment URL as key and the rarity name as value.</p>
+ */
+public final class CacheSchema {
+  static final int BUCKET_SHIFT = 44;
+  static final String BUCKET_PREFIX = "r:";
+  static final String UNKNOWN_PREFIX = "ru:";
+  /** Classifier version of entries migrated from the legacy layout. */
+  public static final int LEGACY_VERSION = 1;
+  private static final int RARITY_BITS = 3;
+  private static final int RARITY_MASK = (1 << RARITY_BITS) - 1;
+  private static final int FIELD_BYTES = 6;
+
+  private CacheSchema() {}
+
+  public static byte[] bucketKey(long attachmentId) {
+    return bucketKeyOf(bucketOf(attachmentId));
+  }
+
+  public static long bucketOf(long attachmentId) {
+    return attachmentId >>> BUCKET_SHIFT;
+  }
+
+  public static byte[] bucketKeyOf(long bucket) {
+    return (BUCKET_PREFIX + bucket).getBytes(StandardCharsets.US_ASCII);
+  }
+
+  public static byte[] unknownKey(long attachmentId) {
+    return (UNKNOWN_PREFIX + attachmentId).getBytes(StandardCharsets.US_ASCII);
+  }
+
+  public static byte[] field(long attachmentId) {
+    byte[] field = new byte[FIELD_BYTES];
+    for (int i = FIELD_BYTES - 1; i >= 0; i--) {
+      field[i] = (byte) attachmentId;
+      attachmentId >>>= 8;
+    }
+    return field;
+  }
+
+  /**
+   * Restores the attachment ID from a bucket key and a field.
+   */
+  public static long attachmentId(byte[] bucketKey, byte[] field) {
+    String key = new String(bucketKey, StandardCharsets.US_ASCII);
+    long attachmentId = Long.parseLong(key.substring(BUCKET_PREFIX.length())) << BUCKET_SHIFT;
+    long low = 0;
+    for (byte b : field) {
+      low = (low << 8) | (b & 0xFF);
+    }
+    return attachmentId | (low & ((1L << BUCKET_SHIFT) - 1));
+  }
+
+  /**
+   * Encodes a rarity computed by the current classifier.
+   */
+  public static byte encode(@NotNull RarityTypes rarity) {
+    return encode(rarity, RarityTypes.CLASSIFIER_VERSION);
+  }
+
+  static byte encode(@NotNull RarityTypes rarity, int classifierVersion) {
+    return (byte) ((classifierVersion << RARITY_BITS) | rarity.ordinal());
+  }
+
+  public static RarityTypes decodeRarity(byte value) {
+    return RarityTypes.values()[value & RARITY_MASK];
+  }
+
+  public static boolean isUnknown(byte value) {
+    return decodeRarity(value) == RarityTypes.UNKNOWN;
+  }
+
+  public static int decodeVersion(byte value) {
+    return (value & 0xFF) >>> RARITY_BITS;
+  }
+
+  /**
+   * Checks whether the value was computed by an older classifier than the current one.
+   */
+  public static boolean isStale(byte value) {
+    return decodeVersion(value) < RarityTypes.CLASSIFIER_VERSION;
+  }
+
+  /**
+   * Extracts the attachment ID from a Discord CDN URL used as key by the previous layout.
+   *
+   * @param url attachment URL
+   * @return attachment ID, or empty if the URL has an unexpected format
+   */
+  public static OptionalLong attachmentIdFromUrl(@NotNull String url) {
+    String[] segments = url.split("[/?]");
+    for (int i = 0; i + 2 < segments.length; i++) {
+      if (segments[i].equals("attachments")) {
+        try {
+          return OptionalLong.of(Long.parseLong(segments[i + 2]));
+        } catch (NumberFormatException e) {
+          return OptionalLong.empty();
+        }
+      }
+    }
+    return OptionalLong.empty();
+  }
+}
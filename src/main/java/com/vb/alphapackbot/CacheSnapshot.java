@@ -0,0 +1,281 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.OptionalInt;
+import java.util.zip.CRC32;
+
+/**
+ * <p>Read-only snapshot of cached rarities, used to warm up a fresh redis or as a memory-mapped
+ * cache tier.</p>
+ * <p>Entries are sorted by attachment ID and stored in blocks of up to {@value #BLOCK_ENTRIES}
+ * entries. Each block holds the delta of every ID from the previous one as a variable length
+ * integer followed by the encoded rarity (see {@link CacheSchema}), and ends with a CRC32 of its
+ * payload. A block index with the first ID and offset of each block follows the blocks, and the
+ * last 8 bytes of the file hold the offset of that index.</p>
+ */
+final class CacheSnapshot implements Closeable {
+  static final int BLOCK_ENTRIES = 4096;
+  private static final int MAGIC = 0x41504253;
+  private static final int FORMAT_VERSION = 1;
+  private final FileChannel channel;
+  private final MappedByteBuffer buffer;
+  private final long[] firstIds;
+  private final int[] offsets;
+  private final long size;
+
+  private CacheSnapshot(FileChannel channel, MappedByteBuffer buffer, long[] firstIds,
+                        int[] offsets, long size) {
+    this.channel = channel;
+    this.buffer = buffer;
+    this.firstIds = firstIds;
+    this.offsets = offsets;
+    this.size = size;
+  }
+
+  /**
+   * Maps a snapshot and verifies the checksums of all its blocks.
+   *
+   * @param file snapshot file
+   * @return opened snapshot
+   * @throws IOException if the file can not be read, has an unknown format or is corrupted
+   */
+  static CacheSnapshot open(Path file) throws IOException {
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+    try {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("Snapshot too large to map: " + channel.size());
+      }
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.limit() < 24 || buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION) {
+        throw new IOException("Not a cache snapshot: " + file);
+      }
+      long size = buffer.getLong(8);
+      int indexOffset = (int) buffer.getLong(buffer.limit() - 8);
+      int blocks = buffer.getInt(indexOffset);
+      long[] firstIds = new long[blocks];
+      int[] offsets = new int[blocks];
+      for (int i = 0; i < blocks; i++) {
+        firstIds[i] = buffer.getLong(indexOffset + 4 + i * 12);
+        offsets[i] = buffer.getInt(indexOffset + 12 + i * 12);
+      }
+      CacheSnapshot snapshot = new CacheSnapshot(channel, buffer, firstIds, offsets, size);
+      for (int i = 0; i < blocks; i++) {
+        snapshot.verify(i);
+      }
+      return snapshot;
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e instanceof IOException io ? io : new IOException("Corrupted snapshot " + file, e);
+    }
+  }
+
+  /** Number of entries in the snapshot. */
+  long size() {
+    return size;
+  }
+
+  OptionalInt get(long attachmentId) {
+    int block = Arrays.binarySearch(firstIds, attachmentId);
+    if (block < 0) {
+      block = -block - 2;
+      if (block < 0) {
+        return OptionalInt.empty();
+      }
+    }
+    int position = offsets[block];
+    int count = buffer.getInt(position + 8);
+    position += 16;
+    long id = firstIds[block];
+    for (int i = 0; i < count && id <= attachmentId; i++) {
+      long delta = 0;
+      int shift = 0;
+      byte b;
+      do {
+        b = buffer.get(position++);
+        delta |= (long) (b & 0x7F) << shift;
+        shift += 7;
+      } while (b < 0);
+      id += delta;
+      byte value = buffer.get(position++);
+      if (id == attachmentId) {
+        return OptionalInt.of(value);
+      }
+    }
+    return OptionalInt.empty();
+  }
+
+  /** Consumer of snapshot entries. */
+  @FunctionalInterface
+  interface EntryConsumer {
+    void accept(long attachmentId, byte value);
+  }
+
+  /**
+   * Passes all entries to the consumer in ascending order of attachment IDs.
+   */
+  void forEach(EntryConsumer consumer) {
+    for (int block = 0; block < firstIds.length; block++) {
+      int position = offsets[block];
+      int count = buffer.getInt(position + 8);
+      position += 16;
+      long id = firstIds[block];
+      for (int i = 0; i < count; i++) {
+        long delta = 0;
+        int shift = 0;
+        byte b;
+        do {
+          b = buffer.get(position++);
+          delta |= (long) (b & 0x7F) << shift;
+          shift += 7;
+        } while (b < 0);
+        id += delta;
+        consumer.accept(id, buffer.get(position++));
+      }
+    }
+  }
+
+  private void verify(int block) throws IOException {
+    int position = offsets[block];
+    if (buffer.getLong(position) != firstIds[block]) {
+      throw new IOException("Block " + block + " does not match the index");
+    }
+    int length = buffer.getInt(position + 12);
+    CRC32 crc = new CRC32();
+    crc.update(buffer.slice(position + 16, length));
+    if ((int) crc.getValue() != buffer.getInt(position + 16 + length)) {
+      throw new IOException("Checksum mismatch in block " + block);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  /**
+   * Writes a snapshot. Entries must be added in strictly ascending order of attachment IDs; the
+   * file only replaces the target once the writer is closed.
+   */
+  static final class Writer implements Closeable {
+    private final Path file;
+    private final Path temp;
+    private final DataOutputStream out;
+    private final byte[] payload = new byte[BLOCK_ENTRIES * 11];
+    private long[] firstIds = new long[64];
+    private int[] offsets = new int[64];
+    private int blocks;
+    private int offset;
+    private long size;
+    private long firstId;
+    private long lastId;
+    private int count;
+    private int length;
+
+    Writer(Path file) throws IOException {
+      this.file = file;
+      this.temp = Files.createTempFile(file.toAbsolutePath().getParent(), "snapshot", ".tmp");
+      OutputStream stream = Files.newOutputStream(temp);
+      this.out = new DataOutputStream(new BufferedOutputStream(stream));
+      out.writeInt(MAGIC);
+      out.writeInt(FORMAT_VERSION);
+      out.writeLong(0);
+      offset = 16;
+    }
+
+    void add(long attachmentId, byte value) throws IOException {
+      if (size > 0 && attachmentId <= lastId) {
+        throw new IllegalArgumentException("Attachment IDs must be ascending: " + attachmentId);
+      }
+      if (count == 0) {
+        firstId = attachmentId;
+        lastId = attachmentId;
+      }
+      long delta = attachmentId - lastId;
+      while ((delta & ~0x7FL) != 0) {
+        payload[length++] = (byte) ((delta & 0x7F) | 0x80);
+        delta >>>= 7;
+      }
+      payload[length++] = (byte) delta;
+      payload[length++] = value;
+      lastId = attachmentId;
+      count++;
+      size++;
+      if (count == BLOCK_ENTRIES) {
+        writeBlock();
+      }
+    }
+
+    private void writeBlock() throws IOException {
+      if (blocks == firstIds.length) {
+        firstIds = Arrays.copyOf(firstIds, blocks * 2);
+        offsets = Arrays.copyOf(offsets, blocks * 2);
+      }
+      firstIds[blocks] = firstId;
+      offsets[blocks] = offset;
+      blocks++;
+      CRC32 crc = new CRC32();
+      crc.update(payload, 0, length);
+      out.writeLong(firstId);
+      out.writeInt(count);
+      out.writeInt(length);
+      out.write(payload, 0, length);
+      out.writeInt((int) crc.getValue());
+      offset += 20 + length;
+      if (offset < 0) {
+        throw new IOException("Snapshot exceeds 2 GiB");
+      }
+      count = 0;
+      length = 0;
+    }
+
+    long size() {
+      return size;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (count > 0) {
+        writeBlock();
+      }
+      out.writeInt(blocks);
+      for (int i = 0; i < blocks; i++) {
+        out.writeLong(firstIds[i]);
+        out.writeInt(offsets[i]);
+      }
+      out.writeLong(offset);
+      out.close();
+      try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+        channel.write(ByteBuffer.allocate(8).putLong(0, size), 8);
+      }
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+  }
+}
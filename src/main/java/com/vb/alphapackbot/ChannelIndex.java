@@ -0,0 +1,438 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.Message.Attachment;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * <p>Compact, immutable index of all messages with attachments in a channel.</p>
+ * <p>Instead of holding {@link Message} objects, only the data needed by commands is kept in
+ * primitive arrays: message snowflakes, interned author IDs, rarity override / ignore flags and
+ * attachment IDs with their URLs. Messages are stored newest first, the same order in which
+ * the history is retrieved.</p>
+ */
+public final class ChannelIndex {
+  static final byte FLAG_IGNORED = 1;
+  private static final int OVERRIDE_SHIFT = 1;
+  private static final String CDN_PREFIX = "https://cdn.discordapp.com/";
+  private static final String MEDIA_PREFIX = "https://media.discordapp.net/";
+  private static final String ATTACHMENT_URL_PREFIX = CDN_PREFIX + "attachments/";
+  /** Seconds before the expiry at which a URL is refreshed, so it stays valid while in use. */
+  private static final long EXPIRY_MARGIN = 60;
+
+  private final long guildId;
+  private final long channelId;
+  private final long headId;
+  private final long[] messageIds;
+  private final int[] authors;
+  private final long[] authorIds;
+  private final byte[] flags;
+  private final int[] attachmentOffsets;
+  private final long[] attachmentIds;
+  private final int[] urlOffsets;
+  private final byte[] urlData;
+
+  ChannelIndex(long guildId, long channelId, long headId, long[] messageIds, int[] authors,
+               long[] authorIds, byte[] flags, int[] attachmentOffsets, long[] attachmentIds,
+               int[] urlOffsets, byte[] urlData) {
+    this.guildId = guildId;
+    this.channelId = channelId;
+    this.headId = headId;
+    this.messageIds = messageIds;
+    this.authors = authors;
+    this.authorIds = authorIds;
+    this.flags = flags;
+    this.attachmentOffsets = attachmentOffsets;
+    this.attachmentIds = attachmentIds;
+    this.urlOffsets = urlOffsets;
+    this.urlData = urlData;
+  }
+
+  public long getGuildId() {
+    return guildId;
+  }
+
+  public long getChannelId() {
+    return channelId;
+  }
+
+  /**
+   * ID of the newest message seen while building this index, including messages without
+   * attachments. Used as the anchor when fetching newer history.
+   */
+  public long getHeadId() {
+    return headId;
+  }
+
+  /** Number of indexed messages. */
+  public int size() {
+    return messageIds.length;
+  }
+
+  public long messageId(int position) {
+    return messageIds[position];
+  }
+
+  public long authorId(int position) {
+    return authorIds[authors[position]];
+  }
+
+  public boolean isIgnored(int position) {
+    return (flags[position] & FLAG_IGNORED) != 0;
+  }
+
+  /**
+   * Returns the rarity forced by the message text (e.g. "*Legendary"), if any.
+   */
+  public Optional<RarityTypes> overrideRarity(int position) {
+    int override = flags[position] >>> OVERRIDE_SHIFT;
+    if (override == 0) {
+      return Optional.empty();
+    }
+    return Optional.of(RarityTypes.values()[override - 1]);
+  }
+
+  public int attachmentCount(int position) {
+    return attachmentOffsets[position + 1] - attachmentOffsets[position];
+  }
+
+  public long attachmentId(int position, int attachment) {
+    return attachmentIds[attachmentOffsets[position] + attachment];
+  }
+
+  /**
+   * Rebuilds the URL of an attachment. Discord CDN URLs are stored without the common
+   * channel / attachment prefix and without their signed query, so they have to be refreshed
+   * before downloading, see {@link #isUrlExpired}.
+   */
+  public String attachmentUrl(int position, int attachment) {
+    int offset = attachmentOffsets[position] + attachment;
+    String stored = new String(urlData, urlOffsets[offset],
+        urlOffsets[offset + 1] - urlOffsets[offset], StandardCharsets.UTF_8);
+    if (stored.startsWith("https://")) {
+      return stored;
+    }
+    return ATTACHMENT_URL_PREFIX + channelId + "/" + attachmentIds[offset] + "/" + stored;
+  }
+
+  /**
+   * Checks whether an attachment URL can no longer be downloaded. Discord CDN URLs are signed and
+   * carry their expiry as hexadecimal epoch seconds in the 'ex' query parameter, those without
+   * it (as returned by {@link #attachmentUrl}) are expired as well. Other URLs never expire.
+   *
+   * @param url        URL of the attachment
+   * @param nowSeconds current time in epoch seconds
+   * @return true if the URL has to be refreshed before downloading
+   */
+  static boolean isUrlExpired(String url, long nowSeconds) {
+    if (!isDiscordUrl(url)) {
+      return false;
+    }
+    int query = url.indexOf('?');
+    if (query == -1) {
+      return true;
+    }
+    for (String parameter : url.substring(query + 1).split("&")) {
+      if (parameter.startsWith("ex=")) {
+        try {
+          return Long.parseLong(parameter.substring(3), 16) <= nowSeconds + EXPIRY_MARGIN;
+        } catch (NumberFormatException e) {
+          return true;
+        }
+      }
+    }
+    return true;
+  }
+
+  static boolean isDiscordUrl(String url) {
+    return url.startsWith(CDN_PREFIX) || url.startsWith(MEDIA_PREFIX);
+  }
+
+  /**
+   * Checks whether a message is part of this index.
+   *
+   * @param messageId ID of the message
+   * @return true if the message is indexed
+   */
+  public boolean contains(long messageId) {
+    int low = 0;
+    int high = messageIds.length - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      if (messageIds[middle] > messageId) {
+        low = middle + 1;
+      } else if (messageIds[middle] < messageId) {
+        high = middle - 1;
+      } else {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public Occurrence occurrence(int position) {
+    return new Occurrence(guildId, channelId, messageIds[position]);
+  }
+
+  /**
+   * Returns positions of all non-ignored messages sent by specific user, newest first.
+   *
+   * @param authorId ID of the author
+   * @return array of positions usable with the accessors of this index
+   */
+  public int[] positionsOf(long authorId) {
+    int author = -1;
+    for (int i = 0; i < authorIds.length; i++) {
+      if (authorIds[i] == authorId) {
+        author = i;
+        break;
+      }
+    }
+    if (author == -1) {
+      return new int[0];
+    }
+    int[] positions = new int[messageIds.length];
+    int count = 0;
+    for (int i = 0; i < messageIds.length; i++) {
+      if (authors[i] == author && !isIgnored(i)) {
+        positions[count++] = i;
+      }
+    }
+    return Arrays.copyOf(positions, count);
+  }
+
+  /**
+   * Creates a new index containing messages from {@code newer} followed by messages of this
+   * index. Messages of {@code newer} must all be newer than messages of this index.
+   *
+   * @param newer index of messages sent after the head of this index
+   * @return merged index
+   */
+  public ChannelIndex prepend(@NotNull ChannelIndex newer) {
+    if (newer.size() == 0) {
+      return newer.headId > headId ? withHead(newer.headId) : this;
+    }
+    Builder builder = new Builder(guildId, channelId);
+    builder.copyFrom(newer);
+    builder.copyFrom(this);
+    builder.updateHead(Math.max(headId, newer.headId));
+    return builder.build();
+  }
+
+  private ChannelIndex withHead(long newHeadId) {
+    return new ChannelIndex(guildId, channelId, newHeadId, messageIds, authors, authorIds, flags,
+        attachmentOffsets, attachmentIds, urlOffsets, urlData);
+  }
+
+  /** Approximate heap size of this index in bytes. */
+  public long estimatedBytes() {
+    return 64L
+        + 8L * messageIds.length
+        + 4L * authors.length
+        + 8L * authorIds.length
+        + flags.length
+        + 4L * attachmentOffsets.length
+        + 8L * attachmentIds.length
+        + 4L * urlOffsets.length
+        + urlData.length;
+  }
+
+  long[] messageIds() {
+    return messageIds;
+  }
+
+  int[] authors() {
+    return authors;
+  }
+
+  long[] authorIds() {
+    return authorIds;
+  }
+
+  byte[] flags() {
+    return flags;
+  }
+
+  int[] attachmentOffsets() {
+    return attachmentOffsets;
+  }
+
+  long[] attachmentIds() {
+    return attachmentIds;
+  }
+
+  int[] urlOffsets() {
+    return urlOffsets;
+  }
+
+  byte[] urlData() {
+    return urlData;
+  }
+
+  /**
+   * Builds {@link ChannelIndex} incrementally while scanning the history. Messages must be
+   * added newest first.
+   */
+  public static final class Builder {
+    private final long guildId;
+    private final long channelId;
+    private final Map<Long, Integer> authorLookup = new HashMap<>();
+    private long headId;
+    private long[] messageIds = new long[64];
+    private int[] authors = new int[64];
+    private long[] authorIds = new long[8];
+    private byte[] flags = new byte[64];
+    private int[] attachmentOffsets = new int[65];
+    private long[] attachmentIds = new long[64];
+    private int[] urlOffsets = new int[65];
+    private byte[] urlData = new byte[4096];
+    private int size;
+    private int attachmentSize;
+    private int urlSize;
+
+    public Builder(long guildId, long channelId) {
+      this.guildId = guildId;
+      this.channelId = channelId;
+    }
+
+    /**
+     * Adds a message to the index. Messages without attachments only move the head.
+     *
+     * @param message message to add
+     */
+    public void add(@NotNull Message message) {
+      updateHead(message.getIdLong());
+      if (message.getAttachments().isEmpty()) {
+        return;
+      }
+      String content = message.getContentRaw();
+      byte messageFlags = 0;
+      if (content.contains("*ignored")) {
+        messageFlags |= FLAG_IGNORED;
+      }
+      if (content.startsWith("*")) {
+        Optional<RarityTypes> forcedRarity = RarityTypes.parse(content.substring(1));
+        if (forcedRarity.isPresent()) {
+          messageFlags |= (byte) ((forcedRarity.get().ordinal() + 1) << OVERRIDE_SHIFT);
+        }
+      }
+      addMessage(message.getIdLong(), message.getAuthor().getIdLong(), messageFlags);
+      for (Attachment attachment : message.getAttachments()) {
+        addAttachment(attachment.getIdLong(), attachment.getUrl());
+      }
+    }
+
+    public void updateHead(long messageId) {
+      headId = Math.max(headId, messageId);
+    }
+
+    void addMessage(long messageId, long authorId, byte messageFlags) {
+      if (size == messageIds.length) {
+        int capacity = size * 2;
+        messageIds = Arrays.copyOf(messageIds, capacity);
+        authors = Arrays.copyOf(authors, capacity);
+        flags = Arrays.copyOf(flags, capacity);
+        attachmentOffsets = Arrays.copyOf(attachmentOffsets, capacity + 1);
+      }
+      Integer author = authorLookup.get(authorId);
+      if (author == null) {
+        author = authorLookup.size();
+        if (author == authorIds.length) {
+          authorIds = Arrays.copyOf(authorIds, author * 2);
+        }
+        authorIds[author] = authorId;
+        authorLookup.put(authorId, author);
+      }
+      messageIds[size] = messageId;
+      authors[size] = author;
+      flags[size] = messageFlags;
+      size++;
+      attachmentOffsets[size] = attachmentSize;
+    }
+
+    void addAttachment(long attachmentId, String url) {
+      String prefix = ATTACHMENT_URL_PREFIX + channelId + "/" + attachmentId + "/";
+      byte[] encoded = (url.startsWith(prefix) ? url.substring(prefix.length()) : url)
+          .getBytes(StandardCharsets.UTF_8);
+      addAttachment(attachmentId, encoded);
+    }
+
+    void addAttachment(long attachmentId, byte[] encodedUrl) {
+      int length = unsignedLength(encodedUrl);
+      if (attachmentSize == attachmentIds.length) {
+        attachmentIds = Arrays.copyOf(attachmentIds, attachmentSize * 2);
+        urlOffsets = Arrays.copyOf(urlOffsets, attachmentSize * 2 + 1);
+      }
+      if (urlSize + length > urlData.length) {
+        urlData = Arrays.copyOf(urlData, Math.max(urlData.length * 2, urlSize + length));
+      }
+      System.arraycopy(encodedUrl, 0, urlData, urlSize, length);
+      urlSize += length;
+      attachmentIds[attachmentSize++] = attachmentId;
+      urlOffsets[attachmentSize] = urlSize;
+      attachmentOffsets[size] = attachmentSize;
+    }
+
+    /**
+     * Length of an encoded URL without the query of Discord CDN URLs, which only holds a
+     * signature expiring within a day and takes most of the bytes. URLs under the common
+     * attachment prefix are encoded relative, see {@link #attachmentUrl}.
+     */
+    private static int unsignedLength(byte[] encodedUrl) {
+      String url = new String(encodedUrl, StandardCharsets.UTF_8);
+      int query = url.indexOf('?');
+      if (query == -1 || (url.startsWith("https://") && !isDiscordUrl(url))) {
+        return encodedUrl.length;
+      }
+      return url.substring(0, query).getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    void copyFrom(ChannelIndex index) {
+      updateHead(index.headId);
+      for (int i = 0; i < index.size(); i++) {
+        addMessage(index.messageIds[i], index.authorId(i), index.flags[i]);
+        for (int j = index.attachmentOffsets[i]; j < index.attachmentOffsets[i + 1]; j++) {
+          addAttachment(index.attachmentIds[j],
+              Arrays.copyOfRange(index.urlData, index.urlOffsets[j], index.urlOffsets[j + 1]));
+        }
+      }
+    }
+
+    /** Creates the index, trimming all arrays to their used size. */
+    public ChannelIndex build() {
+      return new ChannelIndex(
+          guildId,
+          channelId,
+          headId,
+          Arrays.copyOf(messageIds, size),
+          Arrays.copyOf(authors, size),
+          Arrays.copyOf(authorIds, authorLookup.size()),
+          Arrays.copyOf(flags, size),
+          Arrays.copyOf(attachmentOffsets, size + 1),
+          Arrays.copyOf(attachmentIds, attachmentSize),
+          Arrays.copyOf(urlOffsets, attachmentSize + 1),
+          Arrays.copyOf(urlData, urlSize));
+    }
+  }
+}
@@ -0,0 +1,229 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import jakarta.inject.Singleton;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.jboss.logging.Logger;
+
+/**
+ * Persists {@link ChannelIndex} to disk so later commands (and restarts) can reuse it.
+ * Enabled only when the 'index-dir' system property is set.
+ */
+@Singleton
+public class ChannelIndexStore {
+  private static final Logger log = Logger.getLogger(ChannelIndexStore.class);
+  private static final int FORMAT_VERSION = 1;
+  private final Path directory;
+  private final Set<Long> storedChannels = ConcurrentHashMap.newKeySet();
+
+  public ChannelIndexStore() {
+    String indexDir = System.getProperty("index-dir");
+    this.directory = indexDir == null ? null : Path.of(indexDir);
+    if (directory != null && Files.isDirectory(directory)) {
+      try (Stream<Path> files = Files.list(directory)) {
+        files.map(file -> file.getFileName().toString())
+            .filter(name -> name.matches("\\d+\\.idx"))
+            .forEach(name -> storedChannels.add(
+                Long.parseLong(name.substring(0, name.length() - ".idx".length()))));
+      } catch (IOException e) {
+        log.warnf(e, "Failed to list stored indices in %s!", directory);
+      }
+    }
+  }
+
+  public boolean isEnabled() {
+    return directory != null;
+  }
+
+  /** Whether an index of the channel is stored, answered from memory. */
+  public boolean contains(long channelId) {
+    return storedChannels.contains(channelId);
+  }
+
+  /**
+   * Loads the index of a channel from disk.
+   *
+   * @param channelId ID of the channel
+   * @return {@link Optional} containing the index, or empty if not stored or unreadable
+   */
+  public Optional<ChannelIndex> load(long channelId) {
+    if (!isEnabled()) {
+      return Optional.empty();
+    }
+    Path file = fileOf(channelId);
+    if (!Files.exists(file)) {
+      return Optional.empty();
+    }
+    try (DataInputStream in = new DataInputStream(
+        new GZIPInputStream(new BufferedInputStream(Files.newInputStream(file))))) {
+      return Optional.of(read(in));
+    } catch (IOException e) {
+      log.warnf(e, "Failed to load index of channel %d!", channelId);
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Writes the index to disk, replacing any previous version.
+   */
+  public void save(ChannelIndex index) {
+    if (!isEnabled()) {
+      return;
+    }
+    try {
+      Files.createDirectories(directory);
+      Path file = fileOf(index.getChannelId());
+      Path temp = Files.createTempFile(directory, "index", ".tmp");
+      try (DataOutputStream out = new DataOutputStream(
+          new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(temp))))) {
+        write(index, out);
+      }
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      storedChannels.add(index.getChannelId());
+    } catch (IOException e) {
+      log.warnf(e, "Failed to save index of channel %d!", index.getChannelId());
+    }
+  }
+
+  /** Removes the stored index of a channel. */
+  public void delete(long channelId) {
+    if (!isEnabled()) {
+      return;
+    }
+    storedChannels.remove(channelId);
+    try {
+      Files.deleteIfExists(fileOf(channelId));
+    } catch (IOException e) {
+      log.warnf(e, "Failed to delete index of channel %d!", channelId);
+    }
+  }
+
+  private Path fileOf(long channelId) {
+    return directory.resolve(channelId + ".idx");
+  }
+
+  /**
+   * Message IDs are stored as deltas from the previous (newer) message, attachment IDs as
+   * deltas from their message ID, both as variable length integers.
+   */
+  static void write(ChannelIndex index, DataOutputStream out) throws IOException {
+    out.writeInt(FORMAT_VERSION);
+    out.writeLong(index.getGuildId());
+    out.writeLong(index.getChannelId());
+    out.writeLong(index.getHeadId());
+    long[] authorIds = index.authorIds();
+    writeVarLong(out, authorIds.length);
+    for (long authorId : authorIds) {
+      out.writeLong(authorId);
+    }
+    long[] messageIds = index.messageIds();
+    int[] offsets = index.attachmentOffsets();
+    int[] urlOffsets = index.urlOffsets();
+    byte[] urlData = index.urlData();
+    writeVarLong(out, messageIds.length);
+    long previous = index.getHeadId();
+    for (int i = 0; i < messageIds.length; i++) {
+      writeVarLong(out, previous - messageIds[i]);
+      previous = messageIds[i];
+      writeVarLong(out, index.authors()[i]);
+      out.writeByte(index.flags()[i]);
+      writeVarLong(out, offsets[i + 1] - offsets[i]);
+      for (int j = offsets[i]; j < offsets[i + 1]; j++) {
+        writeVarLong(out, zigZag(index.attachmentIds()[j] - messageIds[i]));
+        writeVarLong(out, urlOffsets[j + 1] - urlOffsets[j]);
+        out.write(urlData, urlOffsets[j], urlOffsets[j + 1] - urlOffsets[j]);
+      }
+    }
+  }
+
+  static ChannelIndex read(DataInputStream in) throws IOException {
+    int version = in.readInt();
+    if (version != FORMAT_VERSION) {
+      throw new IOException("Unsupported index format version " + version);
+    }
+    long guildId = in.readLong();
+    long channelId = in.readLong();
+    long headId = in.readLong();
+    long[] authorIds = new long[(int) readVarLong(in)];
+    for (int i = 0; i < authorIds.length; i++) {
+      authorIds[i] = in.readLong();
+    }
+    ChannelIndex.Builder builder = new ChannelIndex.Builder(guildId, channelId);
+    builder.updateHead(headId);
+    int size = (int) readVarLong(in);
+    long previous = headId;
+    for (int i = 0; i < size; i++) {
+      long messageId = previous - readVarLong(in);
+      previous = messageId;
+      long authorId = authorIds[(int) readVarLong(in)];
+      builder.addMessage(messageId, authorId, in.readByte());
+      int attachments = (int) readVarLong(in);
+      for (int j = 0; j < attachments; j++) {
+        long attachmentId = messageId + unZigZag(readVarLong(in));
+        byte[] url = new byte[(int) readVarLong(in)];
+        in.readFully(url);
+        builder.addAttachment(attachmentId, url);
+      }
+    }
+    return builder.build();
+  }
+
+  private static long zigZag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long unZigZag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      out.writeByte((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+
+  private static long readVarLong(DataInputStream in) throws IOException {
+    long value = 0;
+    int shift = 0;
+    byte b;
+    do {
+      if (shift > 63) {
+        throw new IOException("Malformed variable length integer");
+      }
+      b = in.readByte();
+      value |= (long) (b & 0x7F) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return value;
+  }
+}
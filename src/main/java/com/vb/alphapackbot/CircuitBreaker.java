@@ -0,0 +1,88 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import java.util.function.LongSupplier;
+
+/**
+ * <p>Circuit breaker guarding the redis connection.</p>
+ * <p>After 'cache-breaker-failures' (3 by default) consecutive connection failures the circuit
+ * opens and requests should not be attempted. Once the open interval elapses a single probe is
+ * due; a failed probe opens the circuit again for twice as long, up to a minute. Any success
+ * closes the circuit.</p>
+ */
+final class CircuitBreaker {
+  private static final long MAX_OPEN_MILLIS = 60_000;
+  private final int failureThreshold;
+  private final long openMillis;
+  private final LongSupplier clock;
+  private int failures;
+  private int trips;
+  private long openUntil;
+  private boolean open;
+
+  CircuitBreaker() {
+    this(Integer.getInteger("cache-breaker-failures", 3),
+        Long.getLong("cache-breaker-open-ms", 1000), System::currentTimeMillis);
+  }
+
+  CircuitBreaker(int failureThreshold, long openMillis, LongSupplier clock) {
+    this.failureThreshold = failureThreshold;
+    this.openMillis = openMillis;
+    this.clock = clock;
+  }
+
+  synchronized boolean isClosed() {
+    return !open;
+  }
+
+  /**
+   * Checks whether the circuit is open and the open interval has elapsed.
+   */
+  synchronized boolean isProbeDue() {
+    return open && clock.getAsLong() >= openUntil;
+  }
+
+  synchronized void recordSuccess() {
+    failures = 0;
+    trips = 0;
+    open = false;
+  }
+
+  /**
+   * Records a connection failure.
+   *
+   * @return true if this failure opened the circuit
+   */
+  synchronized boolean recordFailure() {
+    failures++;
+    if (open || failures >= failureThreshold) {
+      boolean opened = !open;
+      trip();
+      return opened;
+    }
+    return false;
+  }
+
+  /** Opens the circuit immediately. */
+  synchronized void trip() {
+    long interval = Math.min(MAX_OPEN_MILLIS, openMillis << Math.min(trips, 16));
+    openUntil = clock.getAsLong() + interval;
+    trips++;
+    open = true;
+  }
+}
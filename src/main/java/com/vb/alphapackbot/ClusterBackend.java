@@ -0,0 +1,233 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import redis.clients.jedis.ClusterPipeline;
+import redis.clients.jedis.Connection;
+import redis.clients.jedis.ConnectionPool;
+import redis.clients.jedis.ConnectionPoolConfig;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.params.ScanParams;
+import redis.clients.jedis.resps.ScanResult;
+
+/**
+ * <p>{@link CacheBackend} on Redis Cluster. Keys are routed by the cluster, which also keeps a
+ * connection pool per node and handles replication.</p>
+ * <p>Pipelined operations span several nodes, so their latency is recorded under "cluster";
+ * SCANs run node by node and are recorded per node together with the state of the node's pool.
+ * The cluster borrows connections internally, so node pools are sized by {@link PoolSizer} from
+ * the number of waiting callers only.</p>
+ */
+public class ClusterBackend implements CacheBackend {
+  private static final String CLUSTER = "cluster";
+  private final JedisCluster cluster;
+  private final long unknownTtl;
+  private final Map<String, NodeStats> stats = new ConcurrentHashMap<>();
+  private final Map<ConnectionPool, PoolSizer> sizers = new ConcurrentHashMap<>();
+
+  public ClusterBackend(List<HostAndPort> nodes, long unknownTtl) {
+    this.cluster = new JedisCluster(
+        new HashSet<>(nodes), PoolSizer.configure(new ConnectionPoolConfig()));
+    this.unknownTtl = unknownTtl;
+  }
+
+  private NodeStats nodeStats(String node, ConnectionPool pool) {
+    NodeStats nodeStats = stats.computeIfAbsent(node, key -> new NodeStats(pool));
+    if (nodeStats.getPool() != pool) {
+      // The pool is replaced when the topology changes
+      nodeStats.setPool(pool);
+    }
+    return nodeStats;
+  }
+
+  private <T> T timed(String name, Function<ClusterPipeline, T> operation) {
+    NodeStats nodeStats = stats.computeIfAbsent(CLUSTER, key -> new NodeStats(null));
+    long start = System.nanoTime();
+    try (ClusterPipeline pipeline = cluster.pipelined()) {
+      T result = operation.apply(pipeline);
+      nodeStats.recordCommand(name, System.nanoTime() - start);
+      return result;
+    } catch (JedisException e) {
+      nodeStats.recordError(name);
+      throw e;
+    }
+  }
+
+  @Override
+  public void ping() {
+    for (Map.Entry<String, ConnectionPool> node : cluster.getClusterNodes().entrySet()) {
+      try (Connection connection = node.getValue().getResource()) {
+        new Jedis(connection).ping();
+      }
+    }
+  }
+
+  @Override
+  public Map<Long, Byte> get(List<Long> attachmentIds) {
+    return timed("get", pipeline -> {
+      List<Response<byte[]>> responses = new ArrayList<>(attachmentIds.size());
+      List<Response<byte[]>> unknownResponses = new ArrayList<>(attachmentIds.size());
+      for (long attachmentId : attachmentIds) {
+        responses.add(pipeline.hget(
+            CacheSchema.bucketKey(attachmentId), CacheSchema.field(attachmentId)));
+        unknownResponses.add(pipeline.get(CacheSchema.unknownKey(attachmentId)));
+      }
+      pipeline.sync();
+      Map<Long, Byte> found = new HashMap<>();
+      for (int i = 0; i < attachmentIds.size(); i++) {
+        byte[] value = responses.get(i).get();
+        if (value == null) {
+          value = unknownResponses.get(i).get();
+        }
+        if (value != null && value.length == 1) {
+          found.put(attachmentIds.get(i), value[0]);
+        }
+      }
+      return found;
+    });
+  }
+
+  @Override
+  public void put(Map<Long, Byte> values) {
+    timed("put", pipeline -> {
+      values.forEach((attachmentId, value) -> {
+        byte[] bucketKey = CacheSchema.bucketKey(attachmentId);
+        byte[] field = CacheSchema.field(attachmentId);
+        if (CacheSchema.decodeRarity(value) == RarityTypes.UNKNOWN) {
+          pipeline.setex(CacheSchema.unknownKey(attachmentId), unknownTtl, new byte[] {value});
+          pipeline.hdel(bucketKey, field);
+        } else {
+          pipeline.hset(bucketKey, field, new byte[] {value});
+        }
+      });
+      pipeline.sync();
+      return null;
+    });
+  }
+
+  @Override
+  public void putIfAbsent(Map<Long, Byte> values) {
+    timed("putIfAbsent", pipeline -> {
+      values.forEach((attachmentId, value) -> pipeline.hsetnx(
+          CacheSchema.bucketKey(attachmentId), CacheSchema.field(attachmentId),
+          new byte[] {value}));
+      pipeline.sync();
+      return null;
+    });
+  }
+
+  @Override
+  public List<Map<Long, Byte>> getBuckets(List<Long> buckets) {
+    return timed("getBuckets", pipeline -> {
+      List<byte[]> keys = buckets.stream().map(CacheSchema::bucketKeyOf).toList();
+      List<Response<Map<byte[], byte[]>>> responses = new ArrayList<>(keys.size());
+      keys.forEach(key -> responses.add(pipeline.hgetAll(key)));
+      pipeline.sync();
+      List<Map<Long, Byte>> result = new ArrayList<>(keys.size());
+      for (int i = 0; i < keys.size(); i++) {
+        Map<Long, Byte> values = new HashMap<>();
+        for (Map.Entry<byte[], byte[]> entry : responses.get(i).get().entrySet()) {
+          if (entry.getValue().length == 1) {
+            values.put(CacheSchema.attachmentId(keys.get(i), entry.getKey()), entry.getValue()[0]);
+          }
+        }
+        result.add(values);
+      }
+      return result;
+    });
+  }
+
+  /**
+   * Legacy keys usually live in different slots, so they are read one by one in a pipeline
+   * instead of with MGET.
+   */
+  @Override
+  public List<String> getLegacy(List<String> keys) {
+    return timed("getLegacy", pipeline -> {
+      List<Response<String>> responses = keys.stream().map(pipeline::get).toList();
+      pipeline.sync();
+      return responses.stream().map(Response::get).toList();
+    });
+  }
+
+  @Override
+  public void deleteLegacy(List<String> keys) {
+    timed("deleteLegacy", pipeline -> {
+      keys.forEach(pipeline::del);
+      pipeline.sync();
+      return null;
+    });
+  }
+
+  @Override
+  public void scan(String pattern, Consumer<List<String>> consumer) {
+    ScanParams params = new ScanParams().match(pattern).count(1000);
+    for (Map.Entry<String, ConnectionPool> node : cluster.getClusterNodes().entrySet()) {
+      NodeStats nodeStats = nodeStats(node.getKey(), node.getValue());
+      String cursor = ScanParams.SCAN_POINTER_START;
+      do {
+        long start = System.nanoTime();
+        ScanResult<String> result;
+        try (Connection connection = node.getValue().getResource()) {
+          long borrowed = System.nanoTime();
+          nodeStats.recordBorrow(borrowed - start);
+          result = new Jedis(connection).scan(cursor, params);
+          nodeStats.recordCommand("scan", System.nanoTime() - borrowed);
+        } catch (JedisException e) {
+          nodeStats.recordError("scan");
+          throw e;
+        }
+        if (!result.getResult().isEmpty()) {
+          consumer.accept(result.getResult());
+        }
+        cursor = result.getCursor();
+      } while (!cursor.equals(ScanParams.SCAN_POINTER_START));
+    }
+  }
+
+  @Override
+  public Map<String, NodeStats> getNodeStats() {
+    cluster.getClusterNodes().forEach(this::nodeStats);
+    return new LinkedHashMap<>(stats);
+  }
+
+  @Override
+  public void adjustPools() {
+    Map<String, ConnectionPool> nodes = cluster.getClusterNodes();
+    sizers.keySet().retainAll(nodes.values());
+    nodes.forEach((node, pool) ->
+        sizers.computeIfAbsent(pool, key -> new PoolSizer(node, pool, null)).adjust());
+  }
+
+  @Override
+  public void close() {
+    cluster.close();
+  }
+}
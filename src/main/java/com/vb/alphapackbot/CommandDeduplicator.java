@@ -0,0 +1,111 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.vb.alphapackbot;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import jakarta.inject.Singleton;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * <p>Shares results between identical commands. A command whose {@link Key} matches a running
+ * one waits for it instead of repeating the work, a command arriving shortly after receives the
+ * same result for 'command-result-fresh-ms' (30 seconds by default).</p>
+ * <p>If the running command fails or is cancelled, the waiting ones compute the result
+ * themselves.</p>
+ */
+@Singleton
+public class CommandDeduplicator {
+  private final Map<Key, CompletableFuture<Object>> running = new ConcurrentHashMap<>();
+  private final Cache<Key, Object> fresh = CacheBuilder.newBuilder()
+      .maximumSize(10_000)
+      .expireAfterWrite(Long.getLong("command-result-fresh-ms", 30_000), TimeUnit.MILLISECONDS)
+      .build();
+
+  /**
+   * Returns a fresh result, the result of a running identical computation, or computes it.
+   *
+   * @param key         identifies the computation
+   * @param computation computes the result on the current thread
+   * @return the result
+   * @throws CancellationException if the current command was cancelled while waiting
+   */
+  public <T> T compute(@NotNull Key key, @NotNull Supplier<T> computation) {
+    return compute(key, computation, true);
+  }
+
+  /**
+   * Like {@link #compute} but only shares the result with computations running at the same
+   * time.
+   */
+  public <T> T join(@NotNull Key key, @NotNull Supplier<T> computation) {
+    return compute(key, computation, false);
+  }
+
+  @SuppressWarnings("unchecked")
+  private <T> T compute(Key key, Supplier<T> computation, boolean keepFresh) {
+    while (true) {
+      Object value = keepFresh ? fresh.getIfPresent(key) : null;
+      if (value != null) {
+        return (T) value;
+      }
+      CompletableFuture<Object> own = new CompletableFuture<>();
+      CompletableFuture<Object> other = running.putIfAbsent(key, own);
+      if (other == null) {
+        try {
+          T result = computation.get();
+          if (keepFresh) {
+            fresh.put(key, result);
+          }
+          own.complete(result);
+          return result;
+        } catch (RuntimeException e) {
+          own.completeExceptionally(e);
+          throw e;
+        } finally {
+          running.remove(key, own);
+        }
+      }
+      try {
+        return (T) other.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new CancellationException("Command cancelled");
+      } catch (ExecutionException e) {
+        // The running computation failed, try again
+      }
+    }
+  }
+
+  /**
+   * Identifies a computation.
+   *
+   * @param type      type of the command
+   * @param channelId ID of the channel the command processes
+   * @param userId    ID of the user whose messages are processed, 0 for all users
+   * @param arguments remaining arguments, must implement equals and hashCode
+   */
+  public record Key(String type, long channelId, long userId, Object arguments) {}
+}
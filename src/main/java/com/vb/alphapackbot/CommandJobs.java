@@ -0,0 +1,159 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.vb.alphapackbot;
+
+import jakarta.annotation.PreDestroy;
+import jakarta.inject.Singleton;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import net.dv8tion.jda.api.events.message.MessageBulkDeleteEvent;
+import net.dv8tion.jda.api.events.message.guild.GuildMessageDeleteEvent;
+import net.dv8tion.jda.api.hooks.ListenerAdapter;
+import org.jboss.logging.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>Keeps a {@link Token} for every queued or running command, keyed by the ID of the request
+ * message. A command is cancelled when its request message is deleted, when the bot is disabled
+ * or when it runs past 'command-deadline-ms' (10 minutes by default) after it was queued.</p>
+ * <p>Cancelling interrupts the thread running the command. Executors closed by the command pass
+ * the interrupt on to their tasks, so history retrieval, downloads and cache lookups of all
+ * users stop and release their permits. Code below checks the interrupt flag and throws
+ * {@link CancellationException} instead of returning partial results.</p>
+ */
+@Singleton
+public class CommandJobs extends ListenerAdapter {
+  public static final String DEADLINE_EXCEEDED = "deadline exceeded";
+  private static final Logger log = Logger.getLogger(CommandJobs.class);
+  private final Map<Long, Token> tokens = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService deadlines = Executors.newSingleThreadScheduledExecutor();
+  private final long deadline = Long.getLong("command-deadline-ms", 10 * 60 * 1000);
+
+  /**
+   * Registers a command before it is queued. The deadline starts now.
+   *
+   * @param requestMessageId ID of the message that requested the command
+   * @return token of the command, must be passed to {@link #run} or {@link #finish}
+   */
+  public Token register(long requestMessageId) {
+    Token token = new Token(requestMessageId);
+    tokens.put(requestMessageId, token);
+    token.deadline = deadlines.schedule(
+        () -> token.cancel(DEADLINE_EXCEEDED), deadline, TimeUnit.MILLISECONDS);
+    return token;
+  }
+
+  /**
+   * Runs a command on the current thread, unless it was cancelled while it was queued.
+   *
+   * @param token token from {@link #register}
+   * @param task  the command
+   * @throws CancellationException if the command was cancelled
+   */
+  public void run(@NotNull Token token, @NotNull Runnable task) {
+    try {
+      token.thread = Thread.currentThread();
+      if (token.reason == null) {
+        task.run();
+      }
+      if (token.reason != null) {
+        throw new CancellationException(token.reason);
+      }
+    } finally {
+      token.thread = null;
+      finish(token);
+    }
+  }
+
+  /** Forgets a command that finished or was never queued. */
+  public void finish(@NotNull Token token) {
+    tokens.remove(token.requestMessageId, token);
+    token.deadline.cancel(false);
+  }
+
+  /** Cancels all queued and running commands. */
+  public void cancelAll(@NotNull String reason) {
+    tokens.values().forEach(token -> token.cancel(reason));
+  }
+
+  public int getActive() {
+    return tokens.size();
+  }
+
+  @PreDestroy
+  void shutdown() {
+    deadlines.shutdownNow();
+  }
+
+  private void cancel(long requestMessageId) {
+    Token token = tokens.get(requestMessageId);
+    if (token != null) {
+      log.debugf("Request %d deleted, cancelling its command.", requestMessageId);
+      token.cancel("request deleted");
+    }
+  }
+
+  @Override
+  public void onGuildMessageDelete(@NotNull GuildMessageDeleteEvent event) {
+    cancel(event.getMessageIdLong());
+  }
+
+  @Override
+  public void onMessageBulkDelete(@NotNull MessageBulkDeleteEvent event) {
+    event.getMessageIds().forEach(messageId -> cancel(Long.parseLong(messageId)));
+  }
+
+  /** Cancellation state of one command. */
+  public static final class Token {
+    private final long requestMessageId;
+    private ScheduledFuture<?> deadline;
+    private volatile @Nullable String reason;
+    private volatile @Nullable Thread thread;
+
+    private Token(long requestMessageId) {
+      this.requestMessageId = requestMessageId;
+    }
+
+    /**
+     * Cancels the command, the first reason is kept.
+     */
+    public void cancel(@NotNull String reason) {
+      if (this.reason == null) {
+        this.reason = reason;
+      }
+      Thread current = thread;
+      if (current != null) {
+        current.interrupt();
+      }
+    }
+
+    public boolean isCancelled() {
+      return reason != null;
+    }
+
+    public @Nullable String getReason() {
+      return reason;
+    }
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.vb.alphapackbot;
+
+import java.util.List;
+import java.util.Optional;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.Role;
+import net.dv8tion.jda.api.entities.TextChannel;
+import net.dv8tion.jda.api.entities.User;
+import net.dv8tion.jda.api.requests.RestAction;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * <p>Invocation of a command, either a prefixed message ({@link MessageCommandRequest}) or a
+ * slash command ({@link SlashCommandRequest}).</p>
+ * <p>Commands read their arguments from the request and answer through it. The returned
+ * actions are not sent yet, {@link CommandService} sends them within the {@link RestBudget}.</p>
+ */
+public interface CommandRequest {
+
+  /** ID of the request message or interaction, identifies the command in {@link CommandJobs}. */
+  long getIdLong();
+
+  Guild getGuild();
+
+  User getAuthor();
+
+  TextChannel getTextChannel();
+
+  /** Rarity and "since:" / "until:" arguments, without mentions. */
+  String getArgs();
+
+  List<User> getMentionedUsers();
+
+  List<Role> getMentionedRoles();
+
+  /** Whether the channel should show typing while the command runs. */
+  boolean showsTyping();
+
+  /** Action marking the request as received before it is queued, if the request needs one. */
+  Optional<RestAction<?>> defer();
+
+  /**
+   * Action telling only the author that the command won't run at all, if the request would
+   * otherwise wait for an answer.
+   */
+  Optional<RestAction<?>> decline(@NotNull String reason);
+
+  /** Action showing whether the arguments were accepted, if the request shows it. */
+  Optional<RestAction<?>> acknowledge(boolean accepted);
+
+  RestAction<Message> reply(@NotNull String text);
+
+  RestAction<Message> reply(@NotNull String text, byte[] file, @NotNull String fileName);
+
+  /** Edits a reply sent through {@link #reply(String)}. */
+  RestAction<Message> edit(@NotNull Message reply, @NotNull String text);
+}
@@ -0,0 +1,220 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.vb.alphapackbot;
+
+import jakarta.inject.Singleton;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import org.jboss.logging.Logger;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * <p>Runs commands on virtual threads so the JDA event thread returns immediately.</p>
+ * <p>At most 'command-max-jobs' commands (8 by default) run at once, at most
+ * 'command-max-jobs-per-guild' (4) of one guild and 'command-max-jobs-per-user' (2) of one user.
+ * Waiting commands are queued per guild and within a guild per user. Free slots are handed out
+ * round robin, first across guilds, then across the users of the chosen guild, so a guild or a
+ * user with many long commands can not delay commands of others. At most
+ * 'command-max-queued' (100) commands wait at once, further ones are rejected.</p>
+ */
+@Singleton
+public class CommandScheduler {
+  private static final Logger log = Logger.getLogger(CommandScheduler.class);
+  private final Lock lock = new ReentrantLock();
+  /** Guilds with queued jobs in round robin order. */
+  private final ArrayDeque<Long> guildOrder = new ArrayDeque<>();
+  private final Map<Long, GuildQueue> guilds = new HashMap<>();
+  private final Map<Long, Integer> runningPerGuild = new HashMap<>();
+  private final Map<Long, Integer> runningPerUser = new HashMap<>();
+  private final int maxJobs;
+  private final int maxJobsPerGuild;
+  private final int maxJobsPerUser;
+  private final int maxQueued;
+  private int running;
+  private int queued;
+
+  public CommandScheduler() {
+    this(Integer.getInteger("command-max-jobs", 8),
+        Integer.getInteger("command-max-jobs-per-guild", 4),
+        Integer.getInteger("command-max-jobs-per-user", 2),
+        Integer.getInteger("command-max-queued", 100));
+  }
+
+  CommandScheduler(int maxJobs, int maxJobsPerGuild, int maxJobsPerUser, int maxQueued) {
+    this.maxJobs = maxJobs;
+    this.maxJobsPerGuild = maxJobsPerGuild;
+    this.maxJobsPerUser = maxJobsPerUser;
+    this.maxQueued = maxQueued;
+  }
+
+  /**
+   * Queues a command, it starts as soon as there is a free slot for it.
+   *
+   * @param guildId ID of the guild the command was sent in
+   * @param userId  ID of the user who sent the command
+   * @param task    the command
+   * @return 0 if the command started, otherwise the number of waiting commands including it,
+   *     which is not its position as slots are handed out round robin
+   * @throws RejectedExecutionException if too many commands are waiting
+   */
+  public int submit(long guildId, long userId, @NotNull Runnable task) {
+    lock.lock();
+    try {
+      if (queued >= maxQueued) {
+        throw new RejectedExecutionException("Too many queued commands");
+      }
+      GuildQueue guild = guilds.get(guildId);
+      if (guild == null) {
+        guild = new GuildQueue();
+        guilds.put(guildId, guild);
+        guildOrder.add(guildId);
+      }
+      Job job = new Job(guildId, userId, task);
+      guild.add(job);
+      queued++;
+      dispatch();
+      GuildQueue current = guilds.get(guildId);
+      return current != null && current.contains(job) ? queued : 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public int getRunning() {
+    lock.lock();
+    try {
+      return running;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public int getQueued() {
+    lock.lock();
+    try {
+      return queued;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Starts queued jobs while there are free slots. Must be called while holding the lock. */
+  private void dispatch() {
+    while (running < maxJobs) {
+      Job job = next();
+      if (job == null) {
+        return;
+      }
+      queued--;
+      running++;
+      runningPerGuild.merge(job.guildId(), 1, Integer::sum);
+      runningPerUser.merge(job.userId(), 1, Integer::sum);
+      Thread.ofVirtual().name("command-" + job.guildId()).start(() -> run(job));
+    }
+  }
+
+  /** Takes the next job that may start, if any. Must be called while holding the lock. */
+  private Job next() {
+    for (int i = guildOrder.size(); i > 0; i--) {
+      long guildId = guildOrder.poll();
+      GuildQueue guild = guilds.get(guildId);
+      Job job = runningPerGuild.getOrDefault(guildId, 0) < maxJobsPerGuild
+          ? guild.next()
+          : null;
+      if (guild.isEmpty()) {
+        guilds.remove(guildId);
+      } else {
+        guildOrder.add(guildId);
+      }
+      if (job != null) {
+        return job;
+      }
+    }
+    return null;
+  }
+
+  private void run(Job job) {
+    try {
+      job.task().run();
+    } catch (RuntimeException e) {
+      log.errorf(e, "Command in guild %d failed.", job.guildId());
+    } finally {
+      lock.lock();
+      try {
+        running--;
+        decrement(runningPerGuild, job.guildId());
+        decrement(runningPerUser, job.userId());
+        dispatch();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  private static void decrement(Map<Long, Integer> counts, long key) {
+    counts.computeIfPresent(key, (x, count) -> count == 1 ? null : count - 1);
+  }
+
+  private record Job(long guildId, long userId, Runnable task) {}
+
+  /** Jobs of one guild, queued per user. */
+  private final class GuildQueue {
+    /** Users with queued jobs in round robin order. */
+    private final ArrayDeque<Long> userOrder = new ArrayDeque<>();
+    private final Map<Long, ArrayDeque<Job>> jobs = new HashMap<>();
+
+    void add(Job job) {
+      jobs.computeIfAbsent(job.userId(), key -> {
+        userOrder.add(key);
+        return new ArrayDeque<>();
+      }).add(job);
+    }
+
+    boolean isEmpty() {
+      return userOrder.isEmpty();
+    }
+
+    boolean contains(Job job) {
+      ArrayDeque<Job> userJobs = jobs.get(job.userId());
+      return userJobs != null && userJobs.contains(job);
+    }
+
+    Job next() {
+      for (int i = userOrder.size(); i > 0; i--) {
+        long userId = userOrder.poll();
+        if (runningPerUser.getOrDefault(userId, 0) >= maxJobsPerUser) {
+          userOrder.add(userId);
+          continue;
+        }
+        ArrayDeque<Job> userJobs = jobs.get(userId);
+        Job job = userJobs.poll();
+        if (userJobs.isEmpty()) {
+          jobs.remove(userId);
+        } else {
+          userOrder.add(userId);
+        }
+        return job;
+      }
+      return null;
+    }
+  }
+}
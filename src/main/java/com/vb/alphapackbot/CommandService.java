@@ -16,8 +16,9 @@
 
 package com.vb.alphapackbot;
 
+import com.google.common.cache.CacheBuilder;
 import com.google.mu.util.concurrent.Retryer;
-import com.jagrosh.jdautilities.command.CommandEvent;
+import jakarta.annotation.PostConstruct;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
 import java.awt.image.BufferedImage;
@@ -26,28 +27,43 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.ConnectException;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.OptionalLong;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
-import java.util.function.Predicate;
-import java.util.stream.Collectors;
+import java.util.function.ObjIntConsumer;
+import java.util.function.Supplier;
 import javax.imageio.ImageIO;
 import net.dv8tion.jda.api.entities.Member;
 import net.dv8tion.jda.api.entities.Message;
-import net.dv8tion.jda.api.entities.Message.Attachment;
 import net.dv8tion.jda.api.entities.MessageHistory;
 import net.dv8tion.jda.api.entities.TextChannel;
 import net.dv8tion.jda.api.entities.User;
+import net.dv8tion.jda.api.exceptions.ErrorResponseException;
 import net.dv8tion.jda.api.exceptions.RateLimitedException;
+import net.dv8tion.jda.api.requests.RestAction;
+import net.dv8tion.jda.api.sharding.ShardManager;
 import org.jboss.logging.Logger;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 @ApplicationScoped
 public class CommandService {
@@ -57,168 +73,770 @@ public class CommandService {
   private static final ExecutorService imageLoaderExecutor = Executors.newFixedThreadPool(
       Runtime.getRuntime().availableProcessors() * 2);
   private static final Semaphore processingLimiter = new Semaphore(MAX_RETRIEVE_SIZE);
+  private static final int SEARCH_WINDOW = Integer.getInteger("occurrence-search-window", 16);
+  private static final int RESERVE_LOOKUP_SIZE = 1000;
+  /**
+   * Signed URLs of recently retrieved attachments. {@link ChannelIndex} keeps URLs without their
+   * signature, so without these every download would have to retrieve its message again.
+   */
+  private static final com.google.common.cache.Cache<Long, String> signedUrls =
+      CacheBuilder.newBuilder()
+          .maximumSize(Long.getLong("signed-url-cache-size", 100_000))
+          .expireAfterWrite(Duration.ofHours(12))
+          .build();
   @Inject Cache cache;
+  @Inject HistoryCache historyCache;
+  @Inject OccurrenceIndex occurrenceIndex;
+  @Inject CountResultCache countResultCache;
+  @Inject CommandScheduler commandScheduler;
+  @Inject AdmissionControl admissionControl;
+  @Inject CommandJobs commandJobs;
+  @Inject CommandDeduplicator commandDeduplicator;
+  @Inject Properties properties;
   @Inject TypingManager typingManager;
+  @Inject RestBudget restBudget;
+  @Inject @Nullable ShardManager shardManager;
+
+  /**
+   * Starts re-classifying attachments whose cached rarity was computed by an older classifier,
+   * one at a time so it doesn't compete with commands for downloads.
+   */
+  @PostConstruct
+  void startReclassification() {
+    Thread.ofVirtual().name("reclassification").start(() -> {
+      while (!Thread.currentThread().isInterrupted()) {
+        try {
+          AttachmentKey key = cache.takeStale();
+          // without the message an expired URL can't be refreshed, the attachment is queued
+          // again the next time a command looks it up
+          if (!ChannelIndex.isUrlExpired(key.url(), Instant.now().getEpochSecond())) {
+            computeRarityLimited(key.attachmentId(), key.url());
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+  }
+
+  /**
+   * Returns the index of messages with attachments in a channel within specific bounds. If the
+   * whole channel is already in the {@link HistoryCache}, the cached index is used. Otherwise
+   * only the pages inside the bounds are retrieved and the result is not cached. The returned
+   * index may contain messages outside the bounds, see {@link HistoryBounds#filter}.
+   * Concurrent calls for the same channel and bounds share one retrieval.
+   *
+   * @param channel channel to index
+   * @param bounds  window of messages to index
+   * @return {@link ChannelIndex} covering at least the bounds
+   */
+  public @NotNull ChannelIndex getChannelIndex(@NotNull TextChannel channel,
+      @NotNull HistoryBounds bounds) {
+    return commandDeduplicator.join(
+        new CommandDeduplicator.Key("index", channel.getIdLong(), 0, bounds), () -> {
+          if (bounds.isUnbounded() || historyCache.get(channel.getIdLong()).isPresent()) {
+            return getChannelIndex(channel);
+          }
+          return getMessages(channel, bounds);
+        });
+  }
+
+  /**
+   * Returns the index of all messages with attachments in a channel. If the channel is in the
+   * {@link HistoryCache}, only messages newer than the cached head are retrieved.
+   *
+   * @param channel channel to index
+   * @return {@link ChannelIndex} of the channel
+   */
+  public @NotNull ChannelIndex getChannelIndex(@NotNull TextChannel channel) {
+    Optional<ChannelIndex> cached = historyCache.get(channel.getIdLong());
+    ChannelIndex index;
+    if (cached.isPresent()) {
+      ChannelIndex newer = getNewerMessages(channel, cached.get().getHeadId());
+      index = cached.get().prepend(newer);
+      if (index == cached.get()) {
+        return index;
+      }
+    } else {
+      index = getMessages(channel);
+    }
+    historyCache.put(index);
+    return index;
+  }
 
   /**
-   * Retrieves filtered messages from a channel sent by a specific user.
+   * Indexes all messages from specific channel.
    *
-   * @param channel  channel to fetch messages from
-   * @param authorId user ID whose messages to fetch
-   * @param filter   filter applied on all messages
-   * @return {@link List} of messages
+   * @param channel channel to get messages from
+   * @return {@link ChannelIndex} of all messages
    */
-  public @NotNull List<Message> getMessagesFromUserWithFilter(
-      @NotNull TextChannel channel,
-      @NotNull String authorId,
-      @NotNull Predicate<? super Message> filter) {
-    return getMessages(channel).stream()
-        .filter(x -> x.getAuthor().getId().equals(authorId))
-        .filter(filter)
-        .collect(Collectors.toList());
+  private @NotNull ChannelIndex getMessages(@NotNull TextChannel channel) {
+    return getMessages(channel, HistoryBounds.UNBOUNDED);
   }
 
   /**
-   * Returns all messages from specific channel.
+   * Indexes messages from specific channel within bounds. Retrieval starts at the upper bound
+   * and stops at the first page crossing the lower bound.
    *
    * @param channel channel to get messages from
-   * @return ArrayList of messages
+   * @param bounds  window of messages to index
+   * @return {@link ChannelIndex} of messages within the bounds
    */
-  private @NotNull List<Message> getMessages(@NotNull TextChannel channel) {
-    List<Message> messages = new ArrayList<>();
-    MessageHistory history = channel.getHistory();
+  private @NotNull ChannelIndex getMessages(@NotNull TextChannel channel,
+      @NotNull HistoryBounds bounds) {
+    ChannelIndex.Builder builder =
+        new ChannelIndex.Builder(channel.getGuild().getIdLong(), channel.getIdLong());
+    MessageHistory history;
+    try {
+      history = bounds.hasUpperBound()
+          ? new Retryer()
+              .upon(
+                  RateLimitedException.class,
+                  Retryer.Delay.ofMillis(5000).exponentialBackoff(1, 5))
+              .retryBlockingly(() -> completeHistory(channel,
+                  channel.getHistoryBefore(bounds.beforeId(), MAX_RETRIEVE_SIZE)))
+          : channel.getHistory();
+    } catch (RateLimitedException rateLimitedException) {
+      log.warn("Too many requests, unable to retrieve history.");
+      return builder.build();
+    }
+    List<Message> retrieved = history.getRetrievedHistory();
     int amount = Integer.MAX_VALUE;
 
     while (amount > 0) {
       int numToRetrieve = Math.min(amount, MAX_RETRIEVE_SIZE);
 
       try {
-        List<Message> retrieved =
-            new Retryer()
-                .upon(
-                    RateLimitedException.class,
-                    Retryer.Delay.ofMillis(5000).exponentialBackoff(1, 5))
-                .retryBlockingly(() -> history.retrievePast(numToRetrieve).complete(true));
-        messages.addAll(retrieved);
         if (retrieved.isEmpty()) {
+          retrieved =
+              new Retryer()
+                  .upon(
+                      RateLimitedException.class,
+                      Retryer.Delay.ofMillis(5000).exponentialBackoff(1, 5))
+                  .retryBlockingly(() ->
+                      completeHistory(channel, history.retrievePast(numToRetrieve)));
+          if (retrieved.isEmpty()) {
+            break;
+          }
+        }
+        checkCancelled();
+        boolean crossedLowerBound = false;
+        for (Message message : retrieved) {
+          if (message.getIdLong() > bounds.afterId()) {
+            addMessage(builder, message);
+          } else {
+            crossedLowerBound = true;
+          }
+        }
+        if (crossedLowerBound) {
           break;
         }
+        retrieved = List.of();
       } catch (RateLimitedException rateLimitedException) {
         log.warn("Too many requests, waiting 5 seconds.");
       }
       amount -= numToRetrieve;
     }
-    return messages;
+    checkCancelled();
+    return builder.build();
+  }
+
+  /**
+   * Adds a message to the index and remembers the signed URLs of its attachments.
+   */
+  private static void addMessage(ChannelIndex.Builder builder, Message message) {
+    builder.add(message);
+    rememberUrls(message);
+  }
+
+  private static void rememberUrls(Message message) {
+    for (Message.Attachment attachment : message.getAttachments()) {
+      signedUrls.put(attachment.getIdLong(), attachment.getUrl());
+    }
+  }
+
+  /**
+   * Retrieves a page of history within the {@link RestBudget} of the channel.
+   *
+   * @throws RateLimitedException if the request was rate limited anyway
+   */
+  private <T> T completeHistory(@NotNull TextChannel channel, @NotNull RestAction<T> action)
+      throws RateLimitedException {
+    restBudget.acquire(RestBudget.Route.HISTORY, channel.getIdLong());
+    try {
+      return action.complete(true);
+    } catch (RateLimitedException e) {
+      restBudget.rateLimited(RestBudget.Route.HISTORY, channel.getIdLong(), e.getRetryAfter());
+      throw e;
+    }
+  }
+
+  /**
+   * Indexes all messages sent after a specific message.
+   *
+   * @param channel channel to get messages from
+   * @param afterId ID of the message after which to start
+   * @return {@link ChannelIndex} of the newer messages
+   */
+  private @NotNull ChannelIndex getNewerMessages(@NotNull TextChannel channel, long afterId) {
+    List<Message> messages = new ArrayList<>();
+    try {
+      MessageHistory history = new Retryer()
+          .upon(RateLimitedException.class, Retryer.Delay.ofMillis(5000).exponentialBackoff(1, 5))
+          .retryBlockingly(() ->
+              completeHistory(channel, channel.getHistoryAfter(afterId, MAX_RETRIEVE_SIZE)));
+      List<Message> retrieved = history.getRetrievedHistory();
+      while (!retrieved.isEmpty()) {
+        checkCancelled();
+        messages.addAll(retrieved);
+        retrieved = new Retryer()
+            .upon(RateLimitedException.class, Retryer.Delay.ofMillis(5000).exponentialBackoff(1, 5))
+            .retryBlockingly(() ->
+                completeHistory(channel, history.retrieveFuture(MAX_RETRIEVE_SIZE)));
+      }
+    } catch (RateLimitedException rateLimitedException) {
+      log.warn("Too many requests, newer history is incomplete.");
+    }
+    checkCancelled();
+    ChannelIndex.Builder builder =
+        new ChannelIndex.Builder(channel.getGuild().getIdLong(), channel.getIdLong());
+    builder.updateHead(afterId);
+    messages.stream()
+        .sorted(Comparator.comparingLong(Message::getIdLong).reversed())
+        .forEach(message -> addMessage(builder, message));
+    return builder.build();
   }
 
-  /** Start sending typing requests. */
-  public void startTyping(TextChannel channel) {
-    typingManager.startIfNotRunning(channel);
+  /**
+   * Retrieves a single page of messages sent after a specific message.
+   *
+   * @param channel channel to get messages from
+   * @param afterId ID of the message after which to start
+   * @return {@link ChannelIndex} of the newer messages, or empty if there may be more messages
+   *     than fit on the page or the request was rate limited
+   */
+  private Optional<ChannelIndex> getNewerPage(@NotNull TextChannel channel, long afterId) {
+    List<Message> retrieved;
+    try {
+      retrieved = completeHistory(channel, channel.getHistoryAfter(afterId, MAX_RETRIEVE_SIZE))
+          .getRetrievedHistory();
+    } catch (RateLimitedException rateLimitedException) {
+      return Optional.empty();
+    }
+    if (retrieved.size() == MAX_RETRIEVE_SIZE) {
+      return Optional.empty();
+    }
+    ChannelIndex.Builder builder =
+        new ChannelIndex.Builder(channel.getGuild().getIdLong(), channel.getIdLong());
+    builder.updateHead(afterId);
+    retrieved.stream()
+        .sorted(Comparator.comparingLong(Message::getIdLong).reversed())
+        .forEach(message -> addMessage(builder, message));
+    return Optional.of(builder.build());
+  }
+
+  /**
+   * Returns the count of a user from the {@link CountResultCache} without indexing the channel.
+   * Counts of windows that ended before they were computed are returned as they are, otherwise
+   * the messages sent since are retrieved with a single request and only those are counted.
+   *
+   * @param channel  counted channel
+   * @param bounds   window of messages to count
+   * @param authorId ID of the user whose messages are counted
+   * @return up to date count, or empty if there is none or too many messages were sent since
+   */
+  public Optional<UserData> getCachedCount(@NotNull TextChannel channel,
+      @NotNull HistoryBounds bounds, long authorId) {
+    Optional<CountResultCache.Entry> entry =
+        countResultCache.get(channel.getIdLong(), authorId, bounds);
+    if (entry.isEmpty()) {
+      return Optional.empty();
+    }
+    if (entry.get().isFinal(bounds)) {
+      return Optional.of(entry.get().toUserData(authorId));
+    }
+    Optional<ChannelIndex> newer = getNewerPage(channel, entry.get().headId());
+    if (newer.isEmpty()) {
+      return Optional.empty();
+    }
+    UserData userData = entry.get().plus(getRaritiesFromMessages(
+        newer.get(), newerThan(bounds, entry.get().headId()), authorId));
+    countResultCache.put(channel.getIdLong(), bounds, newer.get().getHeadId(), userData);
+    return Optional.of(userData);
+  }
+
+  /**
+   * Counts rarities of a user like {@link #getRaritiesFromMessages}, but only the messages newer
+   * than a cached count of the same window. The result is cached.
+   *
+   * @param index    index of the channel covering the bounds
+   * @param bounds   window of messages to count
+   * @param authorId ID of the user whose messages are counted
+   * @param progress receives the running totals
+   * @return returns {@link UserData} containing count of all rarities from user.
+   */
+  public UserData countRarities(@NotNull ChannelIndex index, @NotNull HistoryBounds bounds,
+      long authorId, @NotNull CountProgress progress) {
+    Optional<CountResultCache.Entry> entry =
+        countResultCache.get(index.getChannelId(), authorId, bounds);
+    UserData userData;
+    if (entry.isEmpty()) {
+      userData = getRaritiesFromMessages(index, bounds, authorId, progress, null);
+    } else if (entry.get().headId() >= index.getHeadId()) {
+      return entry.get().toUserData(authorId);
+    } else {
+      userData = entry.get().plus(getRaritiesFromMessages(
+          index, newerThan(bounds, entry.get().headId()), authorId, progress, entry.get()));
+    }
+    countResultCache.put(index.getChannelId(), bounds, index.getHeadId(), userData);
+    return userData;
+  }
+
+  private static HistoryBounds newerThan(@NotNull HistoryBounds bounds, long headId) {
+    return new HistoryBounds(Math.max(bounds.afterId(), headId), bounds.beforeId());
+  }
+
+  /** Start sending typing requests, unless the request shows its own indicator. */
+  public void startTyping(@NotNull CommandRequest request) {
+    if (request.showsTyping()) {
+      typingManager.startIfNotRunning(request.getTextChannel());
+    }
   }
 
   /** Stop sending typing requests. */
-  public void stopTyping(TextChannel channel) {
-    typingManager.cancelThread(channel);
+  public void stopTyping(@NotNull CommandRequest request) {
+    if (request.showsTyping()) {
+      typingManager.cancelThread(request.getTextChannel());
+    }
   }
 
   /**
    * Obtains all rarity data for specific user. Check
-   * {@link RarityTypes#computeRarity(BufferedImage)}
+   * {@link RarityTypes#computeRarity(BufferedImage)}. Counts over the whole history also fill
+   * the {@link OccurrenceIndex}.
    *
-   * @param messages Messages from which rarities will be extracted
-   * @param authorId ID of request message author
+   * @param index    index of the channel from which rarities will be extracted
+   * @param bounds   window of messages to count
+   * @param authorId ID of the user whose messages are counted
    * @return returns {@link UserData} containing count of all rarities from user.
    */
-  public UserData getRaritiesFromMessages(@NotNull List<Message> messages,
-      @NotNull String authorId) {
-    UserData userData = new UserData(authorId);
+  public UserData getRaritiesFromMessages(@NotNull ChannelIndex index,
+      @NotNull HistoryBounds bounds, long authorId) {
+    return getRaritiesFromMessages(index, bounds, authorId, new CountProgress(), null);
+  }
+
+  private UserData getRaritiesFromMessages(ChannelIndex index, HistoryBounds bounds,
+      long authorId, CountProgress progress, @Nullable CountResultCache.Entry base) {
+    UserData userData = new UserData(Long.toString(authorId));
+    OccurrenceIndex.Recorder recorder = new OccurrenceIndex.Recorder();
+    int[] positions = bounds.filter(index, index.positionsOf(authorId));
+    int attachments = 0;
+    for (int position : positions) {
+      attachments += index.attachmentCount(position);
+    }
+    progress.start(userData, attachments, base);
     try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
-      for (Message message : messages) {
-        List<Attachment> attachments = message.getAttachments();
-        for (Attachment attachment : attachments) {
-          try {
-            processingLimiter.acquire();
-          } catch (InterruptedException e) {
-            log.error("Failed to acquire semaphore permit, interrupted!", e);
+      List<int[]> batch = new ArrayList<>(MAX_RETRIEVE_SIZE);
+      for (int position : positions) {
+        Optional<RarityTypes> forcedRarity = index.overrideRarity(position);
+        for (int attachment = 0; attachment < index.attachmentCount(position); attachment++) {
+          if (forcedRarity.isPresent()) {
+            userData.increment(forcedRarity.get());
+            recorder.record(index.messageId(position), forcedRarity.get());
             continue;
           }
-          executor.submit(() -> {
-            try {
-              RarityTypes rarity = loadOrComputeImageRarityFromUrl(attachment.getUrl(),
-                  message.getContentRaw());
-              userData.increment(rarity);
-            } finally {
-              processingLimiter.release();
-            }
-          });
+          batch.add(new int[] {position, attachment});
+          if (batch.size() == MAX_RETRIEVE_SIZE) {
+            countBatch(index, batch, executor, userData, recorder);
+            batch = new ArrayList<>(MAX_RETRIEVE_SIZE);
+          }
         }
       }
+      countBatch(index, batch, executor, userData, recorder);
+    }
+    checkCancelled();
+    // a failed attachment may hold any rarity, so the scan can't vouch for the whole history
+    if (bounds.isUnbounded() && !recorder.hasFailures()) {
+      OccurrenceIndex.UserOccurrences occurrences =
+          occurrenceIndex.get(index.getChannelId(), authorId);
+      occurrences.getLock().lock();
+      try {
+        occurrences.recordFullScan(recorder, index.getHeadId());
+      } finally {
+        occurrences.getLock().unlock();
+      }
     }
     return userData;
   }
 
+  /**
+   * Looks up a batch of attachments in the cache at once, then computes the rarities of the
+   * missing ones concurrently.
+   *
+   * @param index    index containing the attachments
+   * @param batch    pairs of message position and attachment number
+   * @param executor executor on which the missing rarities are computed
+   * @param userData counts to increment
+   * @param recorder recorder of occurrences, failed downloads are counted as
+   *                 {@link RarityTypes#UNKNOWN} but recorded as failures
+   */
+  private void countBatch(ChannelIndex index, List<int[]> batch, ExecutorService executor,
+      UserData userData, OccurrenceIndex.Recorder recorder) {
+    List<AttachmentKey> keys = batch.stream()
+        .map(x -> new AttachmentKey(
+            index.attachmentId(x[0], x[1]), index.attachmentUrl(x[0], x[1])))
+        .toList();
+    Map<Long, RarityTypes> cached = cache.getAll(keys);
+    for (int i = 0; i < batch.size(); i++) {
+      int[] entry = batch.get(i);
+      long messageId = index.messageId(entry[0]);
+      AttachmentKey key = keys.get(i);
+      RarityTypes cachedRarity = cached.get(key.attachmentId());
+      if (cachedRarity != null) {
+        userData.increment(cachedRarity);
+        recorder.record(messageId, cachedRarity);
+        continue;
+      }
+      try {
+        processingLimiter.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new CancellationException("Command cancelled");
+      }
+      executor.submit(() -> {
+        try {
+          Optional<RarityTypes> rarity = tryComputeRarityFromUrl(key.attachmentId(),
+              downloadUrl(index, entry[0], entry[1]));
+          userData.increment(rarity.orElse(RarityTypes.UNKNOWN));
+          if (rarity.isPresent()) {
+            recorder.record(messageId, rarity.get());
+          } else {
+            recorder.recordFailure();
+          }
+        } finally {
+          processingLimiter.release();
+        }
+      });
+    }
+  }
+
+  /**
+   * Queues a command on the {@link CommandScheduler} if the bot is enabled and the
+   * {@link AdmissionControl} rate limits allow it. The request is deferred first if it needs
+   * to be, or declined if the bot is disabled. Rejected commands and commands that have to
+   * wait are answered right away. The command can be cancelled through {@link CommandJobs}.
+   *
+   * @param request request of the command
+   * @param task    the command
+   */
+  public void submit(@NotNull CommandRequest request, @NotNull Runnable task) {
+    if (!properties.isBotEnabled()) {
+      request.decline("The bot is disabled.").ifPresent(
+          x -> restBudget.queue(RestBudget.Route.INTERACTION,
+              request.getTextChannel().getIdLong(), x));
+      return;
+    }
+    request.defer().ifPresent(
+        x -> restBudget.queue(RestBudget.Route.INTERACTION, request.getTextChannel().getIdLong(),
+            x));
+    if (!admissionControl.tryAcquire(request.getGuild().getIdLong(),
+        request.getAuthor().getIdLong())) {
+      reject(request, "Too many commands, try again in a few seconds.");
+      return;
+    }
+    CommandJobs.Token token = commandJobs.register(request.getIdLong());
+    int waiting;
+    try {
+      waiting = commandScheduler.submit(
+          request.getGuild().getIdLong(), request.getAuthor().getIdLong(),
+          () -> runCancellable(request, token, task));
+    } catch (RejectedExecutionException e) {
+      commandJobs.finish(token);
+      reject(request, "The bot is busy, try again later.");
+      return;
+    }
+    if (waiting > 0) {
+      reply(request, "Queued, " + waiting + (waiting == 1 ? " command" : " commands")
+          + " waiting.");
+    }
+  }
+
+  /**
+   * Answers a request within the {@link RestBudget}, without waiting for the reply.
+   */
+  public void reply(@NotNull CommandRequest request, @NotNull String text) {
+    restBudget.queue(RestBudget.Route.REPLY, request.getTextChannel().getIdLong(),
+        request.reply(text));
+  }
+
+  /**
+   * Answers a request within the {@link RestBudget}.
+   *
+   * @return future completed with the reply
+   */
+  public CompletableFuture<Message> submitReply(@NotNull CommandRequest request,
+      @NotNull String text) {
+    return restBudget.submit(RestBudget.Route.REPLY, request.getTextChannel().getIdLong(),
+        request.reply(text));
+  }
+
+  /**
+   * Edits a reply to a request within the {@link RestBudget}.
+   *
+   * @param request request the message replied to
+   * @param reply   the reply
+   * @param text    new text of the reply
+   * @return future completed with the edited message
+   */
+  public CompletableFuture<Message> edit(@NotNull CommandRequest request, @NotNull Message reply,
+      @NotNull String text) {
+    return restBudget.submit(RestBudget.Route.EDIT, request.getTextChannel().getIdLong(),
+        request.edit(reply, text));
+  }
+
+  /**
+   * Answers a request with all pages of a {@link PagedReply} in order, or with a single
+   * attachment if the reply is too long.
+   *
+   * @return future completed once the last page is sent
+   */
+  public CompletableFuture<Void> reply(@NotNull CommandRequest request,
+      @NotNull PagedReply reply) {
+    if (reply.isAttachment()) {
+      return restBudget.submit(RestBudget.Route.REPLY, request.getTextChannel().getIdLong(),
+              request.reply("The results are attached.",
+                  reply.fileText().getBytes(StandardCharsets.UTF_8), reply.fileName()))
+          .thenRun(() -> { });
+    }
+    CompletableFuture<?> sent = CompletableFuture.completedFuture(null);
+    for (String page : reply.pages()) {
+      sent = sent.thenCompose(previous -> submitReply(request, page));
+    }
+    return sent.thenRun(() -> { });
+  }
+
+  /**
+   * Shows whether the arguments of a request were accepted, without waiting for the
+   * acknowledgement.
+   */
+  public void acknowledge(@NotNull CommandRequest request, boolean accepted) {
+    request.acknowledge(accepted).ifPresent(
+        x -> restBudget.queue(RestBudget.Route.REACTION, request.getTextChannel().getIdLong(),
+            x));
+  }
+
+  /**
+   * Rejects a command with an acknowledgement and a reply explaining why, without waiting for
+   * either.
+   */
+  public void reject(@NotNull CommandRequest request, @NotNull String reason) {
+    acknowledge(request, false);
+    reply(request, reason);
+  }
+
+  /**
+   * Computes the result of a command for one user, sharing it with identical commands, see
+   * {@link CommandDeduplicator}.
+   *
+   * @param type        type of the command
+   * @param channel     channel the command processes
+   * @param userId      ID of the user whose messages are processed
+   * @param arguments   remaining arguments of the command
+   * @param computation computes the result
+   * @return the result
+   */
+  public <T> T deduplicate(@NotNull String type, @NotNull TextChannel channel, long userId,
+      @NotNull Object arguments, @NotNull Supplier<T> computation) {
+    return commandDeduplicator.compute(
+        new CommandDeduplicator.Key(type, channel.getIdLong(), userId, arguments), computation);
+  }
+
+  private void runCancellable(CommandRequest request, CommandJobs.Token token, Runnable task) {
+    try {
+      commandJobs.run(token, task);
+    } catch (CancellationException e) {
+      log.infof("Command %d cancelled: %s.", request.getIdLong(), token.getReason());
+      stopTyping(request);
+      if (CommandJobs.DEADLINE_EXCEEDED.equals(token.getReason())) {
+        reply(request, "Command cancelled: " + token.getReason() + ".");
+      }
+    }
+  }
+
+  /**
+   * Stops the current command if it was cancelled, see {@link CommandJobs}.
+   *
+   * @throws CancellationException if the current thread was interrupted
+   */
+  private static void checkCancelled() {
+    if (Thread.currentThread().isInterrupted()) {
+      throw new CancellationException("Command cancelled");
+    }
+  }
+
+  /**
+   * Reserves the attachments of users within bounds that have to be downloaded in the
+   * {@link AdmissionControl} budget. Attachments already in the {@link Cache} and those of
+   * messages forcing a rarity are not reserved; the lookup leaves them in the near cache for the
+   * command. Replies to the command if the budget is exhausted.
+   *
+   * @param request  request of the command
+   * @param index    index of the channel
+   * @param bounds   window of messages the command processes
+   * @param authors  users whose messages the command processes
+   * @return the reservation to close once the command finishes
+   * @throws RejectedExecutionException if the budget is exhausted
+   */
+  public AdmissionControl.Reservation reserveWork(@NotNull CommandRequest request,
+      @NotNull ChannelIndex index, @NotNull HistoryBounds bounds,
+      @NotNull Collection<User> authors) {
+    long attachments = 0;
+    List<AttachmentKey> keys = new ArrayList<>();
+    for (User author : authors) {
+      for (int position : bounds.filter(index, index.positionsOf(author.getIdLong()))) {
+        if (index.overrideRarity(position).isPresent()) {
+          continue;
+        }
+        for (int attachment = 0; attachment < index.attachmentCount(position); attachment++) {
+          keys.add(new AttachmentKey(index.attachmentId(position, attachment),
+              index.attachmentUrl(position, attachment)));
+          if (keys.size() == RESERVE_LOOKUP_SIZE) {
+            attachments += keys.size() - cache.getAll(keys).size();
+            keys.clear();
+          }
+        }
+      }
+    }
+    attachments += keys.size() - cache.getAll(keys).size();
+    Optional<AdmissionControl.Reservation> reservation = admissionControl.reserve(attachments);
+    if (reservation.isEmpty()) {
+      reject(request, "The bot is busy, try again later.");
+      throw new RejectedExecutionException("Attachment budget exhausted");
+    }
+    return reservation.get();
+  }
+
   @NotNull
-  public Set<User> accumulateUsers(@NotNull CommandEvent event) {
+  public Set<User> accumulateUsers(@NotNull CommandRequest request) {
     Set<User> mentions = new HashSet<>();
-    if (!event.getMessage().getMentionedRoles().isEmpty()) {
-      event.getGuild().getMembersWithRoles(event.getMessage().getMentionedRoles()).stream()
+    if (!request.getMentionedRoles().isEmpty()) {
+      request.getGuild().getMembersWithRoles(request.getMentionedRoles()).stream()
           .map(Member::getUser)
           .forEach(mentions::add);
     }
-    if (!event.getMessage().getMentionedUsers().isEmpty()) {
-      mentions.addAll(event.getMessage().getMentionedUsers());
+    if (!request.getMentionedUsers().isEmpty()) {
+      mentions.addAll(request.getMentionedUsers());
     }
     if (mentions.isEmpty()) {
-      mentions.add(event.getAuthor());
+      mentions.add(request.getAuthor());
     }
     return mentions;
   }
 
   /**
-   * Attempts to load rarity from cache, if unsuccessful, computes the rarity from Image from URL.
+   * Returns a URL the attachment can be downloaded from. Discord CDN URLs are taken from the
+   * recently retrieved signed URLs while they are valid, otherwise they are refreshed by
+   * retrieving the message again, see {@link ChannelIndex#isUrlExpired}.
    *
-   * @param imageUrl       URL where the image is stored
-   * @param messageContent text from a message
-   * @return rarity extracted from image or loaded from cache.
-   */
-  private RarityTypes loadOrComputeImageRarityFromUrl(String imageUrl, String messageContent) {
-    RarityTypes rarity = null;
-    if (messageContent.startsWith("*")) {
-      Optional<RarityTypes> forcedRarity = RarityTypes.parse(messageContent.substring(1));
-      if (forcedRarity.isPresent()) {
-        rarity = forcedRarity.get();
-      }
+   * @param index      index containing the message
+   * @param position   position of the message in the index
+   * @param attachment number of the attachment in the message
+   * @return signed URL, or the indexed one if it is still valid or can't be refreshed
+   */
+  private String downloadUrl(ChannelIndex index, int position, int attachment) {
+    String url = index.attachmentUrl(position, attachment);
+    long now = Instant.now().getEpochSecond();
+    if (!ChannelIndex.isUrlExpired(url, now)) {
+      return url;
     }
-    if (rarity == null) {
-      rarity = retrieveRarityFromUrl(imageUrl);
+    long attachmentId = index.attachmentId(position, attachment);
+    String signedUrl = signedUrls.getIfPresent(attachmentId);
+    if (signedUrl != null && !ChannelIndex.isUrlExpired(signedUrl, now)) {
+      return signedUrl;
     }
-    if (rarity == RarityTypes.UNKNOWN) {
-      log.infof("Unknown rarity in %s!", imageUrl);
+    TextChannel channel =
+        shardManager == null ? null : shardManager.getTextChannelById(index.getChannelId());
+    if (channel == null) {
+      return url;
     }
-    return rarity;
+    try {
+      Message message =
+          completeHistory(channel, channel.retrieveMessageById(index.messageId(position)));
+      rememberUrls(message);
+      return message.getAttachments().stream()
+          .filter(x -> x.getIdLong() == attachmentId)
+          .findFirst()
+          .map(Message.Attachment::getUrl)
+          .orElse(url);
+    } catch (RateLimitedException | ErrorResponseException e) {
+      log.warnf(e, "Failed to refresh the URL of attachment %d!", attachmentId);
+      return url;
+    }
+  }
+
+  @NotNull
+  public RarityTypes retrieveRarityFromUrl(long attachmentId, @NotNull String imageUrl) {
+    Optional<RarityTypes> cachedValue = cache.getAndParse(attachmentId, imageUrl);
+    return cachedValue.orElseGet(() -> computeRarityFromUrl(attachmentId, imageUrl));
   }
 
+  /**
+   * Downloads the image and computes its rarity, which is saved to the cache unless the download
+   * failed.
+   *
+   * @param attachmentId ID of the attachment
+   * @param imageUrl     URL where the image is stored
+   * @return computed rarity, {@link RarityTypes#UNKNOWN} if it could not be determined
+   */
   @NotNull
-  public RarityTypes retrieveRarityFromUrl(@NotNull String imageUrl) {
+  private RarityTypes computeRarityFromUrl(long attachmentId, @NotNull String imageUrl) {
+    return tryComputeRarityFromUrl(attachmentId, imageUrl).orElse(RarityTypes.UNKNOWN);
+  }
+
+  /**
+   * Downloads the image and computes its rarity, which is saved to the cache.
+   *
+   * @param attachmentId ID of the attachment
+   * @param imageUrl     URL where the image is stored
+   * @return {@link Optional} of the computed rarity, empty if the download failed
+   */
+  private Optional<RarityTypes> tryComputeRarityFromUrl(long attachmentId,
+      @NotNull String imageUrl) {
     RarityTypes rarity;
-    Optional<RarityTypes> cachedValue = cache.getAndParse(imageUrl);
-    rarity = cachedValue.orElse(RarityTypes.UNKNOWN);
-    if (cachedValue.isEmpty()) {
-      try {
-        BufferedImage bufferedImage = new Retryer().upon(ConnectException.class,
-                Retryer.Delay.ofMillis(3000).exponentialBackoff(1, 3))
-            .retryBlockingly(() -> loadImageFromUrl(imageUrl));
-        rarity = RarityTypes.computeRarity(bufferedImage);
-        if (rarity != RarityTypes.UNKNOWN) {
-          cache.save(imageUrl, rarity.toString());
-        }
-      } catch (Exception e) {
+    try {
+      BufferedImage bufferedImage = new Retryer().upon(ConnectException.class,
+              Retryer.Delay.ofMillis(3000).exponentialBackoff(1, 3))
+          .retryBlockingly(() -> loadImageFromUrl(imageUrl));
+      rarity = RarityTypes.computeRarity(bufferedImage);
+      cache.save(attachmentId, rarity);
+    } catch (Exception e) {
+      if (!Thread.currentThread().isInterrupted()) {
         log.error("Failed to retrieve an image!", e);
       }
+      return Optional.empty();
     }
-    return rarity;
+    if (rarity == RarityTypes.UNKNOWN) {
+      log.infof("Unknown rarity in %s!", imageUrl);
+    }
+    return Optional.of(rarity);
   }
 
+  /**
+   * Computes the rarity holding a permit of the processing limiter, which bounds the number of
+   * concurrent downloads across all commands.
+   *
+   * @return {@link Optional} of the computed rarity, empty if the download failed
+   * @throws InterruptedException if interrupted while waiting for a permit
+   */
+  private Optional<RarityTypes> computeRarityLimited(long attachmentId, @NotNull String imageUrl)
+      throws InterruptedException {
+    processingLimiter.acquire();
+    try {
+      return tryComputeRarityFromUrl(attachmentId, imageUrl);
+    } finally {
+      processingLimiter.release();
+    }
+  }
 
   /**
    * Loads image from a URL into a BufferedImage.
@@ -235,52 +853,278 @@ public class CommandService {
           return ImageIO.read(bais);
         }
       });
-      return imageLoading.get();
-    } catch (ExecutionException | InterruptedException e) {
+      try {
+        return imageLoading.get();
+      } catch (InterruptedException e) {
+        imageLoading.cancel(true);
+        Thread.currentThread().interrupt();
+        throw new IOException("Image parsing cancelled", e);
+      }
+    } catch (ExecutionException e) {
       throw new IOException("Failed to parse an image!", e);
     }
   }
 
   /**
-   * Finds the occurrence of rarity.
+   * Finds the occurrence of rarity. Without bounds the {@link OccurrenceIndex} is consulted first
+   * and only the part of the history it does not cover is scanned, filling the index on the way.
    *
-   * @param messages        list of messages in which the rarity is searched
+   * @param index           index of the channel in which the rarity is searched
+   * @param bounds          window of messages to search
+   * @param authorId        ID of the user whose messages are searched
    * @param requestedRarity rarity to find
-   * @param reverse         if true iterates over messages in reverse order
-   * @return {@link Optional} of message (empty if specified rarity is not present)
-   */
-  public Optional<Message> getOccurrence(
-      List<Message> messages, RarityTypes requestedRarity, boolean reverse) {
-    return reverse
-        ? getOccurrenceLast(messages, requestedRarity)
-        : getOccurrenceFirst(messages, requestedRarity);
-  }
-
-  private Optional<Message> getOccurrenceLast(List<Message> messages, RarityTypes requestedRarity) {
-    for (Message message : messages) {
-      for (Attachment attachment : message.getAttachments()) {
-        RarityTypes rarity = loadOrComputeImageRarityFromUrl(attachment.getUrl(),
-            message.getContentRaw());
-        if (rarity == requestedRarity) {
-          return Optional.of(message);
+   * @param reverse         if true searches from the newest message
+   * @return {@link Optional} of the occurrence (empty if specified rarity is not present)
+   * @throws CancellationException if the command was cancelled during the search
+   */
+  public Optional<Occurrence> getOccurrence(ChannelIndex index, HistoryBounds bounds,
+      long authorId, RarityTypes requestedRarity, boolean reverse) {
+    int[] positions = bounds.filter(index, index.positionsOf(authorId));
+    Optional<Occurrence> occurrence;
+    if (!bounds.isUnbounded()) {
+      occurrence = reverse
+          ? getOccurrenceLast(index, positions, requestedRarity)
+          : getOccurrenceFirst(index, positions, requestedRarity);
+    } else {
+      OccurrenceIndex.UserOccurrences occurrences =
+          occurrenceIndex.get(index.getChannelId(), authorId);
+      occurrences.getLock().lock();
+      try {
+        occurrence = reverse
+            ? getIndexedOccurrenceLast(index, positions, requestedRarity, occurrences)
+            : getIndexedOccurrenceFirst(index, positions, requestedRarity, occurrences);
+      } finally {
+        occurrences.getLock().unlock();
+      }
+    }
+    checkCancelled();
+    return occurrence;
+  }
+
+  private Optional<Occurrence> getOccurrenceLast(ChannelIndex index, int[] positions,
+      RarityTypes requestedRarity) {
+    int hit = searchInOrder(index, positions, requestedRarity, (rarities, position) -> {});
+    return hit == -1 ? Optional.empty() : Optional.of(index.occurrence(positions[hit]));
+  }
+
+  private Optional<Occurrence> getOccurrenceFirst(ChannelIndex index, int[] positions,
+      RarityTypes requestedRarity) {
+    int[] oldestFirst = reverse(positions);
+    int hit = searchInOrder(index, oldestFirst, requestedRarity, (rarities, position) -> {});
+    return hit == -1 ? Optional.empty() : Optional.of(index.occurrence(oldestFirst[hit]));
+  }
+
+  /**
+   * Looks up the last occurrence in the index. Messages newer than the indexed head are
+   * classified first, then the scan continues below the covered range until a hit.
+   */
+  private Optional<Occurrence> getIndexedOccurrenceLast(ChannelIndex index, int[] positions,
+      RarityTypes requestedRarity, OccurrenceIndex.UserOccurrences occurrences) {
+    if (occurrences.getLastCoveredHead() == 0) {
+      occurrences.anchorLast(index.getHeadId());
+    } else {
+      long head = occurrences.getLastCoveredHead();
+      int[] newer = Arrays.stream(positions).filter(x -> index.messageId(x) > head).toArray();
+      OccurrenceIndex.Recorder recorder = new OccurrenceIndex.Recorder();
+      boolean[] classified = {true};
+      searchInOrder(index, newer, null, (rarities, position) -> {
+        classified[0] &= isClassified(rarities);
+        for (RarityTypes rarity : rarities) {
+          if (rarity != null) {
+            recorder.record(index.messageId(position), rarity);
+          }
+        }
+      });
+      checkCancelled();
+      if (!classified[0]) {
+        // the head can't move past messages that failed, search without the index this time
+        return getOccurrenceLast(index, positions, requestedRarity);
+      }
+      occurrences.moveLastHead(recorder, index.getHeadId());
+    }
+    OptionalLong indexed = occurrences.last(requestedRarity);
+    if (indexed.isPresent()) {
+      return Optional.of(
+          new Occurrence(index.getGuildId(), index.getChannelId(), indexed.getAsLong()));
+    }
+    long coveredFrom = occurrences.getLastCoveredFrom();
+    int[] uncovered =
+        Arrays.stream(positions).filter(x -> index.messageId(x) < coveredFrom).toArray();
+    boolean[] classified = {true};
+    int hit = searchInOrder(index, uncovered, requestedRarity, (rarities, position) -> {
+      classified[0] &= isClassified(rarities);
+      if (classified[0]) {
+        for (RarityTypes rarity : rarities) {
+          occurrences.recordLast(index.messageId(position), rarity);
         }
+        occurrences.coverLastFrom(index.messageId(position));
       }
+    });
+    if (hit != -1) {
+      return Optional.of(index.occurrence(uncovered[hit]));
+    }
+    if (classified[0] && !Thread.currentThread().isInterrupted()) {
+      occurrences.coverLastFrom(0);
     }
     return Optional.empty();
   }
 
-  private Optional<Message> getOccurrenceFirst(List<Message> messages,
-      RarityTypes requestedRarity) {
-    for (int i = messages.size() - 1; i > 0; i--) {
-      Message message = messages.get(i);
-      for (Attachment attachment : message.getAttachments()) {
-        RarityTypes rarity = loadOrComputeImageRarityFromUrl(attachment.getUrl(),
-            message.getContentRaw());
-        if (rarity == requestedRarity) {
-          return Optional.of(message);
+  /**
+   * Looks up the first occurrence in the index, if it is not there, scans the messages after
+   * the covered range from the oldest until a hit.
+   */
+  private Optional<Occurrence> getIndexedOccurrenceFirst(ChannelIndex index, int[] positions,
+      RarityTypes requestedRarity, OccurrenceIndex.UserOccurrences occurrences) {
+    OptionalLong indexed = occurrences.first(requestedRarity);
+    if (indexed.isPresent()) {
+      return Optional.of(
+          new Occurrence(index.getGuildId(), index.getChannelId(), indexed.getAsLong()));
+    }
+    long coveredThrough = occurrences.getFirstCoveredThrough();
+    int[] uncovered = Arrays.stream(reverse(positions))
+        .filter(x -> index.messageId(x) > coveredThrough)
+        .toArray();
+    boolean[] classified = {true};
+    int hit = searchInOrder(index, uncovered, requestedRarity, (rarities, position) -> {
+      classified[0] &= isClassified(rarities);
+      if (classified[0]) {
+        for (RarityTypes rarity : rarities) {
+          occurrences.recordFirst(index.messageId(position), rarity);
         }
+        occurrences.coverFirstThrough(index.messageId(position));
       }
+    });
+    if (hit != -1) {
+      return Optional.of(index.occurrence(uncovered[hit]));
+    }
+    if (classified[0] && !Thread.currentThread().isInterrupted()) {
+      occurrences.coverFirstThrough(index.getHeadId());
     }
     return Optional.empty();
   }
+
+  /**
+   * <p>Classifies messages in scan order using a sliding window of concurrent classifications
+   * ('occurrence-search-window' system property, 16 by default).</p>
+   * <p>Results are consumed strictly in scan order, so the returned hit is always the earliest
+   * one. Once it is found, classifications of later messages still in flight are cancelled.
+   * The window is refilled once half of it was consumed, see {@link #classifyWindow}.</p>
+   *
+   * @param index           index containing the messages
+   * @param scanOrder       positions of messages in the order in which they are searched
+   * @param requestedRarity rarity to stop at, or null to classify all messages
+   * @param onResolved      receives rarities of each message in scan order, up to the hit, null
+   *                        for attachments that could not be classified
+   * @return index into {@code scanOrder} of the first message containing the rarity, or -1 if
+   *     there is none or the command was cancelled
+   */
+  private int searchInOrder(ChannelIndex index, int[] scanOrder,
+      @Nullable RarityTypes requestedRarity, ObjIntConsumer<RarityTypes[]> onResolved) {
+    ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    ArrayDeque<Future<RarityTypes[]>> window = new ArrayDeque<>(SEARCH_WINDOW);
+    try {
+      int submitted = 0;
+      for (int i = 0; i < scanOrder.length; i++) {
+        if (submitted < scanOrder.length && submitted - i <= SEARCH_WINDOW / 2) {
+          int end = Math.min(scanOrder.length, i + SEARCH_WINDOW);
+          window.addAll(
+              classifyWindow(index, Arrays.copyOfRange(scanOrder, submitted, end), executor));
+          submitted = end;
+        }
+        RarityTypes[] rarities;
+        try {
+          rarities = window.remove().get();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return -1;
+        } catch (ExecutionException e) {
+          log.error("Failed to classify a message!", e);
+          rarities = new RarityTypes[index.attachmentCount(scanOrder[i])];
+        }
+        if (Thread.currentThread().isInterrupted()) {
+          // results that completed before the cancellation may not be recorded either
+          return -1;
+        }
+        onResolved.accept(rarities, scanOrder[i]);
+        for (RarityTypes rarity : rarities) {
+          if (rarity != null && rarity == requestedRarity) {
+            return i;
+          }
+        }
+      }
+      return -1;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Starts classifying messages after looking up all their attachments in the cache at once.
+   * Only attachments missing from the cache are downloaded, see
+   * {@link #computeRarityLimited}.
+   *
+   * @param index     index containing the messages
+   * @param positions positions of the messages
+   * @param executor  executor on which the messages are classified
+   * @return rarities of the attachments of each message, in the order of {@code positions}
+   */
+  private List<Future<RarityTypes[]>> classifyWindow(ChannelIndex index, int[] positions,
+      ExecutorService executor) {
+    List<AttachmentKey> keys = new ArrayList<>();
+    for (int position : positions) {
+      if (index.overrideRarity(position).isEmpty()) {
+        for (int attachment = 0; attachment < index.attachmentCount(position); attachment++) {
+          keys.add(new AttachmentKey(index.attachmentId(position, attachment),
+              index.attachmentUrl(position, attachment)));
+        }
+      }
+    }
+    Map<Long, RarityTypes> cached = cache.getAll(keys);
+    List<Future<RarityTypes[]>> futures = new ArrayList<>(positions.length);
+    for (int position : positions) {
+      futures.add(executor.submit(() -> classifyMessage(index, position, cached)));
+    }
+    return futures;
+  }
+
+  /**
+   * Classifies the attachments of a message. Rarity forced by the message text takes precedence
+   * over cached rarities, attachments that are not cached are downloaded. Attachments whose
+   * download failed are left null.
+   */
+  private RarityTypes[] classifyMessage(ChannelIndex index, int position,
+      Map<Long, RarityTypes> cached) throws InterruptedException {
+    Optional<RarityTypes> forcedRarity = index.overrideRarity(position);
+    RarityTypes[] rarities = new RarityTypes[index.attachmentCount(position)];
+    for (int attachment = 0; attachment < rarities.length; attachment++) {
+      if (forcedRarity.isPresent()) {
+        rarities[attachment] = forcedRarity.get();
+        continue;
+      }
+      long attachmentId = index.attachmentId(position, attachment);
+      RarityTypes cachedRarity = cached.get(attachmentId);
+      rarities[attachment] = cachedRarity != null ? cachedRarity
+          : computeRarityLimited(attachmentId, downloadUrl(index, position, attachment))
+              .orElse(null);
+    }
+    return rarities;
+  }
+
+  /** Whether all attachments of a message were classified, see {@link #searchInOrder}. */
+  private static boolean isClassified(RarityTypes[] rarities) {
+    for (RarityTypes rarity : rarities) {
+      if (rarity == null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int[] reverse(int[] positions) {
+    int[] reversed = new int[positions.length];
+    for (int i = 0; i < positions.length; i++) {
+      reversed[i] = positions[positions.length - 1 - i];
+    }
+    return reversed;
+  }
 }
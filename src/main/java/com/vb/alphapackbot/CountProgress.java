@@ -0,0 +1,79 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.vb.alphapackbot;
+
+import java.util.EnumMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Running totals of a count in progress, read while the count is still running. Every processed
+ * attachment increments exactly one rarity, so the sum of the counts is the number of processed
+ * attachments.
+ */
+public final class CountProgress {
+  private volatile @Nullable UserData counts;
+  private volatile @Nullable CountResultCache.Entry base;
+  private volatile int total;
+
+  /**
+   * Called once the attachments to process are known.
+   *
+   * @param counts counts being incremented by the count
+   * @param total  number of attachments to process
+   * @param base   cached count the new counts are added to, if any
+   */
+  void start(@NotNull UserData counts, int total, @Nullable CountResultCache.Entry base) {
+    this.total = total;
+    this.base = base;
+    this.counts = counts;
+  }
+
+  public boolean isStarted() {
+    return counts != null;
+  }
+
+  /**
+   * Percent of the attachments processed so far. The attachments are known only once the
+   * history is retrieved, so this does not include retrieving the history.
+   */
+  public int getPercent() {
+    UserData current = counts;
+    if (current == null) {
+      return 0;
+    }
+    int processed = 0;
+    for (RarityTypes rarity : RarityTypes.values()) {
+      processed += current.getRarityCount(rarity);
+    }
+    return total == 0 ? 100 : Math.min(100, processed * 100 / total);
+  }
+
+  /**
+   * Copies the running totals, including the cached count they are added to.
+   */
+  public UserData snapshot() {
+    UserData current = counts;
+    if (current == null) {
+      throw new IllegalStateException("Count not started");
+    }
+    CountResultCache.Entry cached = base;
+    UserData copy = new UserData(new EnumMap<>(current.getRarityData()), current.getAuthorId());
+    return cached == null ? copy : cached.plus(copy);
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.vb.alphapackbot;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import jakarta.inject.Singleton;
+import java.util.EnumMap;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import net.dv8tion.jda.api.utils.TimeUtil;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * <p>Finished counts per channel, user and {@link HistoryBounds}, each valid for all messages up
+ * to the head of the index it was computed from.</p>
+ * <p>Holds at most 'count-cache-size' results (10000 by default) for 'count-cache-ttl' seconds
+ * (one day). Entries of a channel are dropped together with its {@link HistoryCache} index, so
+ * deleted or edited messages are never counted from here.</p>
+ */
+@Singleton
+public class CountResultCache {
+  private final Cache<Key, Entry> results = CacheBuilder.newBuilder()
+      .maximumSize(Long.getLong("count-cache-size", 10_000))
+      .expireAfterWrite(Long.getLong("count-cache-ttl", 24 * 60 * 60), TimeUnit.SECONDS)
+      .build();
+  private final Set<Long> channels = ConcurrentHashMap.newKeySet();
+
+  public Optional<Entry> get(long channelId, long userId, @NotNull HistoryBounds bounds) {
+    return Optional.ofNullable(results.getIfPresent(new Key(channelId, userId, bounds)));
+  }
+
+  /**
+   * Caches a count unless a count up to a newer head is already present.
+   *
+   * @param channelId ID of the counted channel
+   * @param bounds    window of the count
+   * @param headId    ID of the newest message the count covers
+   * @param userData  counted rarities
+   */
+  public void put(long channelId, @NotNull HistoryBounds bounds, long headId,
+      @NotNull UserData userData) {
+    int[] counts = new int[RarityTypes.values().length];
+    for (RarityTypes rarity : RarityTypes.values()) {
+      counts[rarity.ordinal()] = userData.getRarityCount(rarity);
+    }
+    results.asMap().merge(
+        new Key(channelId, Long.parseLong(userData.getAuthorId()), bounds),
+        new Entry(headId, System.currentTimeMillis(), counts),
+        (previous, next) -> previous.headId() > next.headId() ? previous : next);
+    channels.add(channelId);
+  }
+
+  /** Drops all counts of a channel. */
+  public void invalidateChannel(long channelId) {
+    if (channels.remove(channelId)) {
+      results.asMap().keySet().removeIf(key -> key.channelId() == channelId);
+    }
+  }
+
+  /** Whether counts of a channel may be present, evicted counts can leave a stale marker. */
+  public boolean hasChannel(long channelId) {
+    return channels.contains(channelId);
+  }
+
+  private record Key(long channelId, long userId, HistoryBounds bounds) {}
+
+  /**
+   * Cached count.
+   *
+   * @param headId     ID of the newest message the count covers
+   * @param computedAt time of the count in epoch milliseconds
+   * @param counts     count per {@link RarityTypes} ordinal
+   */
+  public record Entry(long headId, long computedAt, int[] counts) {
+
+    /**
+     * Whether the window ended before the count, so no message can be added to it anymore.
+     */
+    public boolean isFinal(@NotNull HistoryBounds bounds) {
+      return bounds.beforeId() <= TimeUtil.getDiscordTimestamp(computedAt);
+    }
+
+    /**
+     * Creates a copy of the counts.
+     */
+    public UserData toUserData(long userId) {
+      EnumMap<RarityTypes, Integer> rarityData = new EnumMap<>(RarityTypes.class);
+      for (RarityTypes rarity : RarityTypes.values()) {
+        rarityData.put(rarity, counts[rarity.ordinal()]);
+      }
+      return new UserData(rarityData, Long.toString(userId));
+    }
+
+    /**
+     * Adds counts of messages newer than {@link #headId()}.
+     */
+    public UserData plus(@NotNull UserData delta) {
+      UserData merged = toUserData(Long.parseLong(delta.getAuthorId()));
+      for (RarityTypes rarity : RarityTypes.values()) {
+        merged.getRarityData().merge(rarity, delta.getRarityCount(rarity), Integer::sum);
+      }
+      return merged;
+    }
+  }
+}
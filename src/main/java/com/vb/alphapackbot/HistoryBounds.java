@@ -0,0 +1,127 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import net.dv8tion.jda.api.utils.TimeUtil;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Snowflake window of a history query. Both bounds are exclusive, {@code 0} and
+ * {@link Long#MAX_VALUE} mean unbounded.
+ *
+ * @param afterId  only messages with a greater ID are included
+ * @param beforeId only messages with a smaller ID are included
+ */
+public record HistoryBounds(long afterId, long beforeId) {
+  public static final HistoryBounds UNBOUNDED = new HistoryBounds(0, Long.MAX_VALUE);
+  private static final Pattern BOUND_PATTERN =
+      Pattern.compile("\\b(since|until):(\\S+)", Pattern.CASE_INSENSITIVE);
+  private static final Pattern SNOWFLAKE_PATTERN = Pattern.compile("\\d{15,20}");
+  private static final DateTimeFormatter[] DATE_FORMATS = {
+      DateTimeFormatter.ISO_LOCAL_DATE,
+      DateTimeFormatter.ofPattern("dd.MM.yyyy")
+  };
+
+  public boolean isUnbounded() {
+    return afterId == 0 && beforeId == Long.MAX_VALUE;
+  }
+
+  public boolean hasUpperBound() {
+    return beforeId != Long.MAX_VALUE;
+  }
+
+  public boolean contains(long messageId) {
+    return messageId > afterId && messageId < beforeId;
+  }
+
+  /**
+   * Keeps only positions of messages inside these bounds.
+   *
+   * @param index     index the positions refer to
+   * @param positions positions to filter
+   * @return filtered positions, in the original order
+   */
+  public int[] filter(@NotNull ChannelIndex index, int[] positions) {
+    if (isUnbounded()) {
+      return positions;
+    }
+    return Arrays.stream(positions).filter(x -> contains(index.messageId(x))).toArray();
+  }
+
+  /**
+   * Parses "since:" and "until:" arguments. Both accept a date (yyyy-MM-dd or dd.MM.yyyy, UTC)
+   * or a message ID and are inclusive.
+   *
+   * @param arguments command arguments
+   * @return parsed bounds, {@link #UNBOUNDED} if none are present
+   * @throws IllegalArgumentException if a bound can not be parsed
+   */
+  public static HistoryBounds parse(@NotNull String arguments) {
+    long afterId = 0;
+    long beforeId = Long.MAX_VALUE;
+    Matcher matcher = BOUND_PATTERN.matcher(arguments);
+    while (matcher.find()) {
+      String value = matcher.group(2);
+      if (matcher.group(1).toLowerCase(Locale.ROOT).equals("since")) {
+        afterId = SNOWFLAKE_PATTERN.matcher(value).matches()
+            ? Long.parseLong(value) - 1
+            : TimeUtil.getDiscordTimestamp(startOfDay(parseDate(value))) - 1;
+      } else {
+        beforeId = SNOWFLAKE_PATTERN.matcher(value).matches()
+            ? Long.parseLong(value) + 1
+            : TimeUtil.getDiscordTimestamp(startOfDay(parseDate(value).plusDays(1)));
+      }
+    }
+    if (afterId < 0) {
+      afterId = 0;
+    }
+    if (afterId >= beforeId) {
+      throw new IllegalArgumentException("'since' must be before 'until'");
+    }
+    return new HistoryBounds(afterId, beforeId);
+  }
+
+  /**
+   * Removes "since:" and "until:" arguments from the text.
+   */
+  public static String strip(@NotNull String arguments) {
+    return BOUND_PATTERN.matcher(arguments).replaceAll("");
+  }
+
+  private static LocalDate parseDate(String value) {
+    for (DateTimeFormatter format : DATE_FORMATS) {
+      try {
+        return LocalDate.parse(value, format);
+      } catch (DateTimeParseException e) {
+        // Try the next format
+      }
+    }
+    throw new IllegalArgumentException("Invalid date or message ID: " + value);
+  }
+
+  private static long startOfDay(LocalDate date) {
+    return date.atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.primitives.Ints;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import java.util.Optional;
+import net.dv8tion.jda.api.events.message.MessageBulkDeleteEvent;
+import net.dv8tion.jda.api.events.message.guild.GuildMessageDeleteEvent;
+import net.dv8tion.jda.api.events.message.guild.GuildMessageUpdateEvent;
+import net.dv8tion.jda.api.hooks.ListenerAdapter;
+import org.jboss.logging.Logger;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * <p>Memory bounded cache of {@link ChannelIndex} shared by all commands, keyed by channel ID.</p>
+ * <p>The budget is set by the 'history-cache-bytes' system property (64 MiB by default), least
+ * recently used channels are evicted first. Deleting or editing an indexed message invalidates
+ * the cached (and stored) index of its channel, its {@link OccurrenceIndex} entries and its
+ * {@link CountResultCache} counts.</p>
+ */
+@Singleton
+public class HistoryCache extends ListenerAdapter {
+  private static final Logger log = Logger.getLogger(HistoryCache.class);
+  private final com.google.common.cache.Cache<Long, ChannelIndex> indices;
+  final ChannelIndexStore channelIndexStore;
+  final OccurrenceIndex occurrenceIndex;
+  final CountResultCache countResultCache;
+
+  @Inject
+  public HistoryCache(ChannelIndexStore channelIndexStore, OccurrenceIndex occurrenceIndex,
+      CountResultCache countResultCache) {
+    this.channelIndexStore = channelIndexStore;
+    this.occurrenceIndex = occurrenceIndex;
+    this.countResultCache = countResultCache;
+    long maximumBytes = Long.getLong("history-cache-bytes", 64L * 1024 * 1024);
+    this.indices = CacheBuilder.newBuilder()
+        .maximumWeight(maximumBytes)
+        .<Long, ChannelIndex>weigher(
+            (channelId, index) -> Ints.saturatedCast(index.estimatedBytes()))
+        .recordStats()
+        .build();
+  }
+
+  /**
+   * Returns the cached index of a channel, falling back to the stored one.
+   *
+   * @param channelId ID of the channel
+   * @return {@link Optional} containing the index or empty.
+   */
+  public Optional<ChannelIndex> get(long channelId) {
+    ChannelIndex index = indices.getIfPresent(channelId);
+    if (index != null) {
+      return Optional.of(index);
+    }
+    Optional<ChannelIndex> stored = channelIndexStore.load(channelId);
+    stored.ifPresent(x -> indices.put(channelId, x));
+    return stored;
+  }
+
+  /**
+   * Caches the index unless a newer one for the same channel is already present.
+   */
+  public void put(@NotNull ChannelIndex index) {
+    ChannelIndex current = indices.asMap()
+        .merge(index.getChannelId(), index,
+            (previous, next) -> previous.getHeadId() > next.getHeadId() ? previous : next);
+    if (current == index) {
+      channelIndexStore.save(index);
+    }
+  }
+
+  /** Drops the cached and stored index of a channel together with its occurrences and counts. */
+  public void invalidate(long channelId) {
+    indices.invalidate(channelId);
+    channelIndexStore.delete(channelId);
+    occurrenceIndex.invalidateChannel(channelId);
+    countResultCache.invalidateChannel(channelId);
+  }
+
+  public CacheStats getStats() {
+    return indices.stats();
+  }
+
+  /**
+   * Invalidates the channel only when its index contains the message. Without an index only
+   * counts and occurrences of bounded windows may cover the message, those are dropped when
+   * present and the message may have attachments.
+   */
+  private void invalidateIfIndexed(long channelId, long messageId, boolean hasAttachments) {
+    ChannelIndex index = indices.getIfPresent(channelId);
+    if (index == null && channelIndexStore.contains(channelId)) {
+      index = get(channelId).orElse(null);
+    }
+    if (index != null && index.contains(messageId)) {
+      log.debugf("Message %d changed, invalidating channel %d.", messageId, channelId);
+      invalidate(channelId);
+    } else if (hasAttachments && (index == null || messageId > index.getHeadId())) {
+      if (occurrenceIndex.hasChannel(channelId) || countResultCache.hasChannel(channelId)) {
+        log.debugf("Message %d changed, invalidating results of channel %d.", messageId,
+            channelId);
+        occurrenceIndex.invalidateChannel(channelId);
+        countResultCache.invalidateChannel(channelId);
+      }
+    }
+  }
+
+  @Override
+  public void onGuildMessageDelete(@NotNull GuildMessageDeleteEvent event) {
+    invalidateIfIndexed(event.getChannel().getIdLong(), event.getMessageIdLong(), true);
+  }
+
+  /**
+   * Edits of the bot's own replies, like progress updates, never change a count. Other messages
+   * without attachments only matter if the index still holds them, i.e. attachments were removed.
+   */
+  @Override
+  public void onGuildMessageUpdate(@NotNull GuildMessageUpdateEvent event) {
+    if (event.getAuthor().getIdLong() == event.getJDA().getSelfUser().getIdLong()) {
+      return;
+    }
+    invalidateIfIndexed(event.getChannel().getIdLong(), event.getMessageIdLong(),
+        !event.getMessage().getAttachments().isEmpty());
+  }
+
+  @Override
+  public void onMessageBulkDelete(@NotNull MessageBulkDeleteEvent event) {
+    invalidate(event.getChannel().getIdLong());
+  }
+}
@@ -18,52 +18,81 @@ package com.vb.alphapackbot;
 
 import com.jagrosh.jdautilities.command.Command;
 import com.jagrosh.jdautilities.command.CommandClientBuilder;
+import com.vb.alphapackbot.commands.SlashCommandListener;
 import jakarta.enterprise.inject.Instance;
 import jakarta.enterprise.inject.Produces;
 import jakarta.inject.Singleton;
+import java.util.ArrayList;
+import java.util.List;
 import javax.annotation.Nullable;
 import jakarta.inject.Inject;
 import javax.security.auth.login.LoginException;
-import net.dv8tion.jda.api.JDA;
-import net.dv8tion.jda.api.JDABuilder;
+import net.dv8tion.jda.api.sharding.DefaultShardManagerBuilder;
+import net.dv8tion.jda.api.sharding.ShardManager;
 import org.jboss.logging.Logger;
 
 public class JdaManager {
   private static final Logger log = Logger.getLogger(JdaManager.class);
 
   @Inject Instance<Command> commands;
+  @Inject HistoryCache historyCache;
+  @Inject CommandJobs commandJobs;
+  @Inject SlashCommandListener slashCommandListener;
+  @Inject ShardExecutors shardExecutors;
 
   /**
-   * Attempts to initialize and build a JDA with token from environment variable 'TOKEN'.
+   * <p>Attempts to initialize and build a {@link ShardManager} with token from environment
+   * variable 'TOKEN'. Shards log in in the background.</p>
+   * <p>The total number of shards is set by the 'shard-total' system property, Discord's
+   * recommendation is used if it is not set. A process can run a slice of the shards, from
+   * 'shard-min' to 'shard-max' (inclusive), which requires 'shard-total'. Each shard gets its
+   * own executors, see {@link ShardExecutors}.</p>
+   * <p>Commands are registered as slash commands, the prefixed ones ("*pack ") can be turned off
+   * with the 'prefix-commands' system property.</p>
    *
-   * @return An instance of {@link JDA} representing the bot API, or null.
+   * @return An instance of {@link ShardManager} representing the bot API, or null.
    */
   @Produces
   @Singleton
   @Nullable
-  public JDA createJda() {
+  public ShardManager createShardManager() {
     String token = System.getenv("TOKEN");
     if (token == null) {
       log.fatal("You must supply a bot token in environment variable 'TOKEN'.");
       return null;
     }
-    final JDABuilder builder = JDABuilder.createLight(token);
+    int shardTotal = Integer.getInteger("shard-total", -1);
+    Integer shardMin = Integer.getInteger("shard-min");
+    Integer shardMax = Integer.getInteger("shard-max");
+    final DefaultShardManagerBuilder builder = DefaultShardManagerBuilder.createLight(token)
+        .setShardsTotal(shardTotal)
+        .setEventPoolProvider(shardExecutors::eventPool)
+        .setRateLimitPoolProvider(shardExecutors::rateLimitPool);
+    if (shardMin != null || shardMax != null) {
+      if (shardTotal < 1) {
+        log.fatal("'shard-min' and 'shard-max' require 'shard-total'.");
+        return null;
+      }
+      builder.setShards(shardMin == null ? 0 : shardMin,
+          shardMax == null ? shardTotal - 1 : shardMax);
+    }
     try {
-      var commandClient =
-          new CommandClientBuilder()
-              .setPrefix("*pack ")
-              .setOwnerId(355011687495237632L)
-              .addCommands(commands.stream().toArray(Command[]::new))
-              .build();
-      final JDA jda = builder
-          .addEventListeners(commandClient)
+      List<Object> listeners = new ArrayList<>(List.of(historyCache, commandJobs,
+          slashCommandListener));
+      if (Boolean.parseBoolean(System.getProperty("prefix-commands", "true"))) {
+        listeners.add(new CommandClientBuilder()
+            .setPrefix("*pack ")
+            .setOwnerId(355011687495237632L)
+            .addCommands(commands.stream().toArray(Command[]::new))
+            .build());
+      }
+      return builder
+          .addEventListeners(listeners.toArray())
           .build();
-      jda.awaitReady();
-      return jda;
     } catch (LoginException e) {
       log.fatal("Invalid token", e);
-    } catch (InterruptedException e) {
-      log.fatal("Interrupted while JDA is getting ready!", e);
+    } catch (IllegalArgumentException e) {
+      log.fatal("Invalid shard configuration", e);
     }
     return null;
   }
@@ -0,0 +1,121 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>Request count, error count and latency of requests to a cache node. Thread safe.</p>
+ * <p>Latencies are also counted in a histogram with the upper bounds in {@link #BOUNDS_MICROS},
+ * the last bucket holds everything slower.</p>
+ */
+public final class LatencyStats {
+  static final long[] BOUNDS_MICROS = {
+      50, 100, 250, 500, 1_000, 2_500, 5_000, 10_000, 25_000, 50_000, 100_000, 250_000, 1_000_000
+  };
+  private final LongAdder[] histogram = new LongAdder[BOUNDS_MICROS.length + 1];
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder errors = new LongAdder();
+  private final LongAdder totalNanos = new LongAdder();
+  private final AtomicLong maxNanos = new AtomicLong();
+
+  public LatencyStats() {
+    for (int i = 0; i < histogram.length; i++) {
+      histogram[i] = new LongAdder();
+    }
+  }
+
+  public void record(long nanos) {
+    requests.increment();
+    totalNanos.add(nanos);
+    maxNanos.accumulateAndGet(nanos, Math::max);
+    histogram[bucketOf(nanos / 1000)].increment();
+  }
+
+  public void recordError() {
+    errors.increment();
+  }
+
+  public long getRequests() {
+    return requests.sum();
+  }
+
+  public long getErrors() {
+    return errors.sum();
+  }
+
+  public long getAverageMicros() {
+    long count = requests.sum();
+    return count == 0 ? 0 : totalNanos.sum() / count / 1000;
+  }
+
+  public long getMaxMicros() {
+    return maxNanos.get() / 1000;
+  }
+
+  /**
+   * Returns the current bucket counts, one more than there are {@link #BOUNDS_MICROS}.
+   */
+  public long[] getHistogram() {
+    long[] counts = new long[histogram.length];
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = histogram[i].sum();
+    }
+    return counts;
+  }
+
+  public long getPercentileMicros(double quantile) {
+    return percentileMicros(getHistogram(), quantile);
+  }
+
+  /**
+   * Estimates a percentile as the upper bound of the bucket it falls into.
+   *
+   * @param counts   bucket counts, see {@link #getHistogram()}
+   * @param quantile quantile between 0 and 1
+   * @return upper bound in microseconds, 0 if there are no samples, {@link Long#MAX_VALUE} if
+   *     the percentile is above the last bound
+   */
+  static long percentileMicros(long[] counts, double quantile) {
+    long total = 0;
+    for (long count : counts) {
+      total += count;
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(total * quantile);
+    long seen = 0;
+    for (int i = 0; i < BOUNDS_MICROS.length; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return BOUNDS_MICROS[i];
+      }
+    }
+    return Long.MAX_VALUE;
+  }
+
+  private static int bucketOf(long micros) {
+    for (int i = 0; i < BOUNDS_MICROS.length; i++) {
+      if (micros <= BOUNDS_MICROS[i]) {
+        return i;
+      }
+    }
+    return BOUNDS_MICROS.length;
+  }
+}
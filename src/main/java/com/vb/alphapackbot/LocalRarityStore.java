@@ -0,0 +1,198 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.OptionalInt;
+import java.util.function.LongConsumer;
+
+/**
+ * <p>Memory-mapped open addressing hash table of attachment ID to encoded rarity (see
+ * {@link CacheSchema}), used by {@link Cache} as a persistent local tier.</p>
+ * <p>Each value carries a pending flag marking it as not yet written to redis. Pending values
+ * are written there once redis is reachable again, see {@link #pendingEntries}. The table has a
+ * fixed number of slots and refuses new keys once three quarters of them are used.</p>
+ */
+final class LocalRarityStore implements Closeable {
+  private static final int MAGIC = 0x52415231;
+  private static final int HEADER_BYTES = 16;
+  private static final int SLOT_BYTES = 10;
+  private static final byte FLAG_PENDING = 1;
+  private final FileChannel channel;
+  private final MappedByteBuffer buffer;
+  private final int slots;
+  private int size;
+
+  private LocalRarityStore(FileChannel channel, MappedByteBuffer buffer, int slots, int size) {
+    this.channel = channel;
+    this.buffer = buffer;
+    this.slots = slots;
+    this.size = size;
+  }
+
+  /**
+   * Opens the store, creating it if the file doesn't exist or has a different number of slots.
+   *
+   * @param file  backing file
+   * @param slots number of slots
+   * @return opened store
+   * @throws IOException if the file can not be opened or mapped
+   */
+  static LocalRarityStore open(Path file, int slots) throws IOException {
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    long bytes = HEADER_BYTES + (long) slots * SLOT_BYTES;
+    boolean valid = false;
+    if (channel.size() == bytes) {
+      MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+      valid = header.getInt(0) == MAGIC && header.getInt(4) == slots;
+    }
+    if (!valid) {
+      channel.truncate(0);
+    }
+    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+    if (!valid) {
+      buffer.putInt(0, MAGIC);
+      buffer.putInt(4, slots);
+      buffer.putInt(8, 0);
+    }
+    return new LocalRarityStore(channel, buffer, slots, buffer.getInt(8));
+  }
+
+  synchronized OptionalInt get(long attachmentId) {
+    int slot = find(attachmentId);
+    if (slot < 0 || buffer.getLong(offset(slot)) == 0) {
+      return OptionalInt.empty();
+    }
+    return OptionalInt.of(buffer.get(offset(slot) + 8));
+  }
+
+  /**
+   * Stores a value, replacing the previous value of the attachment.
+   *
+   * @param attachmentId ID of the attachment, must not be 0
+   * @param value        encoded rarity
+   * @param pending      whether the value still has to be written to redis
+   * @return false if the store is full
+   */
+  synchronized boolean put(long attachmentId, byte value, boolean pending) {
+    int slot = find(attachmentId);
+    if (slot < 0) {
+      return false;
+    }
+    int offset = offset(slot);
+    if (buffer.getLong(offset) == 0) {
+      if (size >= slots / 4 * 3) {
+        return false;
+      }
+      buffer.putLong(offset, attachmentId);
+      buffer.putInt(8, ++size);
+    }
+    buffer.put(offset + 8, value);
+    buffer.put(offset + 9, pending ? FLAG_PENDING : 0);
+    return true;
+  }
+
+  /**
+   * Collects pending values, scanning slots from a cursor.
+   *
+   * @param cursor slot to start at, 0 for the first call
+   * @param limit  maximum number of values to collect
+   * @param out    map receiving attachment IDs and values
+   * @return cursor for the next call, 0 once all slots were scanned
+   */
+  synchronized int pendingEntries(int cursor, int limit, Map<Long, Byte> out) {
+    int slot = cursor;
+    for (; slot < slots && out.size() < limit; slot++) {
+      int offset = offset(slot);
+      if (buffer.get(offset + 9) == FLAG_PENDING) {
+        out.put(buffer.getLong(offset), buffer.get(offset + 8));
+      }
+    }
+    return slot == slots ? 0 : slot;
+  }
+
+  /**
+   * Clears the pending flag of values written to redis, unless they changed meanwhile.
+   */
+  synchronized void markSynced(Map<Long, Byte> written) {
+    written.forEach((attachmentId, value) -> {
+      int slot = find(attachmentId);
+      if (slot >= 0 && buffer.getLong(offset(slot)) == attachmentId
+          && buffer.get(offset(slot) + 8) == value) {
+        buffer.put(offset(slot) + 9, (byte) 0);
+      }
+    });
+  }
+
+  synchronized void forEachKey(LongConsumer consumer) {
+    for (int slot = 0; slot < slots; slot++) {
+      long key = buffer.getLong(offset(slot));
+      if (key != 0) {
+        consumer.accept(key);
+      }
+    }
+  }
+
+  synchronized int size() {
+    return size;
+  }
+
+  synchronized void force() {
+    buffer.force();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    buffer.force();
+    channel.close();
+  }
+
+  /**
+   * Returns the slot holding the attachment or the empty slot where it belongs, -1 if the table
+   * has neither.
+   */
+  private int find(long attachmentId) {
+    int slot = (int) Long.remainderUnsigned(mix(attachmentId), slots);
+    for (int i = 0; i < slots; i++) {
+      long key = buffer.getLong(offset(slot));
+      if (key == attachmentId || key == 0) {
+        return slot;
+      }
+      slot = slot + 1 == slots ? 0 : slot + 1;
+    }
+    return -1;
+  }
+
+  private static int offset(int slot) {
+    return HEADER_BYTES + slot * SLOT_BYTES;
+  }
+
+  private static long mix(long key) {
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    key *= 0xc4ceb9fe1a85ec53L;
+    return key ^ (key >>> 33);
+  }
+}
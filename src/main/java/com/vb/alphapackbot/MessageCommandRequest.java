@@ -0,0 +1,114 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.vb.alphapackbot;
+
+import com.jagrosh.jdautilities.command.CommandEvent;
+import java.util.List;
+import java.util.Optional;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.IMentionable;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.Role;
+import net.dv8tion.jda.api.entities.TextChannel;
+import net.dv8tion.jda.api.entities.User;
+import net.dv8tion.jda.api.requests.RestAction;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Command sent as a prefixed message. Answers are replies to the message, acknowledgements are
+ * reactions.
+ */
+public final class MessageCommandRequest implements CommandRequest {
+  private final CommandEvent event;
+
+  public MessageCommandRequest(@NotNull CommandEvent event) {
+    this.event = event;
+  }
+
+  @Override
+  public long getIdLong() {
+    return event.getMessage().getIdLong();
+  }
+
+  @Override
+  public Guild getGuild() {
+    return event.getGuild();
+  }
+
+  @Override
+  public User getAuthor() {
+    return event.getAuthor();
+  }
+
+  @Override
+  public TextChannel getTextChannel() {
+    return event.getTextChannel();
+  }
+
+  @Override
+  public String getArgs() {
+    return event.getMessage().getMentions(Message.MentionType.values()).stream()
+        .map(IMentionable::getAsMention)
+        .reduce(event.getArgs(), (args, mention) -> args.replace(mention, ""));
+  }
+
+  @Override
+  public List<User> getMentionedUsers() {
+    return event.getMessage().getMentionedUsers();
+  }
+
+  @Override
+  public List<Role> getMentionedRoles() {
+    return event.getMessage().getMentionedRoles();
+  }
+
+  @Override
+  public boolean showsTyping() {
+    return true;
+  }
+
+  @Override
+  public Optional<RestAction<?>> defer() {
+    return Optional.empty();
+  }
+
+  @Override
+  public Optional<RestAction<?>> decline(@NotNull String reason) {
+    return Optional.empty();
+  }
+
+  @Override
+  public Optional<RestAction<?>> acknowledge(boolean accepted) {
+    return Optional.of(event.getMessage().addReaction(accepted ? "U+1F44D" : "U+1F44E"));
+  }
+
+  @Override
+  public RestAction<Message> reply(@NotNull String text) {
+    return event.getMessage().reply(text);
+  }
+
+  @Override
+  public RestAction<Message> reply(@NotNull String text, byte[] file, @NotNull String fileName) {
+    return event.getMessage().reply(text).addFile(file, fileName);
+  }
+
+  @Override
+  public RestAction<Message> edit(@NotNull Message reply, @NotNull String text) {
+    return reply.editMessage(text);
+  }
+}
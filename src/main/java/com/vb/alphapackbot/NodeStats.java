@@ -0,0 +1,96 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.vb.alphapackbot;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.commons.pool2.impl.GenericObjectPool;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>Statistics of one cache node: latency of all commands and of each operation separately,
+ * time spent waiting for a pooled connection and the state of the pool.</p>
+ * <p>Nodes whose pool is managed by the client library have no pool and no borrow times.</p>
+ */
+public final class NodeStats {
+  private final LatencyStats commands = new LatencyStats();
+  private final LatencyStats borrow = new LatencyStats();
+  private final Map<String, LatencyStats> operations = new ConcurrentHashMap<>();
+  private volatile @Nullable GenericObjectPool<?> pool;
+
+  NodeStats(@Nullable GenericObjectPool<?> pool) {
+    this.pool = pool;
+  }
+
+  void setPool(GenericObjectPool<?> pool) {
+    this.pool = pool;
+  }
+
+  @Nullable GenericObjectPool<?> getPool() {
+    return pool;
+  }
+
+  void recordBorrow(long nanos) {
+    borrow.record(nanos);
+  }
+
+  void recordCommand(String operation, long nanos) {
+    commands.record(nanos);
+    operations.computeIfAbsent(operation, key -> new LatencyStats()).record(nanos);
+  }
+
+  void recordError(String operation) {
+    commands.recordError();
+    operations.computeIfAbsent(operation, key -> new LatencyStats()).recordError();
+  }
+
+  public LatencyStats getCommands() {
+    return commands;
+  }
+
+  public LatencyStats getBorrow() {
+    return borrow;
+  }
+
+  /** Latency per operation name, sorted by name. */
+  public Map<String, LatencyStats> getOperations() {
+    return Collections.unmodifiableMap(new TreeMap<>(operations));
+  }
+
+  public int getActive() {
+    GenericObjectPool<?> current = pool;
+    return current == null ? 0 : current.getNumActive();
+  }
+
+  public int getIdle() {
+    GenericObjectPool<?> current = pool;
+    return current == null ? 0 : current.getNumIdle();
+  }
+
+  public int getWaiters() {
+    GenericObjectPool<?> current = pool;
+    return current == null ? 0 : current.getNumWaiters();
+  }
+
+  public int getMaxTotal() {
+    GenericObjectPool<?> current = pool;
+    return current == null ? 0 : current.getMaxTotal();
+  }
+}
@@ -0,0 +1,35 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import java.time.OffsetDateTime;
+import net.dv8tion.jda.api.utils.TimeUtil;
+
+/**
+ * Identifies a single message in which a rarity was found. Creation time and jump URL are
+ * derived from the snowflakes.
+ */
+public record Occurrence(long guildId, long channelId, long messageId) {
+
+  public OffsetDateTime timeCreated() {
+    return TimeUtil.getTimeCreated(messageId);
+  }
+
+  public String jumpUrl() {
+    return "https://discord.com/channels/" + guildId + "/" + channelId + "/" + messageId;
+  }
+}
@@ -0,0 +1,205 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import jakarta.inject.Singleton;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * <p>Keeps the first and last message ID of every rarity per user and channel, filled as a side
+ * effect of classification.</p>
+ * <p>Entries are only trusted inside the covered part of the history: the first occurrences are
+ * valid for a contiguous range starting at the oldest message, the last occurrences for a
+ * contiguous range ending at a known head. Counts cover the whole history at once, first / last
+ * scans extend the ranges message by message.</p>
+ */
+@Singleton
+public class OccurrenceIndex {
+  private final Cache<Key, UserOccurrences> occurrences = CacheBuilder.newBuilder()
+      .maximumSize(Long.getLong("occurrence-index-size", 100_000))
+      .build();
+  private final Set<Long> channels = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Returns the occurrences of a user in a channel, creating an empty entry if needed.
+   */
+  public UserOccurrences get(long channelId, long userId) {
+    UserOccurrences userOccurrences = occurrences.asMap()
+        .computeIfAbsent(new Key(channelId, userId), key -> new UserOccurrences());
+    // marked after the entry exists so a concurrent invalidation can't leave it unmarked
+    channels.add(channelId);
+    return userOccurrences;
+  }
+
+  /** Drops all entries of a channel. */
+  public void invalidateChannel(long channelId) {
+    if (channels.remove(channelId)) {
+      occurrences.asMap().keySet().removeIf(key -> key.channelId() == channelId);
+    }
+  }
+
+  /** Whether entries of a channel may be present, evicted entries can leave a stale marker. */
+  public boolean hasChannel(long channelId) {
+    return channels.contains(channelId);
+  }
+
+  private record Key(long channelId, long userId) {}
+
+  /**
+   * Collects the first and last message ID of each rarity during a count. Thread safe.
+   */
+  public static final class Recorder {
+    private final long[] first = new long[RarityTypes.values().length];
+    private final long[] last = new long[RarityTypes.values().length];
+    private boolean failed;
+
+    /** Marks an attachment that could not be classified, the scan then covers nothing. */
+    public synchronized void recordFailure() {
+      failed = true;
+    }
+
+    public synchronized boolean hasFailures() {
+      return failed;
+    }
+
+    public synchronized void record(long messageId, @NotNull RarityTypes rarity) {
+      int ordinal = rarity.ordinal();
+      if (first[ordinal] == 0 || messageId < first[ordinal]) {
+        first[ordinal] = messageId;
+      }
+      last[ordinal] = Math.max(last[ordinal], messageId);
+    }
+  }
+
+  /**
+   * Occurrences of one user in one channel. All methods must be called while holding
+   * {@link #getLock()}.
+   */
+  public static final class UserOccurrences {
+    private final Lock lock = new ReentrantLock();
+    private final long[] first = new long[RarityTypes.values().length];
+    private final long[] last = new long[RarityTypes.values().length];
+    /** All messages with ID up to this one (inclusive) were classified. */
+    private long firstCoveredThrough;
+    /** Head at which the last occurrences are valid, 0 if not anchored yet. */
+    private long lastCoveredHead;
+    /** All messages from this ID up to {@link #lastCoveredHead} were classified. */
+    private long lastCoveredFrom;
+
+    public Lock getLock() {
+      return lock;
+    }
+
+    public OptionalLong first(@NotNull RarityTypes rarity) {
+      long messageId = first[rarity.ordinal()];
+      return messageId == 0 ? OptionalLong.empty() : OptionalLong.of(messageId);
+    }
+
+    public OptionalLong last(@NotNull RarityTypes rarity) {
+      long messageId = last[rarity.ordinal()];
+      return messageId == 0 ? OptionalLong.empty() : OptionalLong.of(messageId);
+    }
+
+    public long getFirstCoveredThrough() {
+      return firstCoveredThrough;
+    }
+
+    public long getLastCoveredHead() {
+      return lastCoveredHead;
+    }
+
+    public long getLastCoveredFrom() {
+      return lastCoveredFrom;
+    }
+
+    /**
+     * Records a rarity found while scanning from the oldest message.
+     */
+    public void recordFirst(long messageId, @NotNull RarityTypes rarity) {
+      if (first[rarity.ordinal()] == 0) {
+        first[rarity.ordinal()] = messageId;
+      }
+    }
+
+    /**
+     * Records a rarity found while scanning towards the oldest message.
+     */
+    public void recordLast(long messageId, @NotNull RarityTypes rarity) {
+      last[rarity.ordinal()] = Math.max(last[rarity.ordinal()], messageId);
+    }
+
+    public void coverFirstThrough(long messageId) {
+      firstCoveredThrough = Math.max(firstCoveredThrough, messageId);
+    }
+
+    public void coverLastFrom(long messageId) {
+      lastCoveredFrom = Math.min(lastCoveredFrom, messageId);
+    }
+
+    /**
+     * Anchors the last occurrences at a head without covering any message yet.
+     */
+    public void anchorLast(long headId) {
+      lastCoveredHead = headId;
+      lastCoveredFrom = headId + 1;
+    }
+
+    /**
+     * Moves the head once all messages between the old and the new head were classified.
+     *
+     * @param recorder occurrences of the messages between the old and the new head
+     * @param headId   new head
+     */
+    public void moveLastHead(@NotNull Recorder recorder, long headId) {
+      synchronized (recorder) {
+        for (int i = 0; i < last.length; i++) {
+          last[i] = Math.max(last[i], recorder.last[i]);
+        }
+      }
+      lastCoveredHead = Math.max(lastCoveredHead, headId);
+    }
+
+    /**
+     * Merges results of a count over the whole history up to a head.
+     */
+    public void recordFullScan(@NotNull Recorder recorder, long headId) {
+      boolean lastContiguous = headId >= lastCoveredHead || lastCoveredFrom <= headId + 1;
+      synchronized (recorder) {
+        for (int i = 0; i < first.length; i++) {
+          if (recorder.first[i] != 0 && (first[i] == 0 || recorder.first[i] < first[i])) {
+            first[i] = recorder.first[i];
+          }
+          if (lastContiguous) {
+            last[i] = Math.max(last[i], recorder.last[i]);
+          }
+        }
+      }
+      coverFirstThrough(headId);
+      if (lastContiguous) {
+        lastCoveredHead = Math.max(lastCoveredHead, headId);
+        lastCoveredFrom = 0;
+      }
+    }
+  }
+}
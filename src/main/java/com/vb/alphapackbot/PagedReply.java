@@ -0,0 +1,105 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.vb.alphapackbot;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * <p>Reply made of blocks of text, one per user, packed into as few messages as possible.</p>
+ * <p>Blocks are only split between messages when a single block does not fit into one. Replies
+ * longer than 'reply-max-pages' (3 by default) messages are sent as a single text attachment
+ * instead.</p>
+ *
+ * @param pages    messages of the reply, each at most {@link #MAX_LENGTH} characters long
+ * @param fileName name of the attachment
+ * @param fileText content of the attachment
+ */
+public record PagedReply(List<String> pages, String fileName, String fileText) {
+  /** Maximum length of a Discord message. */
+  public static final int MAX_LENGTH = 2000;
+  private static final int MAX_PAGES = Integer.getInteger("reply-max-pages", 3);
+
+  /**
+   * Creates a reply of a single message, or of several if the text is too long.
+   */
+  public static PagedReply of(@NotNull String text) {
+    return of(List.of(text), "reply.txt", List.of(text));
+  }
+
+  /**
+   * Packs blocks into pages.
+   *
+   * @param blocks     blocks of the messages
+   * @param fileName   name of the attachment
+   * @param fileBlocks blocks of the attachment, in the same order
+   * @return the reply
+   */
+  public static PagedReply of(@NotNull List<String> blocks, @NotNull String fileName,
+      @NotNull List<String> fileBlocks) {
+    return new PagedReply(split(blocks, MAX_LENGTH), fileName, String.join("\n", fileBlocks));
+  }
+
+  /** Whether the reply is too long for messages and has to be attached. */
+  public boolean isAttachment() {
+    return pages.size() > MAX_PAGES;
+  }
+
+  /** The same reply without its first page. */
+  public PagedReply withoutFirstPage() {
+    return new PagedReply(pages.subList(Math.min(1, pages.size()), pages.size()), fileName,
+        fileText);
+  }
+
+  /**
+   * Joins blocks by new lines into pages no longer than the limit.
+   *
+   * @param blocks blocks to join
+   * @param limit  maximum length of a page
+   * @return the pages, in order
+   */
+  static List<String> split(@NotNull List<String> blocks, int limit) {
+    List<String> pages = new ArrayList<>();
+    StringBuilder page = new StringBuilder();
+    for (String block : blocks) {
+      if (!page.isEmpty() && page.length() + 1 + block.length() > limit) {
+        pages.add(page.toString());
+        page.setLength(0);
+      }
+      if (!page.isEmpty()) {
+        page.append('\n');
+      }
+      page.append(block);
+      while (page.length() > limit) {
+        int newline = page.lastIndexOf("\n", limit);
+        if (newline > 0) {
+          pages.add(page.substring(0, newline));
+          page.delete(0, newline + 1);
+        } else {
+          pages.add(page.substring(0, limit));
+          page.delete(0, limit);
+        }
+      }
+    }
+    if (!page.isEmpty()) {
+      pages.add(page.toString());
+    }
+    return pages;
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.vb.alphapackbot;
+
+import java.time.Duration;
+import org.apache.commons.pool2.impl.GenericObjectPool;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.jboss.logging.Logger;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>Configures redis connection pools and adapts their size to observed borrow wait times.</p>
+ * <p>Pools start at 'redis-pool-max-total' connections (16 by default) with 'redis-pool-max-idle'
+ * (same as max-total), 'redis-pool-min-idle' (1) and 'redis-pool-max-wait-ms' (2000) before a
+ * borrow fails. With 'redis-pool-auto-size' enabled (default), {@link #adjust()} grows the pool
+ * by half up to 'redis-pool-limit' (64) connections whenever callers waited for a connection or
+ * the 95th percentile of borrow waits exceeded 'redis-pool-wait-target-micros' (1000), and
+ * shrinks it by one connection back towards the configured size when it is mostly idle.</p>
+ */
+final class PoolSizer {
+  static final boolean AUTO_SIZE =
+      Boolean.parseBoolean(System.getProperty("redis-pool-auto-size", "true"));
+  static final long ADJUST_INTERVAL = Long.getLong("redis-pool-adjust-interval", 5000);
+  private static final Logger log = Logger.getLogger(PoolSizer.class);
+  private static final int MAX_TOTAL = Integer.getInteger("redis-pool-max-total", 16);
+  private static final int MAX_IDLE = Integer.getInteger("redis-pool-max-idle", MAX_TOTAL);
+  private static final int MIN_IDLE = Integer.getInteger("redis-pool-min-idle", 1);
+  private static final long MAX_WAIT = Long.getLong("redis-pool-max-wait-ms", 2000);
+  private static final int LIMIT = Math.max(MAX_TOTAL, Integer.getInteger("redis-pool-limit", 64));
+  private static final long WAIT_TARGET = Long.getLong("redis-pool-wait-target-micros", 1000);
+  private final String name;
+  private final GenericObjectPool<?> pool;
+  private final @Nullable LatencyStats borrow;
+  private final int base;
+  private final int limit;
+  private final long waitTarget;
+  private long[] lastHistogram;
+
+  /**
+   * @param name   name of the pool used in logs
+   * @param pool   pool to resize
+   * @param borrow borrow wait times of the pool, null if only waiters can be observed
+   */
+  PoolSizer(String name, GenericObjectPool<?> pool, @Nullable LatencyStats borrow) {
+    this(name, pool, borrow, MAX_TOTAL, LIMIT, WAIT_TARGET);
+  }
+
+  PoolSizer(String name, @Nullable GenericObjectPool<?> pool, @Nullable LatencyStats borrow,
+            int base, int limit, long waitTarget) {
+    this.name = name;
+    this.pool = pool;
+    this.borrow = borrow;
+    this.base = base;
+    this.limit = limit;
+    this.waitTarget = waitTarget;
+    this.lastHistogram = borrow == null ? null : borrow.getHistogram();
+  }
+
+  /**
+   * Applies the configured sizing to a pool configuration.
+   */
+  static <T extends GenericObjectPoolConfig<?>> T configure(T config) {
+    config.setBlockWhenExhausted(true);
+    config.setMaxTotal(MAX_TOTAL);
+    config.setMaxIdle(Math.min(MAX_IDLE, MAX_TOTAL));
+    config.setMinIdle(MIN_IDLE);
+    config.setMaxWait(Duration.ofMillis(MAX_WAIT));
+    return config;
+  }
+
+  /**
+   * Resizes the pool based on the borrows since the previous call.
+   */
+  void adjust() {
+    long p95 = 0;
+    if (borrow != null) {
+      long[] current = borrow.getHistogram();
+      long[] window = new long[current.length];
+      for (int i = 0; i < current.length; i++) {
+        window[i] = current[i] - lastHistogram[i];
+      }
+      lastHistogram = current;
+      p95 = LatencyStats.percentileMicros(window, 0.95);
+    }
+    int maxTotal = pool.getMaxTotal();
+    int size = nextSize(maxTotal, p95, pool.getNumWaiters(), pool.getNumActive());
+    if (size != maxTotal) {
+      log.infof("Resizing redis pool %s from %d to %d connections (p95 borrow wait %d us).",
+          name, maxTotal, size, p95);
+      pool.setMaxIdle(size > base ? size : Math.min(MAX_IDLE, size));
+      pool.setMaxTotal(size);
+    }
+  }
+
+  /**
+   * Computes the next maximum pool size.
+   *
+   * @param maxTotal   current maximum size
+   * @param p95Micros  95th percentile of borrow waits since the last adjustment
+   * @param waiters    callers currently waiting for a connection
+   * @param active     connections currently borrowed
+   * @return new maximum size
+   */
+  int nextSize(int maxTotal, long p95Micros, int waiters, int active) {
+    if ((waiters > 0 || p95Micros > waitTarget) && maxTotal < limit) {
+      return Math.min(limit, maxTotal + Math.max(1, maxTotal / 2));
+    }
+    if (waiters == 0 && p95Micros <= waitTarget && active <= maxTotal / 2 && maxTotal > base) {
+      return maxTotal - 1;
+    }
+    return maxTotal;
+  }
+}
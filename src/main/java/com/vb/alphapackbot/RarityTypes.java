@@ -42,6 +42,11 @@ public enum RarityTypes {
   private static final ImmutableBiMap<RarityTypes, String> stringValueMap = Stream.of(values())
       .collect(ImmutableBiMap.toImmutableBiMap(x -> x, RarityTypes::toString));
   private static final int MAX_COLOR_DISTANCE = 3;
+  /**
+   * Version of {@link #computeRarity(BufferedImage)}, increment whenever the color ranges or
+   * areas change. Stored together with cached rarities.
+   */
+  public static final int CLASSIFIER_VERSION = 1;
   private final String rarity;
   private final ImmutableList<ColorRanges> colorRanges;
 
@@ -0,0 +1,201 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.params.ScanParams;
+import redis.clients.jedis.resps.ScanResult;
+
+/**
+ * {@link CacheBackend} of a single standalone redis with its own connection pool, sized by
+ * {@link PoolSizer}. Every operation is one pipelined round trip; the time spent waiting for a
+ * connection is recorded separately from the command latency.
+ */
+public class RedisNode implements CacheBackend {
+  private final String address;
+  private final JedisPool jedisPool;
+  private final long unknownTtl;
+  private final NodeStats stats;
+  private final PoolSizer sizer;
+
+  public RedisNode(HostAndPort node, long unknownTtl) {
+    this.address = node.toString();
+    this.jedisPool = new JedisPool(
+        PoolSizer.configure(new JedisPoolConfig()), node.getHost(), node.getPort());
+    this.unknownTtl = unknownTtl;
+    this.stats = new NodeStats(jedisPool);
+    this.sizer = new PoolSizer(address, jedisPool, stats.getBorrow());
+  }
+
+  private <T> T timed(String name, Function<Jedis, T> operation) {
+    long start = System.nanoTime();
+    try (Jedis jedis = jedisPool.getResource()) {
+      long borrowed = System.nanoTime();
+      stats.recordBorrow(borrowed - start);
+      T result = operation.apply(jedis);
+      stats.recordCommand(name, System.nanoTime() - borrowed);
+      return result;
+    } catch (JedisException e) {
+      stats.recordError(name);
+      throw e;
+    }
+  }
+
+  @Override
+  public void ping() {
+    timed("ping", Jedis::ping);
+  }
+
+  @Override
+  public Map<Long, Byte> get(List<Long> attachmentIds) {
+    return timed("get", jedis -> {
+      List<Response<byte[]>> responses = new ArrayList<>(attachmentIds.size());
+      List<Response<byte[]>> unknownResponses = new ArrayList<>(attachmentIds.size());
+      try (Pipeline pipeline = jedis.pipelined()) {
+        for (long attachmentId : attachmentIds) {
+          responses.add(pipeline.hget(
+              CacheSchema.bucketKey(attachmentId), CacheSchema.field(attachmentId)));
+          unknownResponses.add(pipeline.get(CacheSchema.unknownKey(attachmentId)));
+        }
+        pipeline.sync();
+      }
+      Map<Long, Byte> found = new HashMap<>();
+      for (int i = 0; i < attachmentIds.size(); i++) {
+        byte[] value = responses.get(i).get();
+        if (value == null) {
+          value = unknownResponses.get(i).get();
+        }
+        if (value != null && value.length == 1) {
+          found.put(attachmentIds.get(i), value[0]);
+        }
+      }
+      return found;
+    });
+  }
+
+  @Override
+  public void put(Map<Long, Byte> values) {
+    timed("put", jedis -> {
+      try (Pipeline pipeline = jedis.pipelined()) {
+        values.forEach((attachmentId, value) -> {
+          byte[] bucketKey = CacheSchema.bucketKey(attachmentId);
+          byte[] field = CacheSchema.field(attachmentId);
+          if (CacheSchema.decodeRarity(value) == RarityTypes.UNKNOWN) {
+            pipeline.setex(CacheSchema.unknownKey(attachmentId), unknownTtl, new byte[] {value});
+            pipeline.hdel(bucketKey, field);
+          } else {
+            pipeline.hset(bucketKey, field, new byte[] {value});
+          }
+        });
+        pipeline.sync();
+      }
+      return null;
+    });
+  }
+
+  @Override
+  public void putIfAbsent(Map<Long, Byte> values) {
+    timed("putIfAbsent", jedis -> {
+      try (Pipeline pipeline = jedis.pipelined()) {
+        values.forEach((attachmentId, value) -> pipeline.hsetnx(
+            CacheSchema.bucketKey(attachmentId), CacheSchema.field(attachmentId),
+            new byte[] {value}));
+        pipeline.sync();
+      }
+      return null;
+    });
+  }
+
+  @Override
+  public List<Map<Long, Byte>> getBuckets(List<Long> buckets) {
+    return timed("getBuckets", jedis -> {
+      List<byte[]> keys = buckets.stream().map(CacheSchema::bucketKeyOf).toList();
+      List<Response<Map<byte[], byte[]>>> responses = new ArrayList<>(keys.size());
+      try (Pipeline pipeline = jedis.pipelined()) {
+        keys.forEach(key -> responses.add(pipeline.hgetAll(key)));
+        pipeline.sync();
+      }
+      List<Map<Long, Byte>> result = new ArrayList<>(keys.size());
+      for (int i = 0; i < keys.size(); i++) {
+        Map<Long, Byte> values = new HashMap<>();
+        for (Map.Entry<byte[], byte[]> entry : responses.get(i).get().entrySet()) {
+          if (entry.getValue().length == 1) {
+            values.put(CacheSchema.attachmentId(keys.get(i), entry.getKey()), entry.getValue()[0]);
+          }
+        }
+        result.add(values);
+      }
+      return result;
+    });
+  }
+
+  @Override
+  public List<String> getLegacy(List<String> keys) {
+    return timed("getLegacy", jedis -> jedis.mget(keys.toArray(String[]::new)));
+  }
+
+  @Override
+  public void deleteLegacy(List<String> keys) {
+    timed("deleteLegacy", jedis -> jedis.del(keys.toArray(String[]::new)));
+  }
+
+  @Override
+  public void scan(String pattern, Consumer<List<String>> consumer) {
+    ScanParams params = new ScanParams().match(pattern).count(1000);
+    String cursor = ScanParams.SCAN_POINTER_START;
+    do {
+      String current = cursor;
+      ScanResult<String> result = timed("scan", jedis -> jedis.scan(current, params));
+      if (!result.getResult().isEmpty()) {
+        consumer.accept(result.getResult());
+      }
+      cursor = result.getCursor();
+    } while (!cursor.equals(ScanParams.SCAN_POINTER_START));
+  }
+
+  @Override
+  public Map<String, NodeStats> getNodeStats() {
+    return Map.of(address, stats);
+  }
+
+  @Override
+  public void adjustPools() {
+    sizer.adjust();
+  }
+
+  @Override
+  public String toString() {
+    return address;
+  }
+
+  @Override
+  public void close() {
+    jedisPool.close();
+  }
+}
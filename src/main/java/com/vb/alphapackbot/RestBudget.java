@@ -0,0 +1,224 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.vb.alphapackbot;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import jakarta.inject.Singleton;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import net.dv8tion.jda.api.requests.RestAction;
+import org.jboss.logging.Logger;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * <p>Paces all Discord REST requests of the bot so it stays within the rate limits instead of
+ * learning about them from 429 responses.</p>
+ * <p>Every request takes a token from the bucket of its {@link Route} in its channel and from a
+ * global bucket refilled at 'rest-global-rate' (50 per second by default). Lower priorities
+ * leave part of the global bucket untouched: history paging keeps a fifth of it and typing half
+ * of it for replies. Buckets hit by a rate limit anyway are drained for the advertised retry
+ * time. Responses to interactions never wait, see {@link Route#INTERACTION}.</p>
+ */
+@Singleton
+public class RestBudget {
+  private static final Logger log = Logger.getLogger(RestBudget.class);
+  private final ExecutorService waiters = Executors.newVirtualThreadPerTaskExecutor();
+  private final Cache<Key, TokenBucket> buckets = CacheBuilder.newBuilder()
+      .expireAfterAccess(10, TimeUnit.MINUTES)
+      .build();
+  private final Lock lock = new ReentrantLock();
+  private final TokenBucket global;
+  private final LongSupplier clock;
+
+  public RestBudget() {
+    this(Double.parseDouble(System.getProperty("rest-global-rate", "50")), System::nanoTime);
+  }
+
+  RestBudget(double globalRate, LongSupplier clock) {
+    this.clock = clock;
+    this.global = new TokenBucket(globalRate, TimeUnit.SECONDS.toNanos(1) / globalRate,
+        clock.getAsLong());
+  }
+
+  /**
+   * Takes a token for a request if one is available right away.
+   *
+   * @return false if the request has to wait
+   */
+  public boolean tryAcquire(@NotNull Route route, long channelId) {
+    return reserve(route, channelId) == 0;
+  }
+
+  /**
+   * Waits until a request may be sent and takes its token.
+   *
+   * @throws CancellationException if the thread is interrupted while waiting
+   */
+  public void acquire(@NotNull Route route, long channelId) {
+    for (long wait = reserve(route, channelId); wait > 0; wait = reserve(route, channelId)) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(wait);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new CancellationException("Command cancelled");
+      }
+    }
+  }
+
+  /**
+   * Sends a request once the budget allows it and waits for the response.
+   */
+  public <T> T complete(@NotNull Route route, long channelId, @NotNull RestAction<T> action) {
+    acquire(route, channelId);
+    return action.complete();
+  }
+
+  /**
+   * Sends a request once the budget allows it without blocking the caller.
+   *
+   * @return future completed with the response
+   */
+  public <T> CompletableFuture<T> submit(@NotNull Route route, long channelId,
+      @NotNull RestAction<T> action) {
+    if (tryAcquire(route, channelId)) {
+      return action.submit();
+    }
+    return CompletableFuture
+        .supplyAsync(() -> {
+          acquire(route, channelId);
+          return action;
+        }, waiters)
+        .thenCompose(RestAction::submit);
+  }
+
+  /**
+   * Sends a request once the budget allows it without blocking the caller, failures are logged.
+   */
+  public void queue(@NotNull Route route, long channelId, @NotNull RestAction<?> action) {
+    submit(route, channelId, action).whenComplete((result, throwable) -> {
+      if (throwable != null) {
+        log.warnf("%s request in channel %d failed: %s", route, channelId, throwable.getMessage());
+      }
+    });
+  }
+
+  /**
+   * Holds back requests of a route in a channel after a rate limit was hit anyway.
+   *
+   * @param retryAfter milliseconds until requests may be sent again
+   */
+  public void rateLimited(@NotNull Route route, long channelId, long retryAfter) {
+    lock.lock();
+    try {
+      bucket(route, channelId).drain(TimeUnit.MILLISECONDS.toNanos(retryAfter), clock.getAsLong());
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Takes a token if both buckets have one.
+   *
+   * @return 0 if the token was taken, nanoseconds to wait otherwise
+   */
+  private long reserve(Route route, long channelId) {
+    if (route == Route.INTERACTION) {
+      return 0;
+    }
+    lock.lock();
+    try {
+      long now = clock.getAsLong();
+      TokenBucket bucket = bucket(route, channelId);
+      long wait = Math.max(bucket.waitNanos(0, now),
+          global.waitNanos(global.getCapacity() * route.priority.globalReserve, now));
+      if (wait == 0) {
+        bucket.take();
+        global.take();
+      }
+      return wait;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private TokenBucket bucket(Route route, long channelId) {
+    try {
+      return buckets.get(new Key(route, channelId),
+          () -> new TokenBucket(route.burst, route.nanosPerToken, clock.getAsLong()));
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /** Order of requests competing for the global bucket. */
+  public enum Priority {
+    /** Visible to users: replies, edits and reactions. */
+    HIGH(0),
+    /** Work of running commands. */
+    NORMAL(0.2),
+    /** Cosmetic, safe to delay. */
+    LOW(0.5);
+
+    /** Part of the global bucket left for higher priorities. */
+    private final double globalReserve;
+
+    Priority(double globalReserve) {
+      this.globalReserve = globalReserve;
+    }
+  }
+
+  /** Per channel Discord rate limit buckets. */
+  public enum Route {
+    REPLY(Priority.HIGH, 5, 5000),
+    EDIT(Priority.HIGH, 5, 5000),
+    REACTION(Priority.HIGH, 1, 250),
+    /**
+     * Initial responses to interactions, sent right away: Discord expects them within 3 seconds
+     * and doesn't count them against the global limit.
+     */
+    INTERACTION(Priority.HIGH, 50, 1000),
+    HISTORY(Priority.NORMAL, 10, 1000),
+    /** Registration of the slash commands, not tied to a channel: use channel ID 0. */
+    COMMANDS(Priority.NORMAL, 2, 60_000),
+    TYPING(Priority.LOW, 5, 5000);
+
+    private final Priority priority;
+    private final int burst;
+    private final double nanosPerToken;
+
+    Route(Priority priority, int burst, long periodMillis) {
+      this.priority = priority;
+      this.burst = burst;
+      this.nanosPerToken = (double) TimeUnit.MILLISECONDS.toNanos(periodMillis) / burst;
+    }
+
+    public Priority getPriority() {
+      return priority;
+    }
+  }
+
+  private record Key(Route route, long channelId) {}
+}
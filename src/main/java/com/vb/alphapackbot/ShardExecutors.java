@@ -0,0 +1,86 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.vb.alphapackbot;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import jakarta.annotation.PreDestroy;
+import jakarta.inject.Singleton;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Executors of the JDA shards run by this process, so that a busy shard does not hold up
+ * the others.</p>
+ * <p>Every shard handles its events on its own thread, in order, and its REST rate limits on
+ * 'shard-rate-limit-threads' (2 by default) threads of its own.</p>
+ */
+@Singleton
+public class ShardExecutors {
+  private static final int RATE_LIMIT_THREADS = Integer.getInteger("shard-rate-limit-threads", 2);
+  private final Map<Integer, ThreadPoolExecutor> eventPools = new ConcurrentHashMap<>();
+  private final Map<Integer, ScheduledThreadPoolExecutor> rateLimitPools =
+      new ConcurrentHashMap<>();
+
+  /** Returns the event executor of a shard, creating it if needed. */
+  public ExecutorService eventPool(int shardId) {
+    return eventPools.computeIfAbsent(shardId, id -> new ThreadPoolExecutor(1, 1,
+        0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), new ThreadFactoryBuilder()
+            .setNameFormat("shard-" + id + "-events")
+            .setDaemon(true)
+            .build()));
+  }
+
+  /** Returns the rate limit executor of a shard, creating it if needed. */
+  public ScheduledExecutorService rateLimitPool(int shardId) {
+    return rateLimitPools.computeIfAbsent(shardId,
+        id -> new ScheduledThreadPoolExecutor(RATE_LIMIT_THREADS, new ThreadFactoryBuilder()
+            .setNameFormat("shard-" + id + "-rate-limit-%d")
+            .setDaemon(true)
+            .build()));
+  }
+
+  /** Number of events of a shard waiting to be handled. */
+  public int getQueuedEvents(int shardId) {
+    ThreadPoolExecutor pool = eventPools.get(shardId);
+    return pool == null ? 0 : pool.getQueue().size();
+  }
+
+  /** Number of events of a shard handled so far. */
+  public long getHandledEvents(int shardId) {
+    ThreadPoolExecutor pool = eventPools.get(shardId);
+    return pool == null ? 0 : pool.getCompletedTaskCount();
+  }
+
+  /** Number of REST requests of a shard waiting for their rate limit. */
+  public int getQueuedRequests(int shardId) {
+    ScheduledThreadPoolExecutor pool = rateLimitPools.get(shardId);
+    return pool == null ? 0 : pool.getQueue().size();
+  }
+
+  @PreDestroy
+  void shutdown() {
+    eventPools.values().forEach(ExecutorService::shutdownNow);
+    rateLimitPools.values().forEach(ExecutorService::shutdownNow);
+  }
+}
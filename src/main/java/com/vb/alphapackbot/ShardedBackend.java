@@ -0,0 +1,253 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * <p>{@link CacheBackend} spreading rarity buckets over several nodes with a consistent hash
+ * ring, so adding or removing a node only moves the buckets of that node.</p>
+ * <p>Buckets read more than 'cache-hot-threshold' times per minute (1000 by default) are hot:
+ * their writes also go to the next 'cache-hot-replicas' nodes on the ring (1 by default), and
+ * their reads are spread over all of them. Values missing on a replica are read from the
+ * primary node and copied to the replica. Keys of the legacy layout are looked up on all
+ * nodes.</p>
+ */
+public class ShardedBackend implements CacheBackend {
+  private static final int VIRTUAL_NODES = 160;
+  private static final HashFunction HASH = Hashing.murmur3_128();
+  private final List<CacheBackend> nodes;
+  private final TreeMap<Long, Integer> ring = new TreeMap<>();
+  private final int hotThreshold;
+  private final int hotReplicas;
+  private final com.google.common.cache.Cache<Long, AtomicInteger> readCounts;
+  private final com.google.common.cache.Cache<Long, Boolean> hotBuckets;
+
+  public ShardedBackend(List<CacheBackend> nodes) {
+    this(nodes, Integer.getInteger("cache-hot-threshold", 1000),
+        Integer.getInteger("cache-hot-replicas", 1));
+  }
+
+  ShardedBackend(List<CacheBackend> nodes, int hotThreshold, int hotReplicas) {
+    if (nodes.isEmpty()) {
+      throw new IllegalArgumentException("At least one cache node is required");
+    }
+    this.nodes = List.copyOf(nodes);
+    this.hotThreshold = hotThreshold;
+    this.hotReplicas = Math.min(hotReplicas, nodes.size() - 1);
+    for (int node = 0; node < nodes.size(); node++) {
+      for (int i = 0; i < VIRTUAL_NODES; i++) {
+        ring.put(HASH.hashString(nodes.get(node) + "#" + i, StandardCharsets.UTF_8).asLong(), node);
+      }
+    }
+    this.readCounts = CacheBuilder.newBuilder()
+        .expireAfterWrite(Duration.ofMinutes(1))
+        .maximumSize(100_000)
+        .build();
+    this.hotBuckets = CacheBuilder.newBuilder()
+        .expireAfterWrite(Duration.ofMinutes(10))
+        .maximumSize(10_000)
+        .build();
+  }
+
+  /**
+   * Returns the primary node of a key followed by distinct nodes clockwise on the ring.
+   */
+  List<CacheBackend> nodesFor(long hash, int count) {
+    List<CacheBackend> result = new ArrayList<>(count);
+    for (Integer node : ring.tailMap(hash).values()) {
+      if (result.size() == count) {
+        return result;
+      }
+      if (!result.contains(nodes.get(node))) {
+        result.add(nodes.get(node));
+      }
+    }
+    for (Integer node : ring.values()) {
+      if (result.size() == count) {
+        break;
+      }
+      if (!result.contains(nodes.get(node))) {
+        result.add(nodes.get(node));
+      }
+    }
+    return result;
+  }
+
+  private List<CacheBackend> nodesForBucket(long bucket) {
+    int replicas = hotBuckets.getIfPresent(bucket) != null ? hotReplicas : 0;
+    return nodesFor(HASH.hashLong(bucket).asLong(), replicas + 1);
+  }
+
+  private void countRead(long bucket) {
+    AtomicInteger reads = readCounts.asMap().computeIfAbsent(bucket, key -> new AtomicInteger());
+    if (reads.incrementAndGet() == hotThreshold && hotReplicas > 0) {
+      hotBuckets.put(bucket, true);
+    }
+  }
+
+  @Override
+  public void ping() {
+    nodes.forEach(CacheBackend::ping);
+  }
+
+  @Override
+  public Map<Long, Byte> get(List<Long> attachmentIds) {
+    Map<CacheBackend, List<Long>> byNode = new LinkedHashMap<>();
+    Map<Long, CacheBackend> primaries = new HashMap<>();
+    for (long attachmentId : attachmentIds) {
+      long bucket = CacheSchema.bucketOf(attachmentId);
+      countRead(bucket);
+      List<CacheBackend> candidates = nodesForBucket(bucket);
+      CacheBackend node = candidates.get(ThreadLocalRandom.current().nextInt(candidates.size()));
+      byNode.computeIfAbsent(node, key -> new ArrayList<>()).add(attachmentId);
+      if (node != candidates.get(0)) {
+        primaries.put(attachmentId, candidates.get(0));
+      }
+    }
+    Map<Long, Byte> found = new HashMap<>();
+    Map<CacheBackend, List<Long>> fromPrimary = new LinkedHashMap<>();
+    Map<CacheBackend, List<Long>> repairs = new LinkedHashMap<>();
+    byNode.forEach((node, ids) -> {
+      Map<Long, Byte> values = node.get(ids);
+      found.putAll(values);
+      for (long attachmentId : ids) {
+        CacheBackend primary = primaries.get(attachmentId);
+        if (primary != null && !values.containsKey(attachmentId)) {
+          fromPrimary.computeIfAbsent(primary, key -> new ArrayList<>()).add(attachmentId);
+          repairs.computeIfAbsent(node, key -> new ArrayList<>()).add(attachmentId);
+        }
+      }
+    });
+    fromPrimary.forEach((node, ids) -> found.putAll(node.get(ids)));
+    repairs.forEach((replica, ids) -> {
+      Map<Long, Byte> values = new HashMap<>();
+      for (long attachmentId : ids) {
+        Byte value = found.get(attachmentId);
+        if (value != null && CacheSchema.decodeRarity(value) != RarityTypes.UNKNOWN) {
+          values.put(attachmentId, value);
+        }
+      }
+      if (!values.isEmpty()) {
+        replica.putIfAbsent(values);
+      }
+    });
+    return found;
+  }
+
+  private Map<CacheBackend, Map<Long, Byte>> groupForWrite(Map<Long, Byte> values) {
+    Map<CacheBackend, Map<Long, Byte>> byNode = new LinkedHashMap<>();
+    values.forEach((attachmentId, value) -> {
+      for (CacheBackend node : nodesForBucket(CacheSchema.bucketOf(attachmentId))) {
+        byNode.computeIfAbsent(node, key -> new HashMap<>()).put(attachmentId, value);
+      }
+    });
+    return byNode;
+  }
+
+  @Override
+  public void put(Map<Long, Byte> values) {
+    groupForWrite(values).forEach(CacheBackend::put);
+  }
+
+  @Override
+  public void putIfAbsent(Map<Long, Byte> values) {
+    groupForWrite(values).forEach(CacheBackend::putIfAbsent);
+  }
+
+  @Override
+  public List<Map<Long, Byte>> getBuckets(List<Long> buckets) {
+    Map<CacheBackend, List<Integer>> byNode = new LinkedHashMap<>();
+    for (int i = 0; i < buckets.size(); i++) {
+      CacheBackend node = nodesFor(HASH.hashLong(buckets.get(i)).asLong(), 1).get(0);
+      byNode.computeIfAbsent(node, key -> new ArrayList<>()).add(i);
+    }
+    List<Map<Long, Byte>> result = new ArrayList<>(buckets.size());
+    for (int i = 0; i < buckets.size(); i++) {
+      result.add(null);
+    }
+    byNode.forEach((node, positions) -> {
+      List<Map<Long, Byte>> values =
+          node.getBuckets(positions.stream().map(buckets::get).toList());
+      for (int i = 0; i < positions.size(); i++) {
+        result.set(positions.get(i), values.get(i));
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Legacy keys were not distributed by this ring, so every node is asked.
+   */
+  @Override
+  public List<String> getLegacy(List<String> keys) {
+    List<String> result = new ArrayList<>(keys);
+    result.replaceAll(key -> null);
+    for (CacheBackend node : nodes) {
+      List<String> values = node.getLegacy(keys);
+      for (int i = 0; i < keys.size(); i++) {
+        if (result.get(i) == null) {
+          result.set(i, values.get(i));
+        }
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public void deleteLegacy(List<String> keys) {
+    nodes.forEach(node -> node.deleteLegacy(keys));
+  }
+
+  @Override
+  public void scan(String pattern, Consumer<List<String>> consumer) {
+    nodes.forEach(node -> node.scan(pattern, consumer));
+  }
+
+  @Override
+  public Map<String, NodeStats> getNodeStats() {
+    Map<String, NodeStats> stats = new LinkedHashMap<>();
+    nodes.forEach(node -> stats.putAll(node.getNodeStats()));
+    return stats;
+  }
+
+  @Override
+  public void adjustPools() {
+    nodes.forEach(CacheBackend::adjustPools);
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (CacheBackend node : nodes) {
+      node.close();
+    }
+  }
+}
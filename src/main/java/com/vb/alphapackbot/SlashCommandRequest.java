@@ -0,0 +1,127 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.vb.alphapackbot;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.Role;
+import net.dv8tion.jda.api.entities.TextChannel;
+import net.dv8tion.jda.api.entities.User;
+import net.dv8tion.jda.api.events.interaction.SlashCommandEvent;
+import net.dv8tion.jda.api.interactions.commands.OptionMapping;
+import net.dv8tion.jda.api.requests.RestAction;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * <p>Command sent as a slash command with the options "rarity", "user", "role", "since" and
+ * "until".</p>
+ * <p>The reply is deferred as soon as the command is received, Discord shows it as thinking
+ * until the first answer replaces it. No typing or reactions are needed.</p>
+ */
+public final class SlashCommandRequest implements CommandRequest {
+  private final SlashCommandEvent event;
+
+  public SlashCommandRequest(@NotNull SlashCommandEvent event) {
+    this.event = event;
+  }
+
+  @Override
+  public long getIdLong() {
+    return event.getIdLong();
+  }
+
+  @Override
+  public Guild getGuild() {
+    return event.getGuild();
+  }
+
+  @Override
+  public User getAuthor() {
+    return event.getUser();
+  }
+
+  @Override
+  public TextChannel getTextChannel() {
+    return event.getTextChannel();
+  }
+
+  @Override
+  public String getArgs() {
+    return Stream.of(
+            option("rarity").orElse(""),
+            option("since").map(x -> "since:" + x.strip()).orElse(""),
+            option("until").map(x -> "until:" + x.strip()).orElse(""))
+        .filter(x -> !x.isEmpty())
+        .collect(Collectors.joining(" "));
+  }
+
+  private Optional<String> option(String name) {
+    return Optional.ofNullable(event.getOption(name)).map(OptionMapping::getAsString);
+  }
+
+  @Override
+  public List<User> getMentionedUsers() {
+    OptionMapping user = event.getOption("user");
+    return user == null ? List.of() : List.of(user.getAsUser());
+  }
+
+  @Override
+  public List<Role> getMentionedRoles() {
+    OptionMapping role = event.getOption("role");
+    return role == null ? List.of() : List.of(role.getAsRole());
+  }
+
+  @Override
+  public boolean showsTyping() {
+    return false;
+  }
+
+  @Override
+  public Optional<RestAction<?>> defer() {
+    return Optional.of(event.deferReply());
+  }
+
+  @Override
+  public Optional<RestAction<?>> decline(@NotNull String reason) {
+    return Optional.of(event.reply(reason).setEphemeral(true));
+  }
+
+  @Override
+  public Optional<RestAction<?>> acknowledge(boolean accepted) {
+    return Optional.empty();
+  }
+
+  @Override
+  public RestAction<Message> reply(@NotNull String text) {
+    return event.getHook().sendMessage(text);
+  }
+
+  @Override
+  public RestAction<Message> reply(@NotNull String text, byte[] file, @NotNull String fileName) {
+    return event.getHook().sendMessage(text).addFile(file, fileName);
+  }
+
+  @Override
+  public RestAction<Message> edit(@NotNull Message reply, @NotNull String text) {
+    return event.getHook().editMessageById(reply.getIdLong(), text);
+  }
+}
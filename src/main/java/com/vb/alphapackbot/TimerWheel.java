@@ -0,0 +1,80 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.vb.alphapackbot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * <p>Hashed timer wheel driven by a single ticker thread.</p>
+ * <p>Items are placed into the slot of their deadline tick, items due more than one rotation
+ * ahead stay in their slot until their round comes. Scheduling is lock-free and may be called
+ * from any thread, {@link #advance()} must only be called by the ticker.</p>
+ *
+ * @param <T> type of the scheduled items
+ */
+final class TimerWheel<T> {
+  private final Queue<Timeout<T>>[] slots;
+  private volatile long tick;
+
+  @SuppressWarnings("unchecked")
+  TimerWheel(int size) {
+    slots = new Queue[size];
+    for (int i = 0; i < size; i++) {
+      slots[i] = new ConcurrentLinkedQueue<>();
+    }
+  }
+
+  /**
+   * Schedules an item.
+   *
+   * @param item       item to return from {@link #advance()} once due
+   * @param delayTicks ticks from now, at least 1
+   */
+  void schedule(@NotNull T item, long delayTicks) {
+    long deadline = tick + Math.max(1, delayTicks);
+    slots[(int) (deadline % slots.length)].add(new Timeout<>(item, deadline));
+  }
+
+  /**
+   * Moves to the next tick.
+   *
+   * @return items due at the new tick, each returned once
+   */
+  List<T> advance() {
+    long now = tick + 1;
+    tick = now;
+    Queue<Timeout<T>> slot = slots[(int) (now % slots.length)];
+    List<T> due = new ArrayList<>();
+    List<Timeout<T>> later = new ArrayList<>();
+    for (Timeout<T> timeout = slot.poll(); timeout != null; timeout = slot.poll()) {
+      if (timeout.deadline() <= now) {
+        due.add(timeout.item());
+      } else {
+        later.add(timeout);
+      }
+    }
+    slot.addAll(later);
+    return due;
+  }
+
+  private record Timeout<T>(T item, long deadline) {}
+}
@@ -0,0 +1,57 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+/**
+ * Token bucket starting full. Not thread safe, guarded by the lock of its owner.
+ */
+final class TokenBucket {
+  private final double capacity;
+  private final double nanosPerToken;
+  private double tokens;
+  private long updated;
+
+  TokenBucket(double capacity, double nanosPerToken, long now) {
+    this.capacity = capacity;
+    this.nanosPerToken = nanosPerToken;
+    this.tokens = capacity;
+    this.updated = now;
+  }
+
+  double getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Returns the time until a token can be taken while leaving some tokens in the bucket.
+   */
+  long waitNanos(double keep, long now) {
+    tokens = Math.min(capacity, tokens + (now - updated) / nanosPerToken);
+    updated = now;
+    double missing = keep + 1 - tokens;
+    return missing <= 0 ? 0 : Math.max(1, (long) Math.ceil(missing * nanosPerToken));
+  }
+
+  void take() {
+    tokens -= 1;
+  }
+
+  void drain(long nanos, long now) {
+    waitNanos(0, now);
+    tokens = Math.min(tokens, -nanos / nanosPerToken);
+  }
+}
@@ -14,64 +14,184 @@
  *    limitations under the License.
  */
 
+
 package com.vb.alphapackbot;
 
-import com.google.common.collect.ConcurrentHashMultiset;
 import io.quarkus.arc.Unremovable;
+import jakarta.annotation.PreDestroy;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import jakarta.inject.Singleton;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import net.dv8tion.jda.api.entities.TextChannel;
+import org.jboss.logging.Logger;
+import org.jetbrains.annotations.NotNull;
 
 /**
- * Handles sending typing request to channels. Synchronized to prevent spamming the channels.
+ * <p>Keeps the typing indicator up in channels with running commands.</p>
+ * <p>Commands in the same channel share one reference counted typer. A single ticker
+ * ('typing-tick-ms', 500 ms by default) drives a {@link TimerWheel} that refreshes every typer
+ * each 'typing-interval-ms' (5 seconds) with an asynchronous request. A typer whose previous
+ * request is still waiting on a rate limit, or failed, doubles its interval up to
+ * 'typing-max-backoff-ms' (1 minute). Typing has the lowest {@link RestBudget} priority, a
+ * refresh without budget counts as rate limited.</p>
  */
 @Unremovable
 @Singleton
 public class TypingManager {
-  private final ConcurrentHashMultiset<TextChannel> typerCountPerChannel = ConcurrentHashMultiset.create();
-  private final ConcurrentHashMap<TextChannel, ScheduledFuture<?>> channelTyper = new ConcurrentHashMap<>(0);
-  private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(5);
+  private static final Logger log = Logger.getLogger(TypingManager.class);
+  private static final long TICK_MS = Long.getLong("typing-tick-ms", 500);
+  private static final int INTERVAL_TICKS =
+      (int) Math.max(1, Long.getLong("typing-interval-ms", 5000) / TICK_MS);
+  private static final int MAX_BACKOFF_TICKS =
+      (int) Math.max(INTERVAL_TICKS, Long.getLong("typing-max-backoff-ms", 60_000) / TICK_MS);
+  private final ConcurrentHashMap<Long, Typer> typers = new ConcurrentHashMap<>();
+  private final TimerWheel<Typer> wheel = new TimerWheel<>(INTERVAL_TICKS);
+  private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor();
+  private final RestBudget restBudget;
 
-  public TypingManager() {
-    executor.setRemoveOnCancelPolicy(true);
+  @Inject
+  public TypingManager(RestBudget restBudget) {
+    this.restBudget = restBudget;
+    ticker.scheduleAtFixedRate(this::tick, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
   }
 
   /**
-   * <p>Increment number of typers ({@link ScheduledFuture} for {@link TextChannel}.</p>
-   * <p>If the channel does not already have a typer, create it.</p>
+   * <p>Increment number of typers for {@link TextChannel}.</p>
+   * <p>If the channel does not already have a typer, start typing right away.</p>
    * @param channel channel to increment typer count on
    */
-  public synchronized void startIfNotRunning(TextChannel channel) {
-    if (!typerCountPerChannel.contains(channel)) {
-      sendTyping(channel);
+  public void startIfNotRunning(TextChannel channel) {
+    while (true) {
+      Typer typer = typers.computeIfAbsent(channel.getIdLong(), id -> new Typer(channel));
+      if (typer.retain()) {
+        if (typer.started.compareAndSet(false, true)) {
+          send(typer);
+          wheel.schedule(typer, INTERVAL_TICKS);
+        }
+        return;
+      }
+      // Released concurrently, it is about to be removed
+      typers.remove(channel.getIdLong(), typer);
     }
-    typerCountPerChannel.add(channel);
   }
 
   /**
-   * Create new typer ({@link ScheduledFuture}) and add it to the pool.
-   * @param textChannel channel to start the typer on
+   * Decrement number of typers for {@link TextChannel}, if the number is 0, stop typing.
+   * Unbalanced calls are ignored.
+   * @param textChannel channel to decrement typer count from
    */
-  private synchronized void sendTyping(TextChannel textChannel) {
-    Runnable run = () -> textChannel.sendTyping().complete();
-    ScheduledFuture<?> typer = executor.scheduleAtFixedRate(run, 0, 5, TimeUnit.SECONDS);
-    channelTyper.put(textChannel, typer);
+  public void cancelThread(TextChannel textChannel) {
+    Typer typer = typers.get(textChannel.getIdLong());
+    if (typer != null && typer.release()) {
+      typers.remove(textChannel.getIdLong(), typer);
+    }
   }
 
-  /**
-   * Decrement number of typers ({@link ScheduledFuture}) for {@link TextChannel}, if
-   * the numbers is 0, stop the typer.
-   * @param textChannel channel to decrement typer count from
-   */
-  public synchronized void cancelThread(TextChannel textChannel) {
-    typerCountPerChannel.remove(textChannel);
-    if (!typerCountPerChannel.contains(textChannel)) {
-      ScheduledFuture<?> typer = channelTyper.get(textChannel);
-      typer.cancel(true);
-      channelTyper.remove(textChannel);
+  private void tick() {
+    try {
+      for (Typer typer : wheel.advance()) {
+        if (typer.isReleased()) {
+          continue;
+        }
+        if (typer.pending) {
+          // Still held back by a rate limit
+          typer.backoff();
+        } else {
+          send(typer);
+        }
+        wheel.schedule(typer, typer.delayTicks);
+      }
+    } catch (RuntimeException e) {
+      log.error("Typing tick failed", e);
+    }
+  }
+
+  private void send(Typer typer) {
+    if (!restBudget.tryAcquire(RestBudget.Route.TYPING, typer.channel.getIdLong())) {
+      typer.backoff();
+      return;
+    }
+    typer.pending = true;
+    try {
+      typer.channel.sendTyping().queue(x -> typer.succeeded(), e -> {
+        log.debugf("Typing in channel %d failed: %s", typer.channel.getIdLong(), e.getMessage());
+        typer.failed();
+      });
+    } catch (RuntimeException e) {
+      // Missing permissions are reported before queueing
+      log.debugf("Typing in channel %d failed: %s", typer.channel.getIdLong(), e.getMessage());
+      typer.failed();
+    }
+  }
+
+  @PreDestroy
+  void shutdown() {
+    ticker.shutdownNow();
+  }
+
+  private static final class Typer {
+    private final TextChannel channel;
+    /** Number of commands typing, -1 once released for good. */
+    private final AtomicInteger references = new AtomicInteger();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private volatile boolean pending;
+    private volatile int delayTicks = INTERVAL_TICKS;
+
+    Typer(TextChannel channel) {
+      this.channel = channel;
+    }
+
+    /**
+     * Adds a reference unless the typer was already released.
+     */
+    boolean retain() {
+      int current = references.get();
+      while (current >= 0) {
+        if (references.compareAndSet(current, current + 1)) {
+          return true;
+        }
+        current = references.get();
+      }
+      return false;
+    }
+
+    /**
+     * Removes a reference.
+     *
+     * @return true if this was the last one and the typer is now released
+     */
+    boolean release() {
+      int current = references.get();
+      while (current > 0) {
+        if (references.compareAndSet(current, current - 1)) {
+          return current == 1 && references.compareAndSet(0, -1);
+        }
+        current = references.get();
+      }
+      return false;
+    }
+
+    boolean isReleased() {
+      return references.get() < 0;
+    }
+
+    void succeeded() {
+      delayTicks = INTERVAL_TICKS;
+      pending = false;
+    }
+
+    void failed() {
+      backoff();
+      pending = false;
+    }
+
+    void backoff() {
+      delayTicks = Math.min(MAX_BACKOFF_TICKS, delayTicks * 2);
     }
   }
 }
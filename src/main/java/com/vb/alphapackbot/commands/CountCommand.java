@@ -19,7 +19,14 @@ package com.vb.alphapackbot.commands;
 import com.google.common.base.Stopwatch;
 import com.jagrosh.jdautilities.command.Command;
 import com.jagrosh.jdautilities.command.CommandEvent;
+import com.vb.alphapackbot.AdmissionControl;
+import com.vb.alphapackbot.ChannelIndex;
+import com.vb.alphapackbot.CommandRequest;
 import com.vb.alphapackbot.CommandService;
+import com.vb.alphapackbot.CountProgress;
+import com.vb.alphapackbot.HistoryBounds;
+import com.vb.alphapackbot.MessageCommandRequest;
+import com.vb.alphapackbot.PagedReply;
 import com.vb.alphapackbot.RarityTypes;
 import com.vb.alphapackbot.UserData;
 import io.quarkus.logging.Log;
@@ -27,12 +34,12 @@ import jakarta.inject.Inject;
 import jakarta.inject.Singleton;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Set;
-import java.util.concurrent.CompletableFuture;
-import java.util.function.Predicate;
-import net.dv8tion.jda.api.entities.Message;
-import net.dv8tion.jda.api.entities.TextChannel;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import net.dv8tion.jda.api.entities.User;
 import org.jetbrains.annotations.NotNull;
 
@@ -44,6 +51,7 @@ public class CountCommand extends Command {
   public CountCommand() {
     this.name = "count";
     this.help = "Counts amount of skins per rarity";
+    this.arguments = "[@users/@roles] [since:<date/message ID>] [until:<date/message ID>]";
     this.guildOnly = true;
   }
 
@@ -52,40 +60,112 @@ public class CountCommand extends Command {
     if (event.getAuthor().isBot()) {
       return;
     }
+    CommandRequest request = new MessageCommandRequest(event);
+    commandService.submit(request, () -> count(request));
+  }
+
+  /**
+   * Counts rarities of the mentioned users, or of the author, and answers with a single
+   * {@link PagedReply}.
+   */
+  void count(CommandRequest request) {
     Stopwatch stopwatch = Stopwatch.createStarted();
-    event.getMessage().addReaction("U+1F44D").complete();
-    Set<User> mentions = commandService.accumulateUsers(event);
-    List<CompletableFuture<Void>> userFutures = new ArrayList<>();
-    for (User user : mentions) {
-      userFutures.add(
-          CompletableFuture.runAsync(
-              () -> {
-                commandService.startTyping(event.getTextChannel());
-                UserData userData = countPerUser(user, event.getTextChannel());
-                printRarityPerUser(userData, event.getMessage());
-                commandService.stopTyping(event.getTextChannel());
-              }));
+    HistoryBounds bounds;
+    try {
+      bounds = HistoryBounds.parse(request.getArgs());
+    } catch (IllegalArgumentException e) {
+      commandService.acknowledge(request, false);
+      commandService.reply(request, e.getMessage());
+      return;
+    }
+    commandService.acknowledge(request, true);
+    List<User> users = List.copyOf(commandService.accumulateUsers(request));
+    UserData[] results = new UserData[users.size()];
+    CountProgress[] progresses = new CountProgress[users.size()];
+    Arrays.setAll(progresses, x -> new CountProgress());
+    AtomicInteger counted = new AtomicInteger();
+    commandService.startTyping(request);
+    try (ProgressReply progressReply = new ProgressReply(commandService, request,
+        () -> formatProgress(progresses, counted.get()))) {
+      try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+        for (int i = 0; i < users.size(); i++) {
+          int position = i;
+          User user = users.get(i);
+          executor.submit(() -> {
+            try {
+              results[position] = commandService.deduplicate("count", request.getTextChannel(),
+                  user.getIdLong(), bounds,
+                  () -> countPerUser(request, user, bounds, progresses[position]));
+            } catch (RejectedExecutionException e) {
+              // Already answered
+            } finally {
+              counted.incrementAndGet();
+            }
+          });
+        }
+      }
+      List<String> blocks = new ArrayList<>();
+      List<String> fileBlocks = new ArrayList<>();
+      for (int i = 0; i < users.size(); i++) {
+        if (results[i] != null) {
+          blocks.add(formatRarityPerUser(results[i]));
+          fileBlocks.add(formatRarityPerUser(results[i], users.get(i).getName()));
+        }
+      }
+      if (!blocks.isEmpty() && !Thread.currentThread().isInterrupted()) {
+        progressReply.finish(PagedReply.of(blocks, "counts.txt", fileBlocks));
+      }
+    } finally {
+      commandService.stopTyping(request);
     }
-    userFutures.forEach(CompletableFuture::join);
     Log.info("Time elapsed: " + stopwatch.elapsed());
   }
 
-  private UserData countPerUser(@NotNull User user, @NotNull TextChannel channel) {
-    Predicate<Message> predicate = x -> !x.getAttachments().isEmpty();
-    predicate = predicate.and(x -> !x.getContentRaw().contains("*ignored"));
-    List<Message> messages =
-        commandService.getMessagesFromUserWithFilter(channel, user.getId(), predicate);
-    return commandService.getRaritiesFromMessages(messages, user.getId());
+  /**
+   * Counts rarities of a user, from the cached count if it is still up to date.
+   */
+  private UserData countPerUser(@NotNull CommandRequest request, @NotNull User user,
+      @NotNull HistoryBounds bounds, @NotNull CountProgress progress) {
+    Optional<UserData> cached =
+        commandService.getCachedCount(request.getTextChannel(), bounds, user.getIdLong());
+    if (cached.isPresent()) {
+      return cached.get();
+    }
+    ChannelIndex index = commandService.getChannelIndex(request.getTextChannel(), bounds);
+    try (AdmissionControl.Reservation work =
+        commandService.reserveWork(request, index, bounds, List.of(user))) {
+      return commandService.countRarities(index, bounds, user.getIdLong(), progress);
+    }
+  }
+
+  /**
+   * Formats the progress of a count, a single user's running totals with the share of
+   * attachments classified or the number of users counted so far.
+   */
+  private Optional<String> formatProgress(CountProgress[] progresses, int counted) {
+    if (progresses.length != 1) {
+      return Optional.of("Counted " + counted + " of " + progresses.length + " users...");
+    }
+    CountProgress progress = progresses[0];
+    if (!progress.isStarted()) {
+      return Optional.empty();
+    }
+    return Optional.of("Classified " + progress.getPercent() + "% of attachments...\n"
+        + formatRarityPerUser(progress.snapshot()));
   }
 
   /**
-   * Sends a message with rarity counts to a channel.
+   * Formats rarity counts of a user, headed by a mention of the user.
    *
    * @param userData holds the information about user whose packs were counted and also the counts
    *                 themselves
-   * @param message  Message which initiated this count, sent message will reply to this message
+   * @return text of the reply
    */
-  public void printRarityPerUser(@NotNull UserData userData, @NotNull Message message) {
+  public String formatRarityPerUser(@NotNull UserData userData) {
+    return formatRarityPerUser(userData, "<@" + userData.getAuthorId() + ">");
+  }
+
+  private String formatRarityPerUser(@NotNull UserData userData, @NotNull String header) {
     int total =
         userData.getRarityCount(RarityTypes.COMMON)
             + userData.getRarityCount(RarityTypes.UNCOMMON)
@@ -103,7 +183,7 @@ public class CountCommand extends Command {
 
     // @formatter:off
     final String reply = MessageFormat.format("""
-        <@{0}>
+        {0}
         Total: {1}
         {2}: {3} ({4, number, percent})
         {5}: {6} ({7, number, percent})
@@ -112,7 +192,7 @@ public class CountCommand extends Command {
         {14}: {15} ({16, number, percent})
         {17}: {18} ({19, number, percent})
             """,
-        userData.getAuthorId(),
+        header,
         total,
         RarityTypes.COMMON, userData.getRarityCount(RarityTypes.COMMON), commonPercentage,
         RarityTypes.UNCOMMON, userData.getRarityCount(RarityTypes.UNCOMMON), uncommonPercentage,
@@ -123,6 +203,6 @@ public class CountCommand extends Command {
     );
     // @formatter:on
 
-    message.reply(reply).queue();
+    return reply;
   }
 }
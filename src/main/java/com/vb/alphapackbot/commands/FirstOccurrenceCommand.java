@@ -17,7 +17,9 @@
 package com.vb.alphapackbot.commands;
 
 import com.jagrosh.jdautilities.command.CommandEvent;
+import com.vb.alphapackbot.CommandRequest;
 import com.vb.alphapackbot.CommandService;
+import com.vb.alphapackbot.MessageCommandRequest;
 import jakarta.inject.Inject;
 import jakarta.inject.Singleton;
 
@@ -29,7 +31,7 @@ public final class FirstOccurrenceCommand extends OccurrenceCommand {
   public FirstOccurrenceCommand() {
     this.name = "first";
     this.help = "Find the first time a rarity was opened";
-    this.arguments = "<rarity>";
+    this.arguments = "<rarity> [since:<date/message ID>] [until:<date/message ID>]";
     this.guildOnly = true;
   }
 
@@ -39,6 +41,7 @@ public final class FirstOccurrenceCommand extends OccurrenceCommand {
       return;
     }
 
-    doCommand(Type.FIRST, event, commandService);
+    CommandRequest request = new MessageCommandRequest(event);
+    commandService.submit(request, () -> doCommand(Type.FIRST, request, commandService));
   }
 }
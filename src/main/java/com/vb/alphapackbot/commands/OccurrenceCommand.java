@@ -17,20 +17,22 @@
 package com.vb.alphapackbot.commands;
 
 import com.jagrosh.jdautilities.command.Command;
-import com.jagrosh.jdautilities.command.CommandEvent;
+import com.vb.alphapackbot.AdmissionControl;
+import com.vb.alphapackbot.ChannelIndex;
+import com.vb.alphapackbot.CommandRequest;
 import com.vb.alphapackbot.CommandService;
+import com.vb.alphapackbot.HistoryBounds;
+import com.vb.alphapackbot.Occurrence;
+import com.vb.alphapackbot.PagedReply;
 import com.vb.alphapackbot.RarityTypes;
 import java.time.OffsetDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
-import java.util.Set;
-import java.util.concurrent.CompletableFuture;
-import java.util.function.Predicate;
-import net.dv8tion.jda.api.entities.IMentionable;
-import net.dv8tion.jda.api.entities.Message;
-import net.dv8tion.jda.api.entities.Message.MentionType;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import net.dv8tion.jda.api.entities.User;
 import org.jboss.logging.Logger;
 
@@ -54,74 +56,108 @@ public abstract sealed class OccurrenceCommand extends Command
   }
 
   /**
-   * Sends a reply with the occurrence of requested rarity.
+   * Formats the occurrence of requested rarity. The link is wrapped in angle brackets so that
+   * Discord does not embed it.
    *
-   * @param requestMessage message to reply to
-   * @param occurrenceMessage message of the occurrence
+   * @param occurrence occurrence of the rarity
    * @param requestedRarity rarity specified in the request
+   * @param type which occurrence was requested
    */
-  protected void replyOccurrence(
-      Message requestMessage, Message occurrenceMessage, RarityTypes requestedRarity, Type type) {
-    OffsetDateTime timeCreated = occurrenceMessage.getTimeCreated();
+  protected String formatOccurrence(
+      Occurrence occurrence, RarityTypes requestedRarity, Type type) {
+    OffsetDateTime timeCreated = occurrence.timeCreated();
     String date = timeCreated.format(DateTimeFormatter.ofPattern("dd.MM.yyyy"));
     String time = timeCreated.format(DateTimeFormatter.ofPattern("HH:mm"));
 
-    String reply =
-        String.format(
-            "You opened your %s %s on %s at %s\n link: %s.",
-            type.getType(), requestedRarity, date, time, occurrenceMessage.getJumpUrl());
-
-    requestMessage.reply(reply).queue(message -> message.suppressEmbeds(true).queue());
+    return String.format(
+        "You opened your %s %s on %s at %s\n link: <%s>.",
+        type.getType(), requestedRarity, date, time, occurrence.jumpUrl());
   }
 
   /**
-   * Sends a reply informing that specified rarity has not been found.
+   * Formats a reply informing that specified rarity has not been found.
    *
-   * @param requestMessage original message of the request
    * @param requestedRarity rarity specified in the request
    */
-  protected void replyNotFound(Message requestMessage, RarityTypes requestedRarity) {
-    String reply = "You have never opened " + requestedRarity.toString() + "!";
-    requestMessage.reply(reply).queue();
+  protected String formatNotFound(RarityTypes requestedRarity) {
+    return "You have never opened " + requestedRarity.toString() + "!";
   }
 
-  protected void doCommand(Type type, CommandEvent event, CommandService commandService) {
-    commandService.startTyping(event.getTextChannel());
-    String arg = event.getMessage().getMentions(MentionType.values()).stream()
-        .map(IMentionable::getAsMention).reduce(event.getArgs(), (a, m) -> a.replaceAll(m, ""));
-    Optional<RarityTypes> requestedRarity = RarityTypes.parse(arg.trim().strip());
+  protected void doCommand(Type type, CommandRequest request, CommandService commandService) {
+    commandService.startTyping(request);
+    String arg = request.getArgs();
+    HistoryBounds bounds;
+    try {
+      bounds = HistoryBounds.parse(arg);
+    } catch (IllegalArgumentException e) {
+      commandService.acknowledge(request, false);
+      commandService.reply(request, e.getMessage());
+      commandService.stopTyping(request);
+      return;
+    }
+    Optional<RarityTypes> requestedRarity =
+        RarityTypes.parse(HistoryBounds.strip(arg).trim().strip());
     if (requestedRarity.isEmpty()) {
-      event.getMessage().addReaction("U+1F44E").complete();
+      commandService.acknowledge(request, false);
       String invalidRarity =
           """
           Invalid rarity, acceptable rarities: Common, Uncommon, Rare, Epic, Legendary, Unknown
           """;
-      event.getMessage().reply(invalidRarity).queue();
-      commandService.stopTyping(event.getTextChannel());
+      commandService.reply(request, invalidRarity);
+      commandService.stopTyping(request);
       return;
     }
 
-    event.getMessage().addReaction("U+1F44D").complete();
+    commandService.acknowledge(request, true);
 
-    Predicate<Message> predicate = x -> !x.getAttachments().isEmpty() && !x.getContentRaw()
-        .contains("*ignored");
-    Set<User> mentions = commandService.accumulateUsers(event);
-    List<CompletableFuture<Void>> userFutures = new ArrayList<>();
-    for (User user : mentions) {
-      userFutures.add(CompletableFuture.runAsync(() -> {
-        List<Message> messages = commandService.getMessagesFromUserWithFilter(
-            event.getTextChannel(), user.getId(), predicate);
-        boolean reversed = type == Type.LAST;
-        Optional<Message> requestedMessage = commandService.getOccurrence(messages,
-            requestedRarity.get(), reversed);
-        if (requestedMessage.isPresent()) {
-          replyOccurrence(event.getMessage(), requestedMessage.get(), requestedRarity.get(), type);
-        } else {
-          replyNotFound(event.getMessage(), requestedRarity.get());
+    List<User> users = List.copyOf(commandService.accumulateUsers(request));
+    List<Optional<Occurrence>> results = new ArrayList<>(Collections.nCopies(users.size(), null));
+    try {
+      try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+        for (int i = 0; i < users.size(); i++) {
+          int position = i;
+          User user = users.get(i);
+          executor.submit(() -> {
+            try {
+              results.set(position, commandService.deduplicate(type.getType(),
+                  request.getTextChannel(), user.getIdLong(),
+                  List.of(bounds, requestedRarity.get()),
+                  () -> findOccurrence(type, request, commandService, user, bounds,
+                      requestedRarity.get())));
+            } catch (RejectedExecutionException e) {
+              // Already answered
+            }
+          });
+        }
+      }
+      List<String> blocks = new ArrayList<>();
+      for (int i = 0; i < users.size(); i++) {
+        Optional<Occurrence> occurrence = results.get(i);
+        if (occurrence == null) {
+          continue;
         }
-        commandService.stopTyping(event.getTextChannel());
-      }));
+        String block = occurrence.isPresent()
+            ? formatOccurrence(occurrence.get(), requestedRarity.get(), type)
+            : formatNotFound(requestedRarity.get());
+        blocks.add(users.size() == 1 ? block : users.get(i).getName() + ": " + block);
+      }
+      if (!blocks.isEmpty() && !Thread.currentThread().isInterrupted()) {
+        commandService.reply(request,
+            PagedReply.of(blocks, type.getType() + ".txt", blocks));
+      }
+    } finally {
+      commandService.stopTyping(request);
+    }
+  }
+
+  private Optional<Occurrence> findOccurrence(Type type, CommandRequest request,
+      CommandService commandService, User user, HistoryBounds bounds,
+      RarityTypes requestedRarity) {
+    ChannelIndex index = commandService.getChannelIndex(request.getTextChannel(), bounds);
+    try (AdmissionControl.Reservation work =
+        commandService.reserveWork(request, index, bounds, List.of(user))) {
+      return commandService.getOccurrence(index, bounds, user.getIdLong(), requestedRarity,
+          type == Type.LAST);
     }
-    userFutures.forEach(CompletableFuture::join);
   }
 }
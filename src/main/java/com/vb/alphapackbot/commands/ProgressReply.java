@@ -0,0 +1,143 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.vb.alphapackbot.commands;
+
+import com.vb.alphapackbot.CommandRequest;
+import com.vb.alphapackbot.CommandService;
+import com.vb.alphapackbot.CountProgress;
+import com.vb.alphapackbot.PagedReply;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import net.dv8tion.jda.api.entities.Message;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>Reply to a count that shows its progress while it runs.</p>
+ * <p>Counts finishing within 'count-progress-delay-ms' (2 seconds by default) are answered
+ * right away. Longer counts get one early reply, edited at most every
+ * 'count-progress-interval-ms' (5 seconds) and only when the previous edit went through, so
+ * edits never pile up behind Discord rate limits. The first page of the final
+ * {@link PagedReply} replaces the progress in the same message.</p>
+ * <p>Progress is shown once the history is retrieved, see {@link CountProgress}; retrieving
+ * the history of an uncached channel is not part of it.</p>
+ */
+final class ProgressReply implements AutoCloseable {
+  private static final long DELAY = Long.getLong("count-progress-delay-ms", 2000);
+  private static final long INTERVAL = Long.getLong("count-progress-interval-ms", 5000);
+  private final CommandService commandService;
+  private final CommandRequest request;
+  private final Supplier<Optional<String>> status;
+  private final Lock lock = new ReentrantLock();
+  private final Thread ticker;
+  private @Nullable CompletableFuture<Message> reply;
+  private @Nullable CompletableFuture<?> pendingEdit;
+  private boolean finished;
+
+  /**
+   * Starts watching a count.
+   *
+   * @param commandService sends the replies
+   * @param request        request of the count
+   * @param status         text showing the progress, empty until there is progress to show
+   */
+  ProgressReply(@NotNull CommandService commandService, @NotNull CommandRequest request,
+      @NotNull Supplier<Optional<String>> status) {
+    this.commandService = commandService;
+    this.request = request;
+    this.status = status;
+    this.ticker = Thread.ofVirtual().name("count-progress").start(this::tick);
+  }
+
+  private void tick() {
+    try {
+      Thread.sleep(DELAY);
+      while (!Thread.currentThread().isInterrupted()) {
+        update();
+        Thread.sleep(INTERVAL);
+      }
+    } catch (InterruptedException e) {
+      // Count finished
+    }
+  }
+
+  private void update() {
+    lock.lock();
+    try {
+      if (finished) {
+        return;
+      }
+      Optional<String> text = status.get();
+      if (text.isEmpty()) {
+        return;
+      }
+      if (reply == null) {
+        reply = commandService.submitReply(request, text.get());
+      } else if (pendingEdit == null || pendingEdit.isDone()) {
+        pendingEdit =
+            reply.thenCompose(message -> commandService.edit(request, message, text.get()));
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Shows the final reply, starting in the progress reply if there is one.
+   */
+  void finish(@NotNull PagedReply result) {
+    lock.lock();
+    try {
+      finished = true;
+      ticker.interrupt();
+      if (reply == null) {
+        commandService.reply(request, result);
+      } else if (result.isAttachment()) {
+        reply.thenAccept(message -> commandService.edit(request, message, "Count finished."));
+        commandService.reply(request, result);
+      } else if (!result.pages().isEmpty()) {
+        // if the progress reply can't be edited, the first page is sent as a new reply
+        reply.thenCompose(message -> commandService.edit(request, message, result.pages().get(0)))
+            .handle((edited, error) -> error == null ? result.withoutFirstPage() : result)
+            .thenAccept(rest -> commandService.reply(request, rest));
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Stops updating. A progress reply of a count that did not finish is marked as stopped.
+   */
+  @Override
+  public void close() {
+    lock.lock();
+    try {
+      ticker.interrupt();
+      if (!finished && reply != null) {
+        reply.thenAccept(message -> commandService.edit(request, message, "Count stopped."));
+      }
+      finished = true;
+    } finally {
+      lock.unlock();
+    }
+  }
+}
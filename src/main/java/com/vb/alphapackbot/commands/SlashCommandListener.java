@@ -0,0 +1,128 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.vb.alphapackbot.commands;
+
+import com.vb.alphapackbot.CommandRequest;
+import com.vb.alphapackbot.CommandService;
+import com.vb.alphapackbot.RarityTypes;
+import com.vb.alphapackbot.RestBudget;
+import com.vb.alphapackbot.SlashCommandRequest;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import net.dv8tion.jda.api.entities.ChannelType;
+import net.dv8tion.jda.api.events.ReadyEvent;
+import net.dv8tion.jda.api.events.interaction.SlashCommandEvent;
+import net.dv8tion.jda.api.hooks.ListenerAdapter;
+import net.dv8tion.jda.api.interactions.commands.OptionType;
+import net.dv8tion.jda.api.interactions.commands.build.CommandData;
+import net.dv8tion.jda.api.interactions.commands.build.OptionData;
+import org.jboss.logging.Logger;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * <p>Runs the count, first and last commands invoked as slash commands.</p>
+ * <p>Slash commands take a single user and a single role instead of any number of mentions,
+ * the remaining options match the arguments of the prefixed commands. They are submitted to the
+ * same {@link CommandService} as the prefixed ones and only run in text channels of a server.
+ * The commands are registered globally once the first shard of this process is ready.</p>
+ */
+@Singleton
+public class SlashCommandListener extends ListenerAdapter {
+  private static final Logger log = Logger.getLogger(SlashCommandListener.class);
+  private final AtomicBoolean registered = new AtomicBoolean();
+  @Inject CommandService commandService;
+  @Inject RestBudget restBudget;
+  @Inject CountCommand countCommand;
+  @Inject FirstOccurrenceCommand firstOccurrenceCommand;
+  @Inject LastOccurrenceCommand lastOccurrenceCommand;
+
+  /**
+   * Returns definitions of the slash commands, to be registered with Discord.
+   */
+  public List<CommandData> getCommandData() {
+    return List.of(
+        new CommandData("count", "Counts amount of skins per rarity")
+            .addOptions(userOptions()),
+        new CommandData("first", "Find the first time a rarity was opened")
+            .addOptions(rarityOption())
+            .addOptions(userOptions()),
+        new CommandData("last", "Find the last time a rarity was opened")
+            .addOptions(rarityOption())
+            .addOptions(userOptions()));
+  }
+
+  private static OptionData rarityOption() {
+    OptionData option = new OptionData(OptionType.STRING, "rarity", "Rarity to find", true);
+    for (RarityTypes rarity : RarityTypes.values()) {
+      option.addChoice(rarity.toString(), rarity.toString());
+    }
+    return option;
+  }
+
+  private static OptionData[] userOptions() {
+    return new OptionData[] {
+        new OptionData(OptionType.USER, "user", "User whose packs to search"),
+        new OptionData(OptionType.ROLE, "role", "Role whose members' packs to search"),
+        new OptionData(OptionType.STRING, "since", "Date (yyyy-MM-dd or dd.MM.yyyy) or message ID"),
+        new OptionData(OptionType.STRING, "until", "Date (yyyy-MM-dd or dd.MM.yyyy) or message ID")
+    };
+  }
+
+  @Override
+  public void onReady(@NotNull ReadyEvent event) {
+    if (registered.compareAndSet(false, true)) {
+      restBudget.submit(RestBudget.Route.COMMANDS, 0,
+              event.getJDA().updateCommands().addCommands(getCommandData()))
+          .whenComplete((commands, e) -> {
+            if (e == null) {
+              log.info("Slash commands registered.");
+            } else {
+              log.error("Unable to register slash commands", e);
+              registered.set(false);
+            }
+          });
+    }
+  }
+
+  @Override
+  public void onSlashCommand(@NotNull SlashCommandEvent event) {
+    if (!event.isFromGuild()) {
+      restBudget.queue(RestBudget.Route.INTERACTION, event.getChannel().getIdLong(),
+          event.reply("Commands are only available in servers.").setEphemeral(true));
+      return;
+    }
+    if (event.getChannelType() != ChannelType.TEXT) {
+      restBudget.queue(RestBudget.Route.INTERACTION, event.getChannel().getIdLong(),
+          event.reply("Commands are only available in text channels.").setEphemeral(true));
+      return;
+    }
+    CommandRequest request = new SlashCommandRequest(event);
+    switch (event.getName()) {
+      case "count" -> commandService.submit(request, () -> countCommand.count(request));
+      case "first" -> commandService.submit(request, () -> firstOccurrenceCommand.doCommand(
+          OccurrenceCommand.Type.FIRST, request, commandService));
+      case "last" -> commandService.submit(request, () -> lastOccurrenceCommand.doCommand(
+          OccurrenceCommand.Type.LAST, request, commandService));
+      default -> {
+        // Not one of ours
+      }
+    }
+  }
+}
@@ -17,6 +17,7 @@
 package com.vb.alphapackbot.commands;
 
 import com.vb.alphapackbot.Properties;
+import com.vb.alphapackbot.RestBudget;
 import com.vb.alphapackbot.Telemetry;
 import net.dv8tion.jda.api.events.message.guild.GuildMessageReceivedEvent;
 
@@ -24,13 +25,16 @@ public class StatusCommand {
   private final GuildMessageReceivedEvent event;
   final Properties properties;
   final Telemetry telemetry;
+  final RestBudget restBudget;
 
   public StatusCommand(final GuildMessageReceivedEvent event,
                        final Properties properties,
-                       final Telemetry telemetry) {
+                       final Telemetry telemetry,
+                       final RestBudget restBudget) {
     this.event = event;
     this.properties = properties;
     this.telemetry = telemetry;
+    this.restBudget = restBudget;
   }
 
   /**
@@ -39,7 +43,8 @@ public class StatusCommand {
    */
   public void sendStatus() {
     if (properties.isPrintingEnabled()) {
-      event.getChannel().sendMessage(telemetry.toString()).complete();
+      restBudget.complete(RestBudget.Route.REPLY, event.getChannel().getIdLong(),
+          event.getChannel().sendMessage(telemetry.toString()));
     }
   }
 }
@@ -0,0 +1,53 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.vb.alphapackbot;
+
+import java.util.Optional;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class AdmissionControlTest {
+
+  @Test
+  public void testRateLimits() {
+    AdmissionControl admissionControl = new AdmissionControl(0.01, 0.01, 100);
+    Assertions.assertTrue(admissionControl.tryAcquire(1, 10));
+    Assertions.assertFalse(admissionControl.tryAcquire(1, 10));
+    Assertions.assertFalse(admissionControl.tryAcquire(1, 20));
+    Assertions.assertTrue(admissionControl.tryAcquire(2, 30));
+    // the rejection in guild 1 took no permit from user 20
+    Assertions.assertTrue(admissionControl.tryAcquire(3, 20));
+  }
+
+  @Test
+  public void testAttachmentBudget() {
+    AdmissionControl admissionControl = new AdmissionControl(1, 1, 100);
+    Optional<AdmissionControl.Reservation> huge = admissionControl.reserve(500);
+    Assertions.assertTrue(huge.isPresent());
+    Assertions.assertTrue(admissionControl.reserve(1).isEmpty());
+    huge.get().close();
+    huge.get().close();
+    Assertions.assertEquals(0, admissionControl.getReservedAttachments());
+
+    Optional<AdmissionControl.Reservation> first = admissionControl.reserve(60);
+    Assertions.assertTrue(first.isPresent());
+    Assertions.assertTrue(admissionControl.reserve(40).isPresent());
+    Assertions.assertTrue(admissionControl.reserve(1).isEmpty());
+    Assertions.assertEquals(100, admissionControl.getReservedAttachments());
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class AttachmentFilterTest {
+
+  @Test
+  public void testNotAuthoritativeUntilFilled() {
+    AttachmentFilter filter = new AttachmentFilter(1000, 0.01);
+    Assertions.assertTrue(filter.mightContain(42L));
+    Assertions.assertTrue(filter.rebuild(consumer -> consumer.accept(1L)));
+    Assertions.assertTrue(filter.mightContain(1L));
+    Assertions.assertFalse(filter.mightContain(42L));
+    filter.put(42L);
+    Assertions.assertTrue(filter.mightContain(42L));
+  }
+
+  @Test
+  public void testFailedRebuildKeepsFilter() {
+    AttachmentFilter filter = new AttachmentFilter(1000, 0.01);
+    Assertions.assertFalse(filter.rebuild(consumer -> {
+      throw new IOException("unreachable");
+    }));
+    Assertions.assertFalse(filter.isReady());
+  }
+
+  @Test
+  public void testSnapshotRoundTrip() throws IOException {
+    Path file = Files.createTempFile("filter", ".bin");
+    try {
+      AttachmentFilter filter = new AttachmentFilter(1000, 0.01);
+      filter.rebuild(consumer -> consumer.accept(1093847562938475610L));
+      filter.snapshot(file);
+
+      AttachmentFilter loaded = new AttachmentFilter(1000, 0.01);
+      loaded.load(file);
+      Assertions.assertTrue(loaded.isReady());
+      Assertions.assertTrue(loaded.mightContain(1093847562938475610L));
+      Assertions.assertFalse(loaded.mightContain(7L));
+    } finally {
+      Files.delete(file);
+    }
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import java.util.OptionalLong;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class CacheSchemaTest {
+
+  @Test
+  public void testAttachmentIdRoundTrip() {
+    long attachmentId = 1093847562938475610L;
+    Assertions.assertEquals(attachmentId, CacheSchema.attachmentId(
+        CacheSchema.bucketKey(attachmentId), CacheSchema.field(attachmentId)));
+  }
+
+  @Test
+  public void testBucketKey_nearbyAttachmentsShareBucket() {
+    Assertions.assertArrayEquals(
+        CacheSchema.bucketKey(1093847562938475610L), CacheSchema.bucketKey(1093847562938475999L));
+  }
+
+  @Test
+  public void testEncode() {
+    for (RarityTypes rarity : RarityTypes.values()) {
+      byte value = CacheSchema.encode(rarity);
+      Assertions.assertEquals(rarity, CacheSchema.decodeRarity(value));
+      Assertions.assertEquals(RarityTypes.CLASSIFIER_VERSION, CacheSchema.decodeVersion(value));
+    }
+    byte old = CacheSchema.encode(RarityTypes.EPIC, 31);
+    Assertions.assertEquals(RarityTypes.EPIC, CacheSchema.decodeRarity(old));
+    Assertions.assertEquals(31, CacheSchema.decodeVersion(old));
+  }
+
+  @Test
+  public void testIsStale() {
+    Assertions.assertFalse(CacheSchema.isStale(CacheSchema.encode(RarityTypes.UNKNOWN)));
+    Assertions.assertTrue(CacheSchema.isStale(
+        CacheSchema.encode(RarityTypes.RARE, RarityTypes.CLASSIFIER_VERSION - 1)));
+  }
+
+  @Test
+  public void testIsUnknown() {
+    Assertions.assertTrue(CacheSchema.isUnknown(CacheSchema.encode(RarityTypes.UNKNOWN)));
+    Assertions.assertTrue(CacheSchema.isUnknown(CacheSchema.encode(RarityTypes.UNKNOWN, 1)));
+    Assertions.assertFalse(CacheSchema.isUnknown(CacheSchema.encode(RarityTypes.COMMON)));
+  }
+
+  @Test
+  public void testAttachmentIdFromUrl() {
+    Assertions.assertEquals(OptionalLong.of(1093847562938475610L),
+        CacheSchema.attachmentIdFromUrl("https://cdn.discordapp.com/attachments/"
+            + "712345678901234567/1093847562938475610/a.png?ex=1"));
+    Assertions.assertEquals(OptionalLong.empty(),
+        CacheSchema.attachmentIdFromUrl("https://example.com/a.png"));
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.OptionalInt;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class CacheSnapshotTest {
+  private static final long FIRST_ID = 1093847562938475610L;
+
+  private static Path writeSnapshot(int entries) throws IOException {
+    Path file = Files.createTempFile("snapshot", ".bin");
+    try (CacheSnapshot.Writer writer = new CacheSnapshot.Writer(file)) {
+      for (int i = 0; i < entries; i++) {
+        writer.add(FIRST_ID + i * 1000L, CacheSchema.encode(RarityTypes.values()[i % 4]));
+      }
+    }
+    return file;
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    int entries = CacheSnapshot.BLOCK_ENTRIES * 2 + 5;
+    Path file = writeSnapshot(entries);
+    try (CacheSnapshot snapshot = CacheSnapshot.open(file)) {
+      Assertions.assertEquals(entries, snapshot.size());
+      Assertions.assertEquals(OptionalInt.of(CacheSchema.encode(RarityTypes.values()[0])),
+          snapshot.get(FIRST_ID));
+      long last = FIRST_ID + (entries - 1) * 1000L;
+      Assertions.assertEquals(
+          OptionalInt.of(CacheSchema.encode(RarityTypes.values()[(entries - 1) % 4])),
+          snapshot.get(last));
+      Assertions.assertEquals(OptionalInt.empty(), snapshot.get(FIRST_ID + 1));
+      Assertions.assertEquals(OptionalInt.empty(), snapshot.get(FIRST_ID - 1));
+      Assertions.assertEquals(OptionalInt.empty(), snapshot.get(last + 1000));
+
+      List<Long> ids = new ArrayList<>();
+      snapshot.forEach((attachmentId, value) -> ids.add(attachmentId));
+      Assertions.assertEquals(entries, ids.size());
+      Assertions.assertEquals(last, ids.get(ids.size() - 1).longValue());
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void testCorruptionDetected() throws IOException {
+    Path file = writeSnapshot(100);
+    try {
+      byte[] bytes = Files.readAllBytes(file);
+      bytes[40] ^= 0x01;
+      Files.write(file, bytes, StandardOpenOption.TRUNCATE_EXISTING);
+      Assertions.assertThrows(IOException.class, () -> CacheSnapshot.open(file));
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void testDescendingIdsRejected() throws IOException {
+    Path file = Files.createTempFile("snapshot", ".bin");
+    try (CacheSnapshot.Writer writer = new CacheSnapshot.Writer(file)) {
+      writer.add(FIRST_ID, (byte) 0);
+      Assertions.assertThrows(IllegalArgumentException.class,
+          () -> writer.add(FIRST_ID - 1, (byte) 0));
+    } finally {
+      Files.delete(file);
+    }
+  }
+}
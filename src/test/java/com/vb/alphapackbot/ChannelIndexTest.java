@@ -0,0 +1,120 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Optional;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class ChannelIndexTest {
+  private static final long GUILD = 1000L;
+  private static final long CHANNEL = 2000L;
+  private static final String URL_PREFIX = "https://cdn.discordapp.com/attachments/2000/";
+
+  private static ChannelIndex createIndex() {
+    ChannelIndex.Builder builder = new ChannelIndex.Builder(GUILD, CHANNEL);
+    builder.updateHead(600L);
+    builder.addMessage(500L, 11L, (byte) 0);
+    builder.addAttachment(501L, URL_PREFIX + "501/pack.png");
+    builder.addMessage(400L, 22L, ChannelIndex.FLAG_IGNORED);
+    builder.addAttachment(401L, "https://example.com/other.png");
+    builder.addMessage(300L, 11L, (byte) ((RarityTypes.EPIC.ordinal() + 1) << 1));
+    builder.addAttachment(301L, URL_PREFIX + "301/a.png");
+    builder.addAttachment(299L, URL_PREFIX + "299/b.png?ex=1");
+    return builder.build();
+  }
+
+  @Test
+  public void testAccessors() {
+    ChannelIndex index = createIndex();
+    Assertions.assertEquals(3, index.size());
+    Assertions.assertEquals(600L, index.getHeadId());
+    Assertions.assertEquals(22L, index.authorId(1));
+    Assertions.assertTrue(index.isIgnored(1));
+    Assertions.assertEquals(Optional.of(RarityTypes.EPIC), index.overrideRarity(2));
+    Assertions.assertEquals(Optional.empty(), index.overrideRarity(0));
+    Assertions.assertEquals(2, index.attachmentCount(2));
+    Assertions.assertEquals(299L, index.attachmentId(2, 1));
+    Assertions.assertEquals(URL_PREFIX + "299/b.png", index.attachmentUrl(2, 1));
+    Assertions.assertEquals("https://example.com/other.png", index.attachmentUrl(1, 0));
+  }
+
+  @Test
+  public void testPositionsOf_skipsIgnoredAndOtherAuthors() {
+    ChannelIndex index = createIndex();
+    Assertions.assertArrayEquals(new int[] {0, 2}, index.positionsOf(11L));
+    Assertions.assertArrayEquals(new int[0], index.positionsOf(22L));
+    Assertions.assertArrayEquals(new int[0], index.positionsOf(33L));
+  }
+
+  @Test
+  public void testPrepend() {
+    ChannelIndex.Builder builder = new ChannelIndex.Builder(GUILD, CHANNEL);
+    builder.updateHead(800L);
+    builder.addMessage(700L, 33L, (byte) 0);
+    builder.addAttachment(701L, URL_PREFIX + "701/new.png");
+    ChannelIndex merged = createIndex().prepend(builder.build());
+
+    Assertions.assertEquals(4, merged.size());
+    Assertions.assertEquals(800L, merged.getHeadId());
+    Assertions.assertEquals(700L, merged.messageId(0));
+    Assertions.assertEquals(300L, merged.messageId(3));
+    Assertions.assertEquals(URL_PREFIX + "701/new.png", merged.attachmentUrl(0, 0));
+    Assertions.assertEquals(URL_PREFIX + "301/a.png", merged.attachmentUrl(3, 0));
+    Assertions.assertArrayEquals(new int[] {1, 3}, merged.positionsOf(11L));
+  }
+
+  @Test
+  public void testStoreRoundTrip() throws IOException {
+    ChannelIndex index = createIndex();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ChannelIndexStore.write(index, new DataOutputStream(bytes));
+    ChannelIndex read = ChannelIndexStore.read(
+        new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+    Assertions.assertEquals(index.getHeadId(), read.getHeadId());
+    Assertions.assertEquals(index.size(), read.size());
+    for (int i = 0; i < index.size(); i++) {
+      Assertions.assertEquals(index.messageId(i), read.messageId(i));
+      Assertions.assertEquals(index.authorId(i), read.authorId(i));
+      Assertions.assertEquals(index.isIgnored(i), read.isIgnored(i));
+      Assertions.assertEquals(index.overrideRarity(i), read.overrideRarity(i));
+      for (int j = 0; j < index.attachmentCount(i); j++) {
+        Assertions.assertEquals(index.attachmentId(i, j), read.attachmentId(i, j));
+        Assertions.assertEquals(index.attachmentUrl(i, j), read.attachmentUrl(i, j));
+      }
+    }
+    Assertions.assertEquals(URL_PREFIX + "299/b.png", read.attachmentUrl(2, 1));
+  }
+
+  @Test
+  public void testIsUrlExpired() {
+    long now = 0x65000000L;
+    Assertions.assertFalse(ChannelIndex.isUrlExpired(
+        URL_PREFIX + "501/pack.png?ex=65100000&is=64f00000&hm=abc", now));
+    Assertions.assertTrue(ChannelIndex.isUrlExpired(
+        URL_PREFIX + "501/pack.png?ex=64ffffff&is=64f00000&hm=abc", now));
+    Assertions.assertTrue(ChannelIndex.isUrlExpired(URL_PREFIX + "501/pack.png", now));
+    Assertions.assertTrue(ChannelIndex.isUrlExpired(URL_PREFIX + "501/pack.png?ex=zz", now));
+    Assertions.assertFalse(ChannelIndex.isUrlExpired("https://example.com/other.png", now));
+  }
+}
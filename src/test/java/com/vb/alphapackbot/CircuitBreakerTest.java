@@ -0,0 +1,50 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class CircuitBreakerTest {
+
+  @Test
+  public void testOpensAfterThreshold() {
+    CircuitBreaker breaker = new CircuitBreaker(3, 1000, () -> 0);
+    Assertions.assertFalse(breaker.recordFailure());
+    Assertions.assertFalse(breaker.recordFailure());
+    Assertions.assertTrue(breaker.recordFailure());
+    Assertions.assertFalse(breaker.isClosed());
+    breaker.recordSuccess();
+    Assertions.assertTrue(breaker.isClosed());
+  }
+
+  @Test
+  public void testProbeBacksOff() {
+    AtomicLong clock = new AtomicLong();
+    CircuitBreaker breaker = new CircuitBreaker(1, 1000, clock::get);
+    breaker.trip();
+    Assertions.assertFalse(breaker.isProbeDue());
+    clock.set(1000);
+    Assertions.assertTrue(breaker.isProbeDue());
+    Assertions.assertFalse(breaker.recordFailure());
+    clock.set(2999);
+    Assertions.assertFalse(breaker.isProbeDue());
+    clock.set(3000);
+    Assertions.assertTrue(breaker.isProbeDue());
+  }
+}
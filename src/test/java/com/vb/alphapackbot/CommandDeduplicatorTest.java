@@ -0,0 +1,82 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.vb.alphapackbot;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class CommandDeduplicatorTest {
+  private static final CommandDeduplicator.Key KEY =
+      new CommandDeduplicator.Key("count", 1, 2, HistoryBounds.UNBOUNDED);
+
+  @Test
+  public void testConcurrentDuplicatesShareResult() throws InterruptedException {
+    CommandDeduplicator deduplicator = new CommandDeduplicator();
+    AtomicInteger computations = new AtomicInteger();
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    String[] results = new String[2];
+    Thread owner = new Thread(() -> results[0] = deduplicator.compute(KEY, () -> {
+      computations.incrementAndGet();
+      started.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return "result";
+    }));
+    owner.start();
+    Assertions.assertTrue(started.await(5, TimeUnit.SECONDS));
+    Thread duplicate = new Thread(() -> results[1] = deduplicator.compute(KEY, () -> {
+      computations.incrementAndGet();
+      return "duplicate";
+    }));
+    duplicate.start();
+    // the duplicate waits on the running computation, only then the owner may finish
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (duplicate.getState() != Thread.State.WAITING && System.nanoTime() < deadline) {
+      Thread.onSpinWait();
+    }
+    Assertions.assertEquals(Thread.State.WAITING, duplicate.getState());
+    release.countDown();
+    owner.join(5000);
+    duplicate.join(5000);
+    Assertions.assertFalse(owner.isAlive());
+    Assertions.assertFalse(duplicate.isAlive());
+    Assertions.assertEquals("result", results[0]);
+    Assertions.assertEquals("result", results[1]);
+    Assertions.assertEquals(1, computations.get());
+    Assertions.assertEquals("result", deduplicator.compute(KEY, () -> "later"));
+    Assertions.assertEquals("other",
+        deduplicator.join(new CommandDeduplicator.Key("count", 1, 3, HistoryBounds.UNBOUNDED),
+            () -> "other"));
+  }
+
+  @Test
+  public void testFailureIsNotShared() {
+    CommandDeduplicator deduplicator = new CommandDeduplicator();
+    Assertions.assertThrows(IllegalStateException.class, () -> deduplicator.compute(KEY, () -> {
+      throw new IllegalStateException();
+    }));
+    Assertions.assertEquals("retry", deduplicator.compute(KEY, () -> "retry"));
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.vb.alphapackbot;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class CommandJobsTest {
+
+  @Test
+  public void testCancelInterruptsRunningCommand() throws InterruptedException {
+    CommandJobs commandJobs = new CommandJobs();
+    CommandJobs.Token token = commandJobs.register(1);
+    CountDownLatch started = new CountDownLatch(1);
+    AtomicBoolean interrupted = new AtomicBoolean();
+    AtomicBoolean cancelled = new AtomicBoolean();
+    Thread thread = new Thread(() -> {
+      try {
+        commandJobs.run(token, () -> {
+          started.countDown();
+          try {
+            Thread.sleep(10_000);
+          } catch (InterruptedException e) {
+            interrupted.set(true);
+          }
+        });
+      } catch (CancellationException e) {
+        cancelled.set(true);
+      }
+    });
+    thread.start();
+    Assertions.assertTrue(started.await(5, TimeUnit.SECONDS));
+    commandJobs.cancelAll("bot disabled");
+    thread.join(5000);
+    Assertions.assertTrue(interrupted.get());
+    Assertions.assertTrue(cancelled.get());
+    Assertions.assertEquals("bot disabled", token.getReason());
+    Assertions.assertEquals(0, commandJobs.getActive());
+  }
+
+  @Test
+  public void testCancelledWhileQueued() {
+    CommandJobs commandJobs = new CommandJobs();
+    CommandJobs.Token token = commandJobs.register(1);
+    token.cancel("request deleted");
+    AtomicBoolean ran = new AtomicBoolean();
+    Assertions.assertThrows(CancellationException.class,
+        () -> commandJobs.run(token, () -> ran.set(true)));
+    Assertions.assertFalse(ran.get());
+    Assertions.assertEquals(0, commandJobs.getActive());
+  }
+}
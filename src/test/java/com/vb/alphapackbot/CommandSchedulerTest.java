@@ -0,0 +1,81 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.vb.alphapackbot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class CommandSchedulerTest {
+
+  @Test
+  public void testGuildsTakeTurns() throws InterruptedException {
+    CommandScheduler scheduler = new CommandScheduler(1, 1, 1, 10);
+    List<String> order = Collections.synchronizedList(new ArrayList<>());
+    CountDownLatch blocker = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(4);
+    scheduler.submit(1, 10, () -> {
+      await(blocker);
+      order.add("a1");
+      done.countDown();
+    });
+    for (String name : List.of("a2", "a3")) {
+      scheduler.submit(1, 10, () -> {
+        order.add(name);
+        done.countDown();
+      });
+    }
+    scheduler.submit(2, 20, () -> {
+      order.add("b1");
+      done.countDown();
+    });
+    Assertions.assertEquals(3, scheduler.getQueued());
+    blocker.countDown();
+    Assertions.assertTrue(done.await(5, TimeUnit.SECONDS));
+    Assertions.assertEquals(List.of("a1", "a2", "b1", "a3"), order);
+  }
+
+  @Test
+  public void testUserLimit() throws InterruptedException {
+    CommandScheduler scheduler = new CommandScheduler(4, 4, 1, 10);
+    CountDownLatch blocker = new CountDownLatch(1);
+    CountDownLatch started = new CountDownLatch(2);
+    for (long userId : new long[] {10, 10, 20}) {
+      scheduler.submit(1, userId, () -> {
+        started.countDown();
+        await(blocker);
+      });
+    }
+    Assertions.assertTrue(started.await(5, TimeUnit.SECONDS));
+    Assertions.assertEquals(2, scheduler.getRunning());
+    Assertions.assertEquals(1, scheduler.getQueued());
+    blocker.countDown();
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.vb.alphapackbot;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class CountProgressTest {
+
+  @Test
+  public void testPercent() {
+    CountProgress progress = new CountProgress();
+    Assertions.assertFalse(progress.isStarted());
+    Assertions.assertEquals(0, progress.getPercent());
+
+    UserData counts = new UserData("123");
+    progress.start(counts, 4, null);
+    Assertions.assertTrue(progress.isStarted());
+    Assertions.assertEquals(0, progress.getPercent());
+    counts.increment(RarityTypes.COMMON);
+    Assertions.assertEquals(25, progress.getPercent());
+    counts.increment(RarityTypes.RARE);
+    counts.increment(RarityTypes.UNKNOWN);
+    counts.increment(RarityTypes.COMMON);
+    Assertions.assertEquals(100, progress.getPercent());
+  }
+
+  @Test
+  public void testSnapshot_addsBase() {
+    CountResultCache cache = new CountResultCache();
+    UserData cached = new UserData("123");
+    cached.increment(RarityTypes.COMMON);
+    cache.put(1L, HistoryBounds.UNBOUNDED, 10, cached);
+    CountProgress progress = new CountProgress();
+    UserData counts = new UserData("123");
+    progress.start(counts, 2, cache.get(1L, 123L, HistoryBounds.UNBOUNDED).orElseThrow());
+    counts.increment(RarityTypes.COMMON);
+
+    UserData snapshot = progress.snapshot();
+    Assertions.assertEquals(2, snapshot.getRarityCount(RarityTypes.COMMON));
+    counts.increment(RarityTypes.COMMON);
+    Assertions.assertEquals(2, snapshot.getRarityCount(RarityTypes.COMMON));
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.vb.alphapackbot;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class CountResultCacheTest {
+  private static final long CHANNEL_ID = 800000000000000000L;
+  private static final long USER_ID = 123L;
+
+  private static UserData userData(int common, int legendary) {
+    UserData userData = new UserData(Long.toString(USER_ID));
+    for (int i = 0; i < common; i++) {
+      userData.increment(RarityTypes.COMMON);
+    }
+    for (int i = 0; i < legendary; i++) {
+      userData.increment(RarityTypes.LEGENDARY);
+    }
+    return userData;
+  }
+
+  @Test
+  public void testPut_keepsNewerHead() {
+    CountResultCache cache = new CountResultCache();
+    cache.put(CHANNEL_ID, HistoryBounds.UNBOUNDED, 20, userData(2, 1));
+    cache.put(CHANNEL_ID, HistoryBounds.UNBOUNDED, 10, userData(1, 0));
+    CountResultCache.Entry entry =
+        cache.get(CHANNEL_ID, USER_ID, HistoryBounds.UNBOUNDED).orElseThrow();
+    Assertions.assertEquals(20, entry.headId());
+    Assertions.assertEquals(2, entry.toUserData(USER_ID).getRarityCount(RarityTypes.COMMON));
+    Assertions.assertTrue(cache.get(CHANNEL_ID, USER_ID, new HistoryBounds(5, 50)).isEmpty());
+
+    Assertions.assertTrue(cache.hasChannel(CHANNEL_ID));
+    Assertions.assertFalse(cache.hasChannel(CHANNEL_ID + 1));
+    cache.invalidateChannel(CHANNEL_ID);
+    Assertions.assertTrue(cache.get(CHANNEL_ID, USER_ID, HistoryBounds.UNBOUNDED).isEmpty());
+    Assertions.assertFalse(cache.hasChannel(CHANNEL_ID));
+  }
+
+  @Test
+  public void testEntry_plusAndFinal() {
+    CountResultCache cache = new CountResultCache();
+    HistoryBounds bounds = HistoryBounds.parse("until:2020-01-01");
+    cache.put(CHANNEL_ID, bounds, 20, userData(2, 1));
+    CountResultCache.Entry entry = cache.get(CHANNEL_ID, USER_ID, bounds).orElseThrow();
+    UserData merged = entry.plus(userData(1, 1));
+    Assertions.assertEquals(3, merged.getRarityCount(RarityTypes.COMMON));
+    Assertions.assertEquals(2, merged.getRarityCount(RarityTypes.LEGENDARY));
+    Assertions.assertEquals(2, entry.toUserData(USER_ID).getRarityCount(RarityTypes.COMMON));
+    Assertions.assertTrue(entry.isFinal(bounds));
+    Assertions.assertFalse(entry.isFinal(HistoryBounds.UNBOUNDED));
+  }
+}
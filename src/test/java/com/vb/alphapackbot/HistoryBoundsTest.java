@@ -0,0 +1,65 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import net.dv8tion.jda.api.utils.TimeUtil;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class HistoryBoundsTest {
+
+  @Test
+  public void testParse_noBounds() {
+    Assertions.assertEquals(HistoryBounds.UNBOUNDED, HistoryBounds.parse("<@123> legendary"));
+  }
+
+  @Test
+  public void testParse_dates() {
+    HistoryBounds bounds = HistoryBounds.parse("since:2023-03-01 until:31.03.2023");
+    long start = TimeUtil.getDiscordTimestamp(
+        OffsetDateTime.of(2023, 3, 1, 0, 0, 0, 0, ZoneOffset.UTC).toInstant().toEpochMilli());
+    long end = TimeUtil.getDiscordTimestamp(
+        OffsetDateTime.of(2023, 4, 1, 0, 0, 0, 0, ZoneOffset.UTC).toInstant().toEpochMilli());
+    Assertions.assertEquals(new HistoryBounds(start - 1, end), bounds);
+    Assertions.assertTrue(bounds.contains(start));
+    Assertions.assertFalse(bounds.contains(end));
+  }
+
+  @Test
+  public void testParse_messageIdsAreInclusive() {
+    HistoryBounds bounds = HistoryBounds.parse("SINCE:800000000000000000 until:900000000000000000");
+    Assertions.assertTrue(bounds.contains(800000000000000000L));
+    Assertions.assertTrue(bounds.contains(900000000000000000L));
+    Assertions.assertFalse(bounds.contains(900000000000000001L));
+  }
+
+  @Test
+  public void testParse_invalid() {
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> HistoryBounds.parse("since:yesterday"));
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> HistoryBounds.parse("since:2023-04-01 until:2023-03-01"));
+  }
+
+  @Test
+  public void testStrip() {
+    Assertions.assertEquals(" epic ",
+        HistoryBounds.strip("since:2023-03-01 epic until:2023-04-01"));
+  }
+}
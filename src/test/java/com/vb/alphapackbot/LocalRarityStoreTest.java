@@ -0,0 +1,77 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.OptionalInt;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class LocalRarityStoreTest {
+
+  @Test
+  public void testPutGetAndReopen() throws IOException {
+    Path file = Files.createTempFile("rarities", ".dat");
+    try {
+      try (LocalRarityStore store = LocalRarityStore.open(file, 64)) {
+        Assertions.assertTrue(store.put(1093847562938475610L, (byte) 10, false));
+        Assertions.assertTrue(store.put(1093847562938475611L, (byte) 11, true));
+        Assertions.assertTrue(store.put(1093847562938475610L, (byte) 12, false));
+        Assertions.assertEquals(2, store.size());
+      }
+      try (LocalRarityStore store = LocalRarityStore.open(file, 64)) {
+        Assertions.assertEquals(OptionalInt.of(12), store.get(1093847562938475610L));
+        Assertions.assertEquals(OptionalInt.of(11), store.get(1093847562938475611L));
+        Assertions.assertEquals(OptionalInt.empty(), store.get(42L));
+      }
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void testPendingEntries() throws IOException {
+    Path file = Files.createTempFile("rarities", ".dat");
+    try (LocalRarityStore store = LocalRarityStore.open(file, 16)) {
+      for (long id = 1; id <= 12; id++) {
+        Assertions.assertTrue(store.put(id, (byte) 1, id % 2 == 0));
+      }
+      Assertions.assertFalse(store.put(13L, (byte) 1, true));
+
+      Map<Long, Byte> pending = new HashMap<>();
+      int cursor = 0;
+      do {
+        Map<Long, Byte> batch = new HashMap<>();
+        cursor = store.pendingEntries(cursor, 4, batch);
+        Assertions.assertTrue(batch.size() <= 4);
+        pending.putAll(batch);
+      } while (cursor != 0);
+      Assertions.assertEquals(6, pending.size());
+
+      store.markSynced(pending);
+      Map<Long, Byte> remaining = new HashMap<>();
+      store.pendingEntries(0, 100, remaining);
+      Assertions.assertTrue(remaining.isEmpty());
+    } finally {
+      Files.delete(file);
+    }
+  }
+}
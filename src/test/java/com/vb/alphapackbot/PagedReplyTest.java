@@ -0,0 +1,53 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.vb.alphapackbot;
+
+import java.util.List;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class PagedReplyTest {
+
+  @Test
+  public void testSplit_keepsBlocksTogether() {
+    List<String> pages = PagedReply.split(List.of("aaaa", "bbb", "cc", "dddddd"), 8);
+    Assertions.assertEquals(List.of("aaaa\nbbb", "cc", "dddddd"), pages);
+  }
+
+  @Test
+  public void testSplit_longBlock() {
+    List<String> pages = PagedReply.split(List.of("ab", "cdef\nghij\nkl", "m"), 6);
+    Assertions.assertEquals(List.of("ab", "cdef", "ghij", "kl\nm"), pages);
+    Assertions.assertEquals(List.of("abcd", "ef"), PagedReply.split(List.of("abcdef"), 4));
+    Assertions.assertEquals(List.of(), PagedReply.split(List.of(), 4));
+  }
+
+  @Test
+  public void testOf_attachesLongReplies() {
+    String block = "x".repeat(1500);
+    PagedReply short3 = PagedReply.of(List.of(block, block, block), "a.txt", List.of("y"));
+    Assertions.assertEquals(3, short3.pages().size());
+    Assertions.assertFalse(short3.isAttachment());
+    Assertions.assertEquals(2, short3.withoutFirstPage().pages().size());
+
+    PagedReply long4 = PagedReply.of(List.of(block, block, block, block), "a.txt",
+        List.of("y", "z"));
+    Assertions.assertTrue(long4.isAttachment());
+    Assertions.assertEquals("y\nz", long4.fileText());
+  }
+}
@@ -0,0 +1,51 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.vb.alphapackbot;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class PoolSizerTest {
+
+  @Test
+  void testPercentile() {
+    LatencyStats stats = new LatencyStats();
+    for (int i = 0; i < 90; i++) {
+      stats.record(40_000);
+    }
+    for (int i = 0; i < 10; i++) {
+      stats.record(3_000_000);
+    }
+    Assertions.assertEquals(50, stats.getPercentileMicros(0.5));
+    Assertions.assertEquals(50, stats.getPercentileMicros(0.9));
+    Assertions.assertEquals(5_000, stats.getPercentileMicros(0.95));
+    Assertions.assertEquals(0, new LatencyStats().getPercentileMicros(0.5));
+  }
+
+  @Test
+  void testNextSize() {
+    PoolSizer sizer = new PoolSizer("test", null, null, 16, 64, 1000);
+    Assertions.assertEquals(24, sizer.nextSize(16, 100, 1, 16));
+    Assertions.assertEquals(24, sizer.nextSize(16, 2500, 0, 16));
+    Assertions.assertEquals(64, sizer.nextSize(60, 2500, 3, 60));
+    Assertions.assertEquals(64, sizer.nextSize(64, 2500, 3, 64));
+    Assertions.assertEquals(23, sizer.nextSize(24, 100, 0, 4));
+    Assertions.assertEquals(24, sizer.nextSize(24, 100, 0, 20));
+    Assertions.assertEquals(16, sizer.nextSize(16, 0, 0, 0));
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.vb.alphapackbot;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class RestBudgetTest {
+  private static final long CHANNEL_ID = 800000000000000000L;
+
+  @Test
+  public void testTryAcquire_routeBucketRefills() {
+    AtomicLong clock = new AtomicLong();
+    RestBudget budget = new RestBudget(50, clock::get);
+    Assertions.assertTrue(budget.tryAcquire(RestBudget.Route.REACTION, CHANNEL_ID));
+    Assertions.assertFalse(budget.tryAcquire(RestBudget.Route.REACTION, CHANNEL_ID));
+    Assertions.assertTrue(budget.tryAcquire(RestBudget.Route.REACTION, CHANNEL_ID + 1));
+    clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(250));
+    Assertions.assertTrue(budget.tryAcquire(RestBudget.Route.REACTION, CHANNEL_ID));
+  }
+
+  @Test
+  public void testTryAcquire_lowPriorityLeavesRoomForReplies() {
+    AtomicLong clock = new AtomicLong();
+    RestBudget budget = new RestBudget(10, clock::get);
+    int typing = 0;
+    for (long channel = 0; channel < 10; channel++) {
+      if (budget.tryAcquire(RestBudget.Route.TYPING, channel)) {
+        typing++;
+      }
+    }
+    Assertions.assertEquals(5, typing);
+    int replies = 0;
+    for (long channel = 0; channel < 10; channel++) {
+      if (budget.tryAcquire(RestBudget.Route.REPLY, channel)) {
+        replies++;
+      }
+    }
+    Assertions.assertEquals(5, replies);
+  }
+
+  @Test
+  public void testRateLimited_drainsBucket() {
+    AtomicLong clock = new AtomicLong();
+    RestBudget budget = new RestBudget(50, clock::get);
+    budget.rateLimited(RestBudget.Route.HISTORY, CHANNEL_ID, 1000);
+    Assertions.assertFalse(budget.tryAcquire(RestBudget.Route.HISTORY, CHANNEL_ID));
+    clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(1000));
+    Assertions.assertFalse(budget.tryAcquire(RestBudget.Route.HISTORY, CHANNEL_ID));
+    clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+    Assertions.assertTrue(budget.tryAcquire(RestBudget.Route.HISTORY, CHANNEL_ID));
+  }
+
+  @Test
+  public void testInteractionsNeverWait() {
+    RestBudget budget = new RestBudget(1, new AtomicLong()::get);
+    Assertions.assertTrue(budget.tryAcquire(RestBudget.Route.REPLY, CHANNEL_ID));
+    Assertions.assertFalse(budget.tryAcquire(RestBudget.Route.REPLY, CHANNEL_ID + 1));
+    for (int i = 0; i < 100; i++) {
+      Assertions.assertTrue(budget.tryAcquire(RestBudget.Route.INTERACTION, CHANNEL_ID));
+    }
+  }
+}
@@ -0,0 +1,57 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.vb.alphapackbot;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class ShardExecutorsTest {
+
+  @Test
+  public void testEventPool_perShard() throws InterruptedException {
+    ShardExecutors executors = new ShardExecutors();
+    try {
+      ExecutorService first = executors.eventPool(0);
+      Assertions.assertSame(first, executors.eventPool(0));
+      Assertions.assertNotSame(first, executors.eventPool(1));
+      Assertions.assertNotSame(executors.rateLimitPool(0), executors.rateLimitPool(1));
+
+      CountDownLatch blocked = new CountDownLatch(1);
+      first.execute(() -> {
+        try {
+          blocked.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      });
+      first.execute(() -> { });
+      Assertions.assertEquals(1, executors.getQueuedEvents(0));
+      Assertions.assertEquals(0, executors.getQueuedEvents(1));
+      blocked.countDown();
+      first.shutdown();
+      Assertions.assertTrue(first.awaitTermination(5, TimeUnit.SECONDS));
+      Assertions.assertEquals(2, executors.getHandledEvents(0));
+      Assertions.assertEquals(0, executors.getHandledEvents(2));
+    } finally {
+      executors.shutdown();
+    }
+  }
+}
@@ -0,0 +1,167 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.vb.alphapackbot;
+
+import com.google.common.hash.Hashing;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class ShardedBackendTest {
+  private static final long FIRST_ID = 1093847562938475610L;
+
+  /** In-memory stand-in for a single redis node. */
+  private static final class InMemoryBackend implements CacheBackend {
+    private final String name;
+    private final Map<Long, Byte> values = new ConcurrentHashMap<>();
+    private final Map<String, String> legacy = new ConcurrentHashMap<>();
+    private final NodeStats stats = new NodeStats(null);
+    private int reads;
+
+    InMemoryBackend(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public void ping() {}
+
+    @Override
+    public Map<Long, Byte> get(List<Long> attachmentIds) {
+      reads++;
+      stats.recordCommand("get", 1000);
+      Map<Long, Byte> found = new HashMap<>();
+      attachmentIds.stream().filter(values::containsKey).forEach(x -> found.put(x, values.get(x)));
+      return found;
+    }
+
+    @Override
+    public void put(Map<Long, Byte> newValues) {
+      values.putAll(newValues);
+    }
+
+    @Override
+    public void putIfAbsent(Map<Long, Byte> newValues) {
+      newValues.forEach(values::putIfAbsent);
+    }
+
+    @Override
+    public List<Map<Long, Byte>> getBuckets(List<Long> buckets) {
+      List<Map<Long, Byte>> result = new ArrayList<>();
+      for (long bucket : buckets) {
+        Map<Long, Byte> bucketValues = new HashMap<>();
+        values.forEach((id, value) -> {
+          if (CacheSchema.bucketOf(id) == bucket) {
+            bucketValues.put(id, value);
+          }
+        });
+        result.add(bucketValues);
+      }
+      return result;
+    }
+
+    @Override
+    public List<String> getLegacy(List<String> keys) {
+      return keys.stream().map(legacy::get).toList();
+    }
+
+    @Override
+    public void deleteLegacy(List<String> keys) {
+      keys.forEach(legacy::remove);
+    }
+
+    @Override
+    public void scan(String pattern, Consumer<List<String>> consumer) {}
+
+    @Override
+    public Map<String, NodeStats> getNodeStats() {
+      return Map.of(name, stats);
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+
+    @Override
+    public void close() {}
+  }
+
+  private static List<CacheBackend> createNodes(int count) {
+    List<CacheBackend> nodes = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      nodes.add(new InMemoryBackend("node-" + i));
+    }
+    return nodes;
+  }
+
+  @Test
+  public void testValuesSpreadAndReadBack() {
+    List<CacheBackend> nodes = createNodes(3);
+    ShardedBackend backend = new ShardedBackend(nodes, Integer.MAX_VALUE, 0);
+    Map<Long, Byte> values = new HashMap<>();
+    for (int i = 0; i < 300; i++) {
+      values.put(FIRST_ID + ((long) i << CacheSchema.BUCKET_SHIFT), (byte) (i % 4));
+    }
+    backend.put(values);
+
+    Assertions.assertEquals(values, backend.get(new ArrayList<>(values.keySet())));
+    for (CacheBackend node : nodes) {
+      int size = ((InMemoryBackend) node).values.size();
+      Assertions.assertTrue(size > 30 && size < 200, "unbalanced node with " + size);
+    }
+    Assertions.assertEquals(3, backend.getNodeStats().size());
+  }
+
+  @Test
+  public void testAddingNodeMovesFewBuckets() {
+    List<CacheBackend> nodes = createNodes(4);
+    ShardedBackend before = new ShardedBackend(nodes.subList(0, 3), Integer.MAX_VALUE, 0);
+    ShardedBackend after = new ShardedBackend(nodes, Integer.MAX_VALUE, 0);
+    int moved = 0;
+    for (long bucket = 0; bucket < 1000; bucket++) {
+      long hash = Hashing.murmur3_128().hashLong(bucket).asLong();
+      if (before.nodesFor(hash, 1).get(0) != after.nodesFor(hash, 1).get(0)) {
+        moved++;
+      }
+    }
+    Assertions.assertTrue(moved < 400, "moved " + moved);
+  }
+
+  @Test
+  public void testHotBucketIsReplicated() {
+    List<CacheBackend> nodes = createNodes(3);
+    ShardedBackend backend = new ShardedBackend(nodes, 2, 1);
+    backend.put(Map.of(FIRST_ID, (byte) 1));
+    for (int i = 0; i < 10; i++) {
+      Assertions.assertEquals(Map.of(FIRST_ID, (byte) 1), backend.get(List.of(FIRST_ID)));
+    }
+    backend.put(Map.of(FIRST_ID + 1, (byte) 2));
+    long holders = nodes.stream()
+        .filter(node -> ((InMemoryBackend) node).values.containsKey(FIRST_ID))
+        .count();
+    long newHolders = nodes.stream()
+        .filter(node -> ((InMemoryBackend) node).values.containsKey(FIRST_ID + 1))
+        .count();
+    Assertions.assertEquals(2, newHolders);
+    Assertions.assertTrue(holders >= 1);
+  }
+}
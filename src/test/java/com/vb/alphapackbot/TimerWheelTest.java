@@ -0,0 +1,54 @@
+/*
+ *    Copyright 2020 Valentín Bolfík
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.vb.alphapackbot;
+
+import java.util.List;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class TimerWheelTest {
+
+  @Test
+  public void testAdvance_returnsDueItems() {
+    TimerWheel<String> wheel = new TimerWheel<>(4);
+    wheel.schedule("a", 1);
+    wheel.schedule("b", 3);
+    wheel.schedule("c", 6);
+    Assertions.assertEquals(List.of("a"), wheel.advance());
+    Assertions.assertEquals(List.of(), wheel.advance());
+    Assertions.assertEquals(List.of("b"), wheel.advance());
+    Assertions.assertEquals(List.of(), wheel.advance());
+    Assertions.assertEquals(List.of(), wheel.advance());
+    Assertions.assertEquals(List.of("c"), wheel.advance());
+    for (int i = 0; i < 8; i++) {
+      Assertions.assertEquals(List.of(), wheel.advance());
+    }
+  }
+
+  @Test
+  public void testSchedule_rescheduleFromDueItem() {
+    TimerWheel<String> wheel = new TimerWheel<>(2);
+    wheel.schedule("a", 2);
+    wheel.advance();
+    List<String> due = wheel.advance();
+    Assertions.assertEquals(List.of("a"), due);
+    wheel.schedule("a", 2);
+    Assertions.assertEquals(List.of(), wheel.advance());
+    Assertions.assertEquals(List.of("a"), wheel.advance());
+  }
+}